@@ -0,0 +1,81 @@
+package bench;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * ベンチマーク用の、Bulk APIのクエリ結果と同じ形式のCSVファイルを作成する.
+ * 同じサイズのファイルは一度作成したら使い回す. 内容は乱数の種を固定しているので毎回同じになる.
+ *
+ * 出力先はシステムプロパティjmh.fixtures(gradle jmhではbuild/jmh-fixtures).
+ */
+public class CsvFixtures {
+
+	private static final String HEADER = "\"Id\",\"Name\",\"Phone\",\"Description\",\"SystemModstamp\"\n";
+
+	private CsvFixtures() {
+	}
+
+	/**
+	 * sizeMBメガバイト程度のCSVファイルを取得する. なければ作成する.
+	 */
+	public static Path get(int sizeMB) throws IOException {
+		Path dir = Paths.get(System.getProperty("jmh.fixtures", "build/jmh-fixtures"));
+		Files.createDirectories(dir);
+		Path file = dir.resolve("accounts-" + sizeMB + "mb.csv");
+		if (Files.exists(file)) {
+			return file;
+		}
+		Path tmp = dir.resolve(file.getFileName() + ".tmp");
+		generate(tmp, sizeMB * 1024L * 1024L);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		return file;
+	}
+
+	private static void generate(Path file, long bytes) throws IOException {
+		Random random = new Random(42);
+		StringBuilder line = new StringBuilder();
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1024 * 1024)) {
+			byte[] header = HEADER.getBytes(StandardCharsets.UTF_8);
+			out.write(header);
+			long written = header.length;
+			for (long i = 0; written < bytes; i++) {
+				line.setLength(0);
+				line.append("\"001").append(String.format("%015d", i)).append("\",");
+				line.append("\"取引先 ").append(i).append("\",");
+				line.append("\"03-").append(1000 + random.nextInt(9000)).append('-').append(1000 + random.nextInt(9000)).append("\",");
+				// 一部のレコードには、実際のデータと同様にカンマや改行、ダブルクォートを含める
+				line.append('"');
+				int words = random.nextInt(20);
+				for (int w = 0; w < words; w++) {
+					switch (random.nextInt(16)) {
+					case 0:
+						line.append("\"\"quoted\"\" ");
+						break;
+					case 1:
+						line.append("line\nbreak ");
+						break;
+					case 2:
+						line.append("a, b ");
+						break;
+					default:
+						line.append("lorem ipsum ");
+					}
+				}
+				line.append("\",");
+				line.append("\"2017-01-").append(10 + random.nextInt(18)).append("T0").append(random.nextInt(10)).append(":00:00.000Z\"\n");
+				byte[] b = line.toString().getBytes(StandardCharsets.UTF_8);
+				out.write(b);
+				written += b.length;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import util.CsvReader;
+
+/**
+ * クエリ結果のCSVの読み込み(BulkSample, DeltaMergerなど)と、ログ出力用の文字列化のベンチマーク.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CsvReaderBenchmark {
+
+	@Param({"1", "64", "1024"})
+	public int sizeMB;
+
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = CsvFixtures.get(sizeMB);
+	}
+
+	/** レコードの区切りだけを読む. 文字列は作らない */
+	@Benchmark
+	public long records() throws IOException {
+		try (CsvReader reader = new CsvReader(Files.newInputStream(file))) {
+			long count = 0;
+			while (reader.next()) {
+				count += reader.fieldCount();
+			}
+			return count;
+		}
+	}
+
+	/** 全ての値をStringにする */
+	@Benchmark
+	public void strings(Blackhole bh) throws IOException {
+		try (CsvReader reader = new CsvReader(Files.newInputStream(file))) {
+			while (reader.next()) {
+				for (int i = 0; i < reader.fieldCount(); i++) {
+					bh.consume(reader.getString(i));
+				}
+			}
+		}
+	}
+
+	/** BulkSampleのログ出力と同じく、1レコードを1行の文字列にする */
+	@Benchmark
+	public void recordToString(Blackhole bh) throws IOException {
+		try (CsvReader reader = new CsvReader(Files.newInputStream(file))) {
+			while (reader.next()) {
+				bh.consume(reader.toString());
+			}
+		}
+	}
+
+	/** DeltaMergerと同じく、レコードをそのままCSVとして書き出す */
+	@Benchmark
+	public void writeRecord() throws IOException {
+		try (CsvReader reader = new CsvReader(Files.newInputStream(file)); OutputStream out = NullOutputStream.INSTANCE) {
+			while (reader.next()) {
+				reader.writeRecord(out);
+			}
+		}
+	}
+
+	/** 比較用. ファイルを読むだけ */
+	@Benchmark
+	public long rawRead() throws IOException {
+		byte[] buffer = new byte[CsvReader.DEFAULT_BUFFER_SIZE];
+		long total = 0;
+		try (InputStream is = Files.newInputStream(file)) {
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				total += n;
+			}
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bulk.CsvResultMerger;
+import util.ParallelGzipOutputStream;
+
+/**
+ * BulkChunkSaveSampleの、結果の連結とgzip圧縮のベンチマーク.
+ * 同じファイルを4つの結果とみなして連結する.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class MergeBenchmark {
+
+	private static final int RESULTS = 4;
+
+	@Param({"1", "64", "256"})
+	public int sizeMB;
+
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = CsvFixtures.get(sizeMB);
+	}
+
+	/** 連結のみ */
+	@Benchmark
+	public long merge() throws IOException {
+		return merge(NullOutputStream.INSTANCE);
+	}
+
+	/** 連結してGZIPOutputStreamで圧縮する */
+	@Benchmark
+	public long mergeGzip() throws IOException {
+		try (OutputStream out = new GZIPOutputStream(NullOutputStream.INSTANCE, 64 * 1024)) {
+			return merge(out);
+		}
+	}
+
+	/** 連結してParallelGzipOutputStreamで圧縮する */
+	@Benchmark
+	public long mergeParallelGzip() throws IOException {
+		try (OutputStream out = new ParallelGzipOutputStream(NullOutputStream.INSTANCE)) {
+			return merge(out);
+		}
+	}
+
+	private long merge(OutputStream out) throws IOException {
+		CsvResultMerger merger = new CsvResultMerger(out);
+		for (int i = 0; i < RESULTS; i++) {
+			try (InputStream is = Files.newInputStream(file)) {
+				merger.append(is);
+			}
+		}
+		return merger.getBytesWritten();
+	}
+
+}
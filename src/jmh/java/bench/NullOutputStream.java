@@ -0,0 +1,24 @@
+package bench;
+
+import java.io.OutputStream;
+
+/**
+ * 書き込んだ内容を捨てるOutputStream. 出力先のI/Oを計測に含めないためのもの.
+ */
+class NullOutputStream extends OutputStream {
+
+	static final NullOutputStream INSTANCE = new NullOutputStream();
+
+	@Override
+	public void write(int b) {
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
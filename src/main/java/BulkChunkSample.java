@@ -1,20 +1,16 @@
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +18,7 @@ import org.slf4j.LoggerFactory;
 import com.sforce.async.AsyncApiException;
 import com.sforce.async.BatchInfo;
 import com.sforce.async.BatchInfoList;
+import com.sforce.async.BatchStateEnum;
 import com.sforce.async.BulkConnection;
 import com.sforce.async.ConcurrencyMode;
 import com.sforce.async.ContentType;
@@ -30,7 +27,11 @@ import com.sforce.async.OperationEnum;
 import com.sforce.async.QueryResultList;
 import com.sforce.ws.ConnectionException;
 
+import bulk.BatchStatusPoller;
+import bulk.ChunkDownloader;
+import bulk.PkChunkSizer;
 import util.ConnectionUtil;
+import util.CsvReader;
 
 public class BulkChunkSample {
 	
@@ -38,65 +39,79 @@ public class BulkChunkSample {
 	
 	public static void main(String[] args) throws ConnectionException, AsyncApiException, InterruptedException, ExecutionException, IOException {
 		BulkConnection connection = ConnectionUtil.createBulk();
-		JobInfo job = createJob(connection);
+		// 件数と過去の実行結果から、分割サイズを決める
+		PkChunkSizer sizer = PkChunkSizer.load(Paths.get("pkchunk-stats.properties"));
+		long rowCount = ConnectionUtil.createEPC().query(PkChunkSizer.countQuery("Account")).getSize();
+		int chunkSize = sizer.chunkSize("Account", rowCount, Integer.getInteger("SF_PK_CHUNK_BATCHES", 10));
+		JobInfo job = createJob(connection, chunkSize);
 		logger.info("jobId: " + job.getId());
 		String query = "select Id, Name, Phone from Account";
 		// PK-chunkが有効の場合、クエリ全体を処理するためのバッチが自動で追加されるので、最初のバッチは実行されない.
-		createBatch(job, connection, query);
+		BatchInfo parentBatch = createBatch(job, connection, query);
 		
-		// クエリ全体を処理するために追加されたバッチの情報を取得
-		List<BatchInfo> batchList = getChunkedBatch(job, connection);
-		
-		logger.info("chunked batch size : " + batchList.size());
-		
-		// バッチごとにステータスチェック+結果の取得を、非同期に行う
-		ExecutorService executor = Executors.newFixedThreadPool(batchList.size());
-		CompletionService<CompletableFuture<ChunkBatchResult>> completionService = new ExecutorCompletionService<>(executor);
-		for (BatchInfo chunkBatch: batchList) {
-			completionService.submit(() -> BulkChunkSample.getResultIds(job, connection, chunkBatch));
-		}
-		
-		logger.info("submitting is done.");
-		
-		// 終わったものから結果を取得
-		for (int i = 0; i < batchList.size(); i++) {
-			CompletableFuture<ChunkBatchResult> resultIds = completionService.take().get();
-			// XXX getした方が見通しは良さそう。効率的にはwhenCompleteの方がいいはず
-			resultIds.whenComplete((batchResult, thrown) -> {
-				logger.info("--- results --- : batchId:" + batchResult.batchInfo.getId());
-				// XXX とりあえず標準出力. マルチスレッドなので、順番はでたらめになる
-				// 本当はひとつのファイルに書き込むなどして、結果を集約させる.
-				for (String resultId : batchResult.resultIds) {
-					// ラムダ式内では例外スローできないので、try-catch
-					try {
-						InputStream is = connection.getQueryResultStream(job.getId(), batchResult.batchInfo.getId(), resultId);
-						try(BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-							String line = null;
-							while((line = br.readLine()) != null) {
-								logger.info(line);
+		// ステータスのチェックはジョブ単位でまとめて行う
+		try (BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId())) {
+			// クエリ全体を処理するために追加されたバッチの情報を取得
+			List<BatchInfo> batchList = getChunkedBatch(job, connection, poller, parentBatch);
+			
+			logger.info("chunked batch size : " + batchList.size());
+			
+			// バッチごとの結果の取得を、同時実行数を制限して非同期に行う
+			int concurrency = Integer.getInteger("SF_DOWNLOAD_CONCURRENCY", ChunkDownloader.DEFAULT_CONCURRENCY);
+			ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+			List<CompletableFuture<Void>> downloads = new ArrayList<>();
+			for (BatchInfo chunkBatch: batchList) {
+				// 終わったものから結果を取得
+				CompletableFuture<Void> download = BulkChunkSample.getResultIds(job, connection, poller, chunkBatch, executor)
+						.thenAcceptAsync(batchResult -> {
+					// 次回以降の分割サイズの参考にするため、バッチの処理時間を記録
+					sizer.record("Account", chunkSize, batchResult.batchInfo, -1);
+					logger.info("--- results --- : batchId:" + batchResult.batchInfo.getId());
+					// XXX とりあえず標準出力. マルチスレッドなので、順番はでたらめになる
+					// 本当はひとつのファイルに書き込むなどして、結果を集約させる.
+					for (String resultId : batchResult.resultIds) {
+						// ラムダ式内では例外スローできないので、try-catch
+						try {
+							InputStream is = connection.getQueryResultStream(job.getId(), batchResult.batchInfo.getId(), resultId);
+							// ダブルクォート内の改行を含むレコードも1件として読み込む. 文字列への変換はログ出力時のみ行う
+							try(CsvReader reader = new CsvReader(is)) {
+								while(reader.next()) {
+									logger.info("{}", reader);
+								}
+							} catch (IOException e) {
+								e.printStackTrace();
 							}
-						} catch (IOException e) {
+						} catch (AsyncApiException e) {
 							e.printStackTrace();
-						}
-					} catch (AsyncApiException e) {
-						e.printStackTrace();
-					} 
-				}
-				logger.info("--- end --- : batchId:" + batchResult.batchInfo.getId());
-			});
+						} 
+					}
+					logger.info("--- end --- : batchId:" + batchResult.batchInfo.getId());
+				}, executor);
+				downloads.add(download);
+			}
+			
+			logger.info("submitting is done.");
+			
+			try {
+				CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0])).get();
+				sizer.store();
+			} finally {
+				executor.shutdown();
+			}
+		} finally {
+			// ジョブ内のバッチを終了させるのと、モニタリングのため
+			connection.closeJob(job.getId());
 		}
-		// ジョブ内のバッチを終了させるのと、モニタリングのため
-		connection.closeJob(job.getId());
 	}
 	
-	private static JobInfo createJob(BulkConnection connection) throws AsyncApiException {
+	private static JobInfo createJob(BulkConnection connection, int chunkSize) throws AsyncApiException {
 		JobInfo job = new JobInfo();
 		job.setObject("Account");
 		job.setOperation(OperationEnum.query);
 		job.setConcurrencyMode(ConcurrencyMode.Parallel);
 		job.setContentType(ContentType.CSV);
-		connection.addHeader("Sforce-Enable-PKChunking", "chunksize=5"); // もとのデータがすくないため、わざと分割の単位を小さくする
-		job = connection.createJob(job);
+		// ヘッダはこのジョブの作成時だけに付ける
+		job = PkChunkSizer.createJob(connection, job, chunkSize, null);
 		assert job.getId() != null;
 		return connection.getJobStatus(job.getId());
 	}
@@ -106,57 +121,40 @@ public class BulkChunkSample {
 		return connection.createBatchFromStream(job, bout);
 	}
 	
-	private static List<BatchInfo> getChunkedBatch(JobInfo job, BulkConnection connection) throws AsyncApiException, InterruptedException {
+	private static List<BatchInfo> getChunkedBatch(JobInfo job, BulkConnection connection, BatchStatusPoller poller, BatchInfo parentBatch) throws AsyncApiException, InterruptedException, ExecutionException {
 		logger.info("--- getting chunk batch list ---");
 		// PK-chunkが有効の場合、クエリ全体を処理するためのバッチが自動で追加される
-		// 最初のバッチがNotProcessedになった後にそれらが実行されるので、それまで遅延させる.
-		TimeUnit.SECONDS.sleep(5);
+		// 最初のバッチがNotProcessedになった後にそれらが実行されるので、それまで待つ.
+		BatchInfo parent = poller.watch(parentBatch.getId()).get();
+		if (parent.getState() == BatchStateEnum.Failed) {
+			logger.warn("batch:" + parent.getId() + " failed.");
+			return Collections.emptyList();
+		}
 		BatchInfoList infoList = connection.getBatchInfoList(job.getId());
-		List<BatchInfo> _infoList = new ArrayList<>(Arrays.asList(infoList.getBatchInfo()));
-		_infoList.remove(0);
-		if (_infoList.isEmpty()) {
-			logger.warn("--- retrying chunk batch list ---");
-			// XXX 一回だけretryさせる
-			TimeUnit.SECONDS.sleep(5);
-			infoList = connection.getBatchInfoList(job.getId());
-			_infoList = new ArrayList<>(Arrays.asList(infoList.getBatchInfo()));
+		List<BatchInfo> _infoList = new ArrayList<>();
+		for (BatchInfo info : infoList.getBatchInfo()) {
+			if (!info.getId().equals(parent.getId())) {
+				_infoList.add(info);
+			}
 		}
 		return _infoList;
 	}
 	
-	private static CompletableFuture<ChunkBatchResult> getResultIds(JobInfo job, BulkConnection connection, BatchInfo chunkBatch) {
+	private static CompletableFuture<ChunkBatchResult> getResultIds(JobInfo job, BulkConnection connection, BatchStatusPoller poller, BatchInfo chunkBatch, Executor executor) {
 		logger.info("getting resultIds for " + chunkBatch.getId());
-		ScheduledExecutorService checkBatchStatus = Executors.newSingleThreadScheduledExecutor();
-		CompletableFuture<ChunkBatchResult> result = new CompletableFuture<>();
-		checkBatchStatus.scheduleAtFixedRate(() -> {
-			logger.info("--- checking batch status --- : " + chunkBatch.getId());
+		// バッチ完了後に結果を取得. pollerのスレッドをふさがないように、結果の取得は別スレッドで行う
+		return poller.watch(chunkBatch.getId()).thenApplyAsync(info -> {
+			logger.info("--- batch is done. --- : " + chunkBatch.getId());
+			if (info.getState() != BatchStateEnum.Completed) {
+				return ChunkBatchResult.newInstance(info, new String[]{});
+			}
 			try {
-				BatchInfo info = connection.getBatchInfo(job.getId(), chunkBatch.getId());
-				switch (info.getState()) {
-				case Completed:
-					QueryResultList queryResults = connection.getQueryResultList(job.getId(), chunkBatch.getId());
-					result.complete(ChunkBatchResult.newInstance(chunkBatch, queryResults.getResult()));
-					break;
-				case Failed:
-					logger.warn("batch:" + chunkBatch.getId() + " failed.");
-					result.complete(ChunkBatchResult.newInstance(chunkBatch, new String[]{}));
-					break;
-				default:
-					logger.info("-- waiting --");
-					logger.info("state: " + info.getState());
-				}
+				QueryResultList queryResults = connection.getQueryResultList(job.getId(), chunkBatch.getId());
+				return ChunkBatchResult.newInstance(info, queryResults.getResult());
 			} catch (AsyncApiException e) {
-				result.completeExceptionally(e);
+				throw new CompletionException(e);
 			}
-		}, 1, 15, TimeUnit.SECONDS);
-		
-		result.whenComplete((results, thrown) -> {
-			checkBatchStatus.shutdownNow();
-			logger.info("--- batch is done. --- : " + chunkBatch.getId());
-		});
-		
-		// バッチ完了後に結果を取得
-		return result;
+		}, executor);
 	}
 	
 	/**
@@ -1,84 +1,247 @@
 import com.sforce.async.*;
+import com.sforce.soap.enterprise.EnterpriseConnection;
 import com.sforce.ws.ConnectionException;
+import bulk.BatchStatusPoller;
+import bulk.ChunkDownloader;
+import bulk.DeltaMerger;
+import bulk.ExtractCheckpoint;
+import bulk.ModstampWatermark;
+import bulk.PipelineMetrics;
+import bulk.PkChunkSizer;
+import sink.ShardedCsvSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import util.ConnectionUtil;
+import util.ParallelGzipOutputStream;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 public class BulkChunkSaveSample {
 	
 	private static final Logger logger = LoggerFactory.getLogger(BulkChunkSaveSample.class);
 	
+	private static final String OBJECT = "Account";
+	
+	/** スナップショットの列. 差分をマージするため、先頭はIdにする */
+	private static final String FIELDS = "Id, Name, Phone, SystemModstamp";
+	
 	public static void main(String[] args) throws ConnectionException, AsyncApiException, InterruptedException, ExecutionException, IOException {
 		BulkConnection connection = ConnectionUtil.createBulk();
-		JobInfo job = createJob(connection);
-		logger.info("jobId: " + job.getId());
-		String query = "select Id, Name, Phone from Account";
-		// PK-chunkが有効の場合、クエリ全体を処理するためのバッチが自動で追加されるので、最初のバッチは実行されない.
-		createBatch(job, connection, query);
+		// -DSF_SHARD_DIR=<dir> の場合、ひとつのgzipファイルにまとめずに、並列に読み込める複数のファイルに分けて保存する
+		String shardDir = System.getProperty("SF_SHARD_DIR");
+		if (shardDir != null) {
+			extractShards(connection, "select " + FIELDS + " from " + OBJECT, Paths.get(shardDir));
+			return;
+		}
+        Path resultFile = Paths.get("result.csv.gz");
+		ModstampWatermark watermark = ModstampWatermark.load(Paths.get("watermark.properties"));
 		
-		// クエリ全体を処理するために追加されたバッチの情報を取得
-		List<BatchInfo> batchList = getChunkBatch(job, connection);
-		logger.info("chunked batch size : " + batchList.size());
+		// -DSF_INCREMENTAL=true の場合、前回の抽出以降に更新・削除されたものだけを取得して、前回の結果にマージする
+		Instant since = Boolean.getBoolean("SF_INCREMENTAL") && Files.exists(resultFile) ? watermark.get(OBJECT) : null;
+		if (since == null) {
+			JobInfo job = extract(connection, OperationEnum.query, "select " + FIELDS + " from " + OBJECT, resultFile);
+			advanceWatermark(connection, watermark, job);
+		} else {
+			logger.info("incremental extraction since {}", since);
+			Path deltaFile = Paths.get("result.delta.csv.gz");
+			// 削除されたレコードも取得するため、queryAllを使う
+			JobInfo job = extract(connection, OperationEnum.queryAll, DeltaMerger.query(FIELDS, OBJECT, since), deltaFile);
+			// マージに失敗した場合は例外になり、ウォーターマークは進めない. 次回は同じ時刻から取得し直す
+			DeltaMerger.merge(resultFile, deltaFile);
+			advanceWatermark(connection, watermark, job);
+			Files.deleteIfExists(deltaFile);
+		}
+	}
+	
+	/**
+	 * 抽出したジョブの全てのバッチが完了している場合のみ、次回の差分抽出の開始時刻をジョブの作成時刻に進める.
+	 * 失敗したバッチのレコードは、進めた後の差分抽出の条件から外れて二度と取得されないため.
+	 */
+	private static void advanceWatermark(BulkConnection connection, ModstampWatermark watermark, JobInfo job) throws AsyncApiException, IOException {
+		JobInfo status = connection.getJobStatus(job.getId());
+		if (status.getNumberBatchesFailed() > 0 || status.getNumberBatchesQueued() > 0 || status.getNumberBatchesInProgress() > 0) {
+			throw new IOException("job:" + job.getId() + " has unfinished batches (failed: " + status.getNumberBatchesFailed()
+					+ ", queued: " + status.getNumberBatchesQueued() + ", inProgress: " + status.getNumberBatchesInProgress() + "). watermark is not advanced.");
+		}
+		watermark.put(OBJECT, job.getCreatedDate());
+	}
 
-		// 分割されたクエリ結果をパイプを使って、ひとつのファイルにまとめて、gzip圧縮して保存
-        Path resultFile = Paths.get("result.csv.gz");
-		try (PipedOutputStream pipedOut = new PipedOutputStream();
-             PipedInputStream pipedIn = new PipedInputStream(pipedOut);
-             BufferedWriter pipedWriter = new BufferedWriter(new OutputStreamWriter(pipedOut));
-             BufferedReader pipedReader = new BufferedReader(new InputStreamReader(pipedIn, StandardCharsets.UTF_8));
-             OutputStream os = Files.newOutputStream(resultFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-             GZIPOutputStream gzip = new GZIPOutputStream(os);
-             OutputStreamWriter ow = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
-             BufferedWriter bw = new BufferedWriter(ow);) {
+	/**
+	 * PK-chunkを使ってクエリの結果をひとつのgzipファイルに保存する.
+	 * 失敗したバッチがある場合は例外になり、途中経過と前回の結果のファイルはそのまま残る.
+	 * @return 抽出に使ったジョブ
+	 */
+	private static JobInfo extract(BulkConnection connection, OperationEnum operation, String query, Path resultFile) throws AsyncApiException, IOException, ConnectionException, InterruptedException, ExecutionException {
+		PkChunkSizer sizer = PkChunkSizer.load(Paths.get("pkchunk-stats.properties"));
+		// 途中で失敗した場合に再開できるように、ダウンロードした結果と途中経過を残しておくディレクトリ
+        Path workDir = Paths.get(resultFile + ".work");
+        Files.createDirectories(workDir);
+        ExtractCheckpoint checkpoint = ExtractCheckpoint.load(workDir.resolve("checkpoint.properties"));
 
-            ExecutorService executor = Executors.newFixedThreadPool(batchList.size() + 1);
-            // 読み取り用パイプの内容をファイルに書き込みを別スレッドで開始
-            executor.submit(() -> {
-                try {
-                    String line;
-                    while ((line = pipedReader.readLine()) != null) {
-                        bw.write(line);
-                        bw.newLine();
-                    }
-                } catch (Exception e) {
-                    logger.error("Failed.", e);
-                }
-            });
+		// 前回のジョブが途中で終わっていれば、そのジョブの続きから再開する
+		JobInfo job = reattachJob(connection, checkpoint, query);
+		String parentBatchId;
+		if (job != null) {
+			parentBatchId = checkpoint.getParentBatchId();
+			logger.info("resuming jobId: " + job.getId());
+		} else {
+			// 件数と過去の実行結果から、分割サイズを決める
+			int chunkSize = sizer.chunkSize(OBJECT, countRows(OBJECT), Integer.getInteger("SF_PK_CHUNK_BATCHES", 10));
+			job = createJob(connection, operation, chunkSize);
+			logger.info("jobId: " + job.getId());
+			// PK-chunkが有効の場合、クエリ全体を処理するためのバッチが自動で追加されるので、最初のバッチは実行されない.
+			parentBatchId = createBatch(job, connection, query).getId();
+			checkpoint.start(job.getId(), parentBatchId, query, chunkSize);
+		}
+		// 待ち時間や転送速度などを、JMXと終了時のログで確認できるようにする
+		PipelineMetrics metrics = new PipelineMetrics(OBJECT + " " + job.getId()).register();
+		// ステータスのチェックはジョブ単位でまとめて行う
+		BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId()).setMetrics(metrics);
+		
+		try {
+			// クエリ全体を処理するために追加されたバッチの情報を取得
+			List<BatchInfo> batchList = getChunkBatch(job, connection, poller, parentBatchId);
+			logger.info("chunked batch size : " + batchList.size());
 
-            // バッチごとにステータスチェック+結果をパイプに書き込み
-            for (BatchInfo chunkBatch: batchList) {
-                // ネットワークの通信量に制約がなければ非同期で行う.
-                // executor.submit(() -> BulkChunkSaveSample.retrieveResult(job, connection, chunkBatch, pipedWriter));
-                BulkChunkSaveSample.retrieveResult(job, connection, chunkBatch, pipedWriter);
+			// バッチごとの結果を同時実行数を制限して一時ファイルに並列でダウンロードし、
+			// バッチの順番どおりにひとつのファイルにまとめて、並列でgzip圧縮して保存
+            int concurrency = Integer.getInteger("SF_DOWNLOAD_CONCURRENCY", ChunkDownloader.DEFAULT_CONCURRENCY);
+            ChunkDownloader downloader = new ChunkDownloader(connection, job, poller, workDir, concurrency, checkpoint);
+            List<ChunkDownloader.Spool> spools = downloader.download(batchList);
+            // 次回以降の分割サイズの参考にするため、バッチごとの処理時間と結果のサイズを記録
+            for (ChunkDownloader.Spool spool : spools) {
+                sizer.record(OBJECT, checkpoint.getChunkSize(), spool.batchInfo, Files.size(spool.file));
             }
+            sizer.store();
 
+            // 書き込み中に失敗しても前回の結果が残るように、一時ファイルに書いてから置き換える
+            Path tmp = resultFile.resolveSibling(resultFile.getFileName() + ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                 // 圧縮がボトルネックにならないように、ブロック単位で複数スレッドで圧縮する
+                 OutputStream gzip = new ParallelGzipOutputStream(os,
+                         Integer.getInteger("SF_GZIP_LEVEL", Deflater.DEFAULT_COMPRESSION),
+                         Integer.getInteger("SF_GZIP_BLOCK_SIZE", ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE),
+                         Runtime.getRuntime().availableProcessors());
+                 WritableByteChannel out = Channels.newChannel(gzip)) {
+                long bytes = ChunkDownloader.concat(spools, out, metrics);
+                metrics.add(PipelineMetrics.UNCOMPRESSED_BYTES, bytes);
+                logger.info("saved {} bytes (uncompressed) to {}", bytes, resultFile);
+            }
+            Files.move(tmp, resultFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            metrics.add(PipelineMetrics.COMPRESSED_BYTES, Files.size(resultFile));
 
         } catch (Exception e) {
-		    logger.error("Failed.", e);
+		    logger.error("Failed. rerun to resume job " + job.getId(), e);
+		    throw e;
         } finally {
-            // ジョブ内のバッチを終了させるのと、モニタリングのため
+            poller.close();
+            // ジョブ内のバッチを終了させるのと、モニタリングのため. クローズしても結果は取得できる
             connection.closeJob(job.getId());
+            logger.info(metrics.summary());
+            metrics.close();
         }
+
+        // 全て保存できた場合のみ、一時ファイルと途中経過を削除
+        checkpoint.delete();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(workDir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(workDir);
+        return job;
+	}
+	
+	/**
+	 * PK-chunkを使ってクエリの結果を、件数とサイズで区切った複数のgzipファイルに保存する.
+	 * 結果は一時ファイルを経由せずに、ダウンロードしながら並列に書き込む.
+	 * ファイルの一覧、件数、チェックサムは同じディレクトリのマニフェストに書き出す.
+	 */
+	private static void extractShards(BulkConnection connection, String query, Path directory) throws AsyncApiException, IOException, ConnectionException, InterruptedException, ExecutionException {
+		PkChunkSizer sizer = PkChunkSizer.load(Paths.get("pkchunk-stats.properties"));
+		int chunkSize = sizer.chunkSize(OBJECT, countRows(OBJECT), Integer.getInteger("SF_PK_CHUNK_BATCHES", 10));
+		JobInfo job = createJob(connection, OperationEnum.query, chunkSize);
+		logger.info("jobId: " + job.getId());
+		PipelineMetrics metrics = new PipelineMetrics(OBJECT + " " + job.getId()).register();
+		BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId()).setMetrics(metrics);
+		try {
+			String parentBatchId = createBatch(job, connection, query).getId();
+			List<BatchInfo> batchList = getChunkBatch(job, connection, poller, parentBatchId);
+			logger.info("chunked batch size : " + batchList.size());
+			int concurrency = Integer.getInteger("SF_DOWNLOAD_CONCURRENCY", ChunkDownloader.DEFAULT_CONCURRENCY);
+			try (ShardedCsvSink sink = new ShardedCsvSink(directory, OBJECT.toLowerCase(Locale.ROOT))
+					.setMaxRows(Long.getLong("SF_SHARD_ROWS", Long.MAX_VALUE))
+					.setMaxBytes(Long.getLong("SF_SHARD_BYTES", ShardedCsvSink.DEFAULT_MAX_BYTES))
+					.setCompressionLevel(Integer.getInteger("SF_GZIP_LEVEL", Deflater.DEFAULT_COMPRESSION))) {
+				long rows = new ChunkDownloader(connection, job, poller, null, concurrency).stream(batchList, sink);
+				logger.info("--- {} rows saved to {} ---", rows, directory);
+			}
+		} finally {
+			poller.close();
+			connection.closeJob(job.getId());
+			logger.info(metrics.summary());
+			metrics.close();
+		}
+	}
+
+	/**
+	 * 途中経過に記録されたジョブが再利用できる場合はそのジョブを返す.
+	 * @return 再利用できない場合はnull
+	 */
+	private static JobInfo reattachJob(BulkConnection connection, ExtractCheckpoint checkpoint, String query) {
+		if (checkpoint.getJobId() == null || !query.equals(checkpoint.getQuery())) {
+			return null;
+		}
+		try {
+			JobInfo job = connection.getJobStatus(checkpoint.getJobId());
+			switch (job.getState()) {
+			case Aborted:
+			case Failed:
+				logger.warn("job:" + job.getId() + " is " + job.getState() + ". creating new job.");
+				return null;
+			default:
+				// 失敗したバッチは同じジョブでは再実行できない
+				if (job.getNumberBatchesFailed() > 0) {
+					logger.warn("job:" + job.getId() + " has " + job.getNumberBatchesFailed() + " failed batches. creating new job.");
+					return null;
+				}
+				return job;
+			}
+		} catch (AsyncApiException e) {
+			// 結果の保持期間を過ぎたなど
+			logger.warn("job:" + checkpoint.getJobId() + " is not available. creating new job.", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * PK-chunkの分割サイズを決めるために件数を数える.
+	 */
+	private static long countRows(String object) throws ConnectionException {
+		EnterpriseConnection epc = ConnectionUtil.createEPC();
+		return epc.query(PkChunkSizer.countQuery(object)).getSize();
 	}
 	
-	private static JobInfo createJob(BulkConnection connection) throws AsyncApiException {
+	private static JobInfo createJob(BulkConnection connection, OperationEnum operation, int chunkSize) throws AsyncApiException {
 		JobInfo job = new JobInfo();
-		job.setObject("Account");
-		job.setOperation(OperationEnum.query);
+		job.setObject(OBJECT);
+		job.setOperation(operation);
 		job.setConcurrencyMode(ConcurrencyMode.Parallel);
 		job.setContentType(ContentType.CSV);
-		connection.addHeader("Sforce-Enable-PKChunking", "chunksize=5"); // もとのデータがすくないため、わざと分割の単位を小さくする
-		job = connection.createJob(job);
+		// ヘッダはこのジョブの作成時だけに付ける
+		job = PkChunkSizer.createJob(connection, job, chunkSize, null);
 		assert job.getId() != null;
 		return connection.getJobStatus(job.getId());
 	}
@@ -88,94 +251,29 @@ public class BulkChunkSaveSample {
 		return connection.createBatchFromStream(job, bout);
 	}
 	
-	private static List<BatchInfo> getChunkBatch(JobInfo job, BulkConnection connection) throws InterruptedException, ExecutionException {
+	private static List<BatchInfo> getChunkBatch(JobInfo job, BulkConnection connection, BatchStatusPoller poller, String parentBatchId) throws InterruptedException, ExecutionException, AsyncApiException, IOException {
 		logger.info("--- getting chunk batch list ---");
 		logger.info("jobId: {}", job.getId());
 		// PK-chunkが有効の場合、クエリ全体を処理するためのバッチが自動で追加される
-		// 最初のバッチがNotProcessedになった後にそれらが実行されるので、それまで遅延させる.
-        ScheduledExecutorService checkBatchStatus = Executors.newSingleThreadScheduledExecutor();
-        CompletableFuture<List<BatchInfo>> result = new CompletableFuture<>();
-        checkBatchStatus.scheduleAtFixedRate(() -> {
-            logger.info("--- checking chunk batch status --- : {}", job.getId());
-            try {
-                BatchInfoList batchInfoList = connection.getBatchInfoList(job.getId());
-                List<BatchInfo> infoList = new ArrayList<>(Arrays.asList(batchInfoList.getBatchInfo()));
-                BatchInfo batchInfo = infoList.get(0);
-                switch (batchInfo.getState()) {
-                    case NotProcessed:
-                        // 先頭以降のバッチがクエリ結果に関するもの
-                        infoList.remove(0);
-                        result.complete(infoList);
-                        break;
-                    case Failed:
-                        logger.warn("batch:" + job.getId() + " failed.");
-                        result.complete(Collections.emptyList());
-                        break;
-                    default:
-                        logger.info("-- waiting --");
-                        logger.info("state: " + batchInfo.getState());
-                }
-            } catch (AsyncApiException e) {
-                result.completeExceptionally(e);
-            }
-        }, 5, 15, TimeUnit.SECONDS); //TODO initial delay, periodを設定ファイルへの外だし
-        result.whenComplete((results, thrown) -> {
-            checkBatchStatus.shutdownNow();
-            logger.info("--- batch is done. --- : " + job.getId());
-        });
-        return result.get();
-	}
-
-	private static void retrieveResult(JobInfo job, BulkConnection connection, BatchInfo chunkBatch, BufferedWriter pipedWriter)  {
-        logger.info("getting resultIds for " + chunkBatch.getId());
-        try {
-            ScheduledExecutorService checkBatchStatus = Executors.newSingleThreadScheduledExecutor();
-            CompletableFuture<List<String>> result = new CompletableFuture<>();
-            checkBatchStatus.scheduleAtFixedRate(() -> {
-                logger.info("--- checking batch status --- : " + chunkBatch.getId());
-                try {
-                    BatchInfo info = connection.getBatchInfo(job.getId(), chunkBatch.getId());
-                    switch (info.getState()) {
-                        case Completed:
-                            QueryResultList queryResults = connection.getQueryResultList(job.getId(), chunkBatch.getId());
-                            result.complete(Arrays.asList(queryResults.getResult()));
-                            break;
-                        case Failed:
-                            logger.warn("batch:" + chunkBatch.getId() + " failed.");
-                            result.complete(Collections.emptyList());
-                            break;
-                        default:
-                            logger.info("-- waiting --");
-                            logger.info("state: " + info.getState());
-                    }
-                } catch (AsyncApiException e) {
-                    result.completeExceptionally(e);
-                }
-            }, 1, 15, TimeUnit.SECONDS);
-
-
-            List<String> resultIds = result.get();
-            checkBatchStatus.shutdownNow();
-            logger.info("--- batch is done. --- : " + chunkBatch.getId());
-            // パイプへの書き込み
-            for (String resultId: resultIds) {
-                try (InputStream is = connection.getQueryResultStream(job.getId(), chunkBatch.getId(), resultId);
-                     BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        pipedWriter.write(line);
-                        pipedWriter.newLine();
-                    }
-                } catch (Exception e) {
-                    logger.error("Failed to save result at " + resultId, e);
-                    throw  new RuntimeException("Failed to save result");
-                }
+		// 最初のバッチがNotProcessedになった後にそれらが実行されるので、それまで待つ.
+        BatchInfo parent = poller.watch(parentBatchId).get();
+        logger.info("--- batch is done. --- : " + job.getId());
+        if (parent.getState() == BatchStateEnum.Failed) {
+            throw new IOException("batch:" + parent.getId() + " failed. " + parent.getStateMessage());
+        }
+        // 先頭のバッチ以外がクエリ結果に関するもの
+        BatchInfoList batchInfoList = connection.getBatchInfoList(job.getId());
+        List<BatchInfo> infoList = new ArrayList<>();
+        for (BatchInfo info : batchInfoList.getBatchInfo()) {
+            if (!info.getId().equals(parent.getId())) {
+                infoList.add(info);
             }
-        } catch (Exception e) {
-            logger.error("Failed to save result");
-            throw  new RuntimeException(e);
         }
-
-    }
+        // 分割したバッチがない場合は、結果が空なのではなく取得できていない
+        if (infoList.isEmpty()) {
+            throw new IOException("batch:" + parent.getId() + " is " + parent.getState() + " but no chunk batches were created.");
+        }
+        return infoList;
+	}
 
 }
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.soap.enterprise.EnterpriseConnection;
+import com.sforce.ws.ConnectionException;
+
+import bulk.BulkJobScheduler;
+import bulk.ExtractOrchestrator;
+import bulk.PkChunkSizer;
+import util.ConnectionUtil;
+
+/**
+ * 複数のオブジェクトをまとめて抽出するサンプル.
+ * 抽出するオブジェクトとクエリは、プロパティファイルに「オブジェクト名=SOQL」で記述する.
+ * <pre>
+ * Account=select Id, Name, Phone from Account
+ * Contact=select Id, LastName, Email from Contact
+ * Sample__c=select Id, Name from Sample__c
+ * </pre>
+ */
+public class BulkExtractAllSample {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkExtractAllSample.class);
+
+	public static void main(String[] args) throws ConnectionException, AsyncApiException, InterruptedException, IOException {
+		Path specFile = Paths.get(System.getProperty("SF_EXTRACT_SPECS", "extract-objects.properties"));
+		Path outputDir = Paths.get(System.getProperty("SF_EXTRACT_DIR", "extract"));
+		Files.createDirectories(outputDir);
+
+		List<ExtractOrchestrator.Spec> specs = new ArrayList<>();
+		Properties properties = new Properties();
+		if (Files.exists(specFile)) {
+			try (InputStream in = Files.newInputStream(specFile)) {
+				properties.load(in);
+			}
+		} else {
+			properties.setProperty("Account", "select Id, Name, Phone from Account");
+			properties.setProperty("Contact", "select Id, LastName, Email from Contact");
+		}
+		for (String object : properties.stringPropertyNames()) {
+			specs.add(new ExtractOrchestrator.Spec(object, properties.getProperty(object)));
+		}
+
+		// 件数を数える接続はひとつを使い回す
+		EnterpriseConnection epc = ConnectionUtil.createEPC();
+		PkChunkSizer sizer = PkChunkSizer.load(Paths.get("pkchunk-stats.properties"));
+		int threads = Integer.getInteger("SF_EXTRACT_THREADS", Runtime.getRuntime().availableProcessors() * 2);
+		try (BulkJobScheduler scheduler = new BulkJobScheduler(ConnectionUtil.createBulk(), BulkJobScheduler.DEFAULT_MAX_CONCURRENT_JOBS, 1, 5);
+			 ExtractOrchestrator orchestrator = new ExtractOrchestrator(scheduler, object -> epc.query(PkChunkSizer.countQuery(object)).getSize(), sizer, outputDir, threads)) {
+			for (ExtractOrchestrator.Result result : orchestrator.run(specs)) {
+				if (result.error == null) {
+					logger.info("{}: {} rows -> {}", result.spec, result.rowCount, result.file);
+				} else {
+					logger.error(result.spec + ": failed", result.error);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.OperationEnum;
+import com.sforce.ws.ConnectionException;
+
+import bulk.BulkIngester;
+import util.ConnectionUtil;
+
+/**
+ * bulk APIでCSVファイルを一括登録するサンプル.
+ * SObjectSampleのSOAP APIと異なり、1回の呼び出しの件数(200件)の制限を受けずに大量のレコードを登録できる.
+ */
+public class BulkIngestSample {
+	
+	private static final Logger logger = LoggerFactory.getLogger(BulkIngestSample.class);
+	
+	public static void main(String[] args) throws ConnectionException, AsyncApiException, InterruptedException, ExecutionException, IOException {
+		// 1行目に項目名(Name,ext_id__cなど)を持つCSV
+		Path input = Paths.get(System.getProperty("SF_INGEST_FILE", "accounts.csv"));
+		Path resultFile = Paths.get(System.getProperty("SF_INGEST_RESULT", "ingest-result.csv"));
+		int concurrency = Integer.getInteger("SF_INGEST_CONCURRENCY", BulkIngester.DEFAULT_CONCURRENCY);
+		
+		BulkConnection connection = ConnectionUtil.createBulk();
+		BulkIngester ingester = new BulkIngester(connection, OperationEnum.upsert, "Account")
+				.setExternalIdField("ext_id__c")
+				.setConcurrency(concurrency);
+		BulkIngester.Result result = ingester.ingest(input, resultFile);
+		// 失敗したレコードはresultFileのRowNumberで入力の何行目かを確認できる
+		logger.info("--- done --- job:{}, succeeded:{}, failed:{}, results:{}", result.jobId, result.succeeded, result.failed, resultFile);
+	}
+
+}
@@ -0,0 +1,88 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.ConcurrencyMode;
+import com.sforce.async.ContentType;
+import com.sforce.async.JobInfo;
+import com.sforce.async.OperationEnum;
+import com.sforce.soap.enterprise.EnterpriseConnection;
+import com.sforce.ws.ConnectionException;
+
+import bulk.BatchStatusPoller;
+import bulk.ChunkDownloader;
+import bulk.PipelineMetrics;
+import bulk.PkChunkSizer;
+import sink.ConnectionPool;
+import sink.JdbcSink;
+import util.ConnectionUtil;
+
+/**
+ * bulk APIの一括クエリの結果を、ファイルに保存せずにデータベースに直接登録するサンプル.
+ * 接続先は -DSF_JDBC_URL で指定する(デフォルトはカレントディレクトリのH2).
+ * 分割したバッチごとに、プールの接続を使って並列に登録する.
+ */
+public class BulkJdbcSample {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkJdbcSample.class);
+
+	private static final String OBJECT = "Account";
+
+	public static void main(String[] args) throws ConnectionException, AsyncApiException, InterruptedException, ExecutionException, IOException, SQLException {
+		String url = System.getProperty("SF_JDBC_URL", "jdbc:h2:./sfsample");
+		int concurrency = Integer.getInteger("SF_DOWNLOAD_CONCURRENCY", ChunkDownloader.DEFAULT_CONCURRENCY);
+
+		EnterpriseConnection epc = ConnectionUtil.createEPC();
+		BulkConnection connection = ConnectionUtil.createBulk();
+		PkChunkSizer sizer = PkChunkSizer.load(Paths.get("pkchunk-stats.properties"));
+		int chunkSize = sizer.chunkSize(OBJECT, epc.query(PkChunkSizer.countQuery(OBJECT)).getSize(), Integer.getInteger("SF_PK_CHUNK_BATCHES", 10));
+
+		JobInfo job = new JobInfo();
+		job.setObject(OBJECT);
+		job.setOperation(OperationEnum.query);
+		job.setConcurrencyMode(ConcurrencyMode.Parallel);
+		job.setContentType(ContentType.CSV);
+		job = PkChunkSizer.createJob(connection, job, chunkSize, null);
+		logger.info("jobId: " + job.getId());
+
+		try (ConnectionPool pool = new ConnectionPool(url, System.getProperty("SF_JDBC_USER", "sa"), System.getProperty("SF_JDBC_PASSWORD", ""), concurrency);
+			 // テーブルの列の型はdescribeの結果を使う. テーブルがない場合は作成する
+			 JdbcSink sink = new JdbcSink(pool, OBJECT).setColumnTypes(epc.describeSObject(OBJECT));
+			 PipelineMetrics metrics = new PipelineMetrics(OBJECT + " " + job.getId()).register();
+			 BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId()).setMetrics(metrics)) {
+			// PK-chunkが有効の場合、クエリ全体を処理するためのバッチが自動で追加されるので、最初のバッチは実行されない.
+			String query = "select Id, Name, Phone, AnnualRevenue, NumberOfEmployees, CreatedDate from " + OBJECT;
+			BatchInfo parent = connection.createBatchFromStream(job, new ByteArrayInputStream(query.getBytes(StandardCharsets.UTF_8)));
+			parent = poller.watch(parent.getId()).get();
+			if (parent.getState() == BatchStateEnum.Failed) {
+				logger.warn("batch:" + parent.getId() + " failed. " + parent.getStateMessage());
+				return;
+			}
+			List<BatchInfo> batchList = new ArrayList<>();
+			for (BatchInfo info : connection.getBatchInfoList(job.getId()).getBatchInfo()) {
+				if (!info.getId().equals(parent.getId())) {
+					batchList.add(info);
+				}
+			}
+			// Idでupsertするので、失敗した場合はそのまま再実行すればよい
+			long rows = new ChunkDownloader(connection, job, poller, null, concurrency).stream(batchList, sink);
+			logger.info("--- {} rows loaded into {} ---", rows, OBJECT);
+			logger.info(metrics.summary());
+		} finally {
+			connection.closeJob(job.getId());
+		}
+	}
+
+}
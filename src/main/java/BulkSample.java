@@ -1,20 +1,14 @@
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sforce.async.AsyncApiException;
 import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
 import com.sforce.async.BulkConnection;
 import com.sforce.async.ConcurrencyMode;
 import com.sforce.async.ContentType;
@@ -23,7 +17,10 @@ import com.sforce.async.OperationEnum;
 import com.sforce.async.QueryResultList;
 import com.sforce.ws.ConnectionException;
 
+import bulk.BatchStatusPoller;
+import bulk.BulkJobScheduler;
 import util.ConnectionUtil;
+import util.CsvReader;
 
 /**
  * bulk APIの一括クエリのサンプル.
@@ -35,51 +32,41 @@ public class BulkSample {
 	private static final Logger logger = LoggerFactory.getLogger(BulkSample.class);
 	
 	public static void main(String[] args) throws ConnectionException, AsyncApiException, InterruptedException, ExecutionException, IOException {
-		BulkConnection connection = ConnectionUtil.createBulk();
+		// 組織のAPIの制限を見ながらジョブを実行する. 他の抽出と同時に動かす場合は、同じスケジューラに登録する
+		try (BulkJobScheduler scheduler = new BulkJobScheduler(ConnectionUtil.createBulk(), BulkJobScheduler.DEFAULT_MAX_CONCURRENT_JOBS, 1, 5)) {
+			scheduler.submit(0, "Account query", connection -> {
+				query(connection);
+				return null;
+			}).get();
+		}
+	}
+	
+	private static void query(BulkConnection connection) throws AsyncApiException, InterruptedException, ExecutionException, IOException {
 		JobInfo job = createJob(connection);
 		String query = "select Id, Name, Phone from Account";
 		BatchInfo batch = createBatch(job, connection, query);
 		
 		// バッチが完了したかどうかを定期的にステータスを取得するリクエストをすることで判定
-		ScheduledExecutorService checkBatchStatus = Executors.newSingleThreadScheduledExecutor();
-		CompletableFuture<String[]> result = new CompletableFuture<>();
-		checkBatchStatus.scheduleAtFixedRate(() -> {
-			logger.info("--- checking batch status ---");
-			try {
-				BatchInfo info = connection.getBatchInfo(job.getId(), batch.getId());
-				switch (info.getState()) {
-				case Completed:
-					QueryResultList queryResults = connection.getQueryResultList(job.getId(), batch.getId());
-					result.complete(queryResults.getResult());
-					break;
-				case Failed:
-					logger.warn("batch:" + batch.getId() + " failed.");
-					result.complete(new String[]{});
-					break;
-				default:
-					logger.info("-- waiting --");
-					logger.info("state: " + info.getState());
-				}
-			} catch (AsyncApiException e) {
-				result.completeExceptionally(e);
-			}
-		}, 1, 15, TimeUnit.SECONDS);
-		
-		result.whenComplete((results, thrown) -> {
-			checkBatchStatus.shutdownNow();
-			logger.info("--- batch is done. ---");
-		});
+		BatchInfo info;
+		try (BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId())) {
+			info = poller.watch(batch.getId()).get();
+		}
+		logger.info("--- batch is done. ---");
 		
 		// バッチ完了後に結果を取得
-		String[] resultIds = result.get();
+		String[] resultIds = new String[]{};
+		if (info.getState() == BatchStateEnum.Completed) {
+			QueryResultList queryResults = connection.getQueryResultList(job.getId(), batch.getId());
+			resultIds = queryResults.getResult();
+		}
 		logger.info("--- results ---");
 		for (String resultId: resultIds) {
 			InputStream is = connection.getQueryResultStream(job.getId(), batch.getId(), resultId);
 			// とりあえず標準出力. 実際はファイルとして保存してそれをDBに登録するなど
-			try(BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-				String line = null;
-				while((line = br.readLine()) != null) {
-					logger.info(line);
+			// ダブルクォート内の改行を含むレコードも1件として読み込む. 文字列への変換はログ出力時のみ行う
+			try(CsvReader reader = new CsvReader(is)) {
+				while(reader.next()) {
+					logger.info("{}", reader);
 				}
 			}
 			
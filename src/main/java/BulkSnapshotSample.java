@@ -0,0 +1,116 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.ConcurrencyMode;
+import com.sforce.async.ContentType;
+import com.sforce.async.JobInfo;
+import com.sforce.async.OperationEnum;
+import com.sforce.soap.enterprise.EnterpriseConnection;
+import com.sforce.ws.ConnectionException;
+
+import bulk.BatchStatusPoller;
+import bulk.ChunkDownloader;
+import bulk.PipelineMetrics;
+import bulk.PkChunkSizer;
+import snapshot.SnapshotReader;
+import snapshot.SnapshotWriter;
+import util.ConnectionUtil;
+import util.IdIndex;
+
+/**
+ * bulk APIの一括クエリの結果を、CSVではなく列ごとにエンコードしたスナップショットに保存するサンプル.
+ * 保存した後に、ひとつの列だけを読み込んでその時間を確認する.
+ * 保存先は -DSF_SNAPSHOT_FILE で指定する(デフォルトは account.snapshot).
+ * 重複したIdの行は保存せず、Idから行番号を引く索引を同じ名前の.idxファイルに作成する.
+ */
+public class BulkSnapshotSample {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkSnapshotSample.class);
+
+	private static final String OBJECT = "Account";
+
+	public static void main(String[] args) throws ConnectionException, AsyncApiException, InterruptedException, ExecutionException, IOException {
+		Path file = Paths.get(System.getProperty("SF_SNAPSHOT_FILE", "account.snapshot"));
+		int concurrency = Integer.getInteger("SF_DOWNLOAD_CONCURRENCY", ChunkDownloader.DEFAULT_CONCURRENCY);
+
+		EnterpriseConnection epc = ConnectionUtil.createEPC();
+		BulkConnection connection = ConnectionUtil.createBulk();
+		PkChunkSizer sizer = PkChunkSizer.load(Paths.get("pkchunk-stats.properties"));
+		long count = epc.query(PkChunkSizer.countQuery(OBJECT)).getSize();
+		int chunkSize = sizer.chunkSize(OBJECT, count, Integer.getInteger("SF_PK_CHUNK_BATCHES", 10));
+
+		JobInfo job = new JobInfo();
+		job.setObject(OBJECT);
+		job.setOperation(OperationEnum.query);
+		job.setConcurrencyMode(ConcurrencyMode.Parallel);
+		job.setContentType(ContentType.CSV);
+		job = PkChunkSizer.createJob(connection, job, chunkSize, null);
+		logger.info("jobId: " + job.getId());
+
+		try (PipelineMetrics metrics = new PipelineMetrics(OBJECT + " " + job.getId()).register();
+			 BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId()).setMetrics(metrics)) {
+			// PK-chunkが有効の場合、クエリ全体を処理するためのバッチが自動で追加されるので、最初のバッチは実行されない.
+			String query = "select Id, Name, Phone, Type, Industry, OwnerId, CreatedDate from " + OBJECT;
+			BatchInfo parent = connection.createBatchFromStream(job, new ByteArrayInputStream(query.getBytes(StandardCharsets.UTF_8)));
+			parent = poller.watch(parent.getId()).get();
+			if (parent.getState() == BatchStateEnum.Failed) {
+				logger.warn("batch:" + parent.getId() + " failed. " + parent.getStateMessage());
+				return;
+			}
+			List<BatchInfo> batchList = new ArrayList<>();
+			for (BatchInfo info : connection.getBatchInfoList(job.getId()).getBatchInfo()) {
+				if (!info.getId().equals(parent.getId())) {
+					batchList.add(info);
+				}
+			}
+			// バッチごとの結果を、ダウンロードしながら並列にエンコードする
+			try (IdIndex index = IdIndex.create(Paths.get(file + ".idx"), count);
+				 SnapshotWriter writer = new SnapshotWriter(file).setIdIndex(index)) {
+				long rows = new ChunkDownloader(connection, job, poller, null, concurrency).stream(batchList, writer);
+				logger.info("--- {} rows saved to {} ---", rows, file);
+			}
+			logger.info(metrics.summary());
+		} finally {
+			connection.closeJob(job.getId());
+		}
+
+		// 選択リストの列は辞書になっているので、値ごとにStringを作らずに読める
+		try (SnapshotReader reader = SnapshotReader.open(file)) {
+			long start = System.nanoTime();
+			SnapshotReader.Scan scan = reader.scan("Industry");
+			long industries = 0;
+			while (scan.next()) {
+				if (!scan.isNull(0)) {
+					industries++;
+				}
+			}
+			logger.info("{} of {} rows have Industry. scanned in {} ms", industries, reader.getRowCount(), (System.nanoTime() - start) / 1000000);
+
+			// 索引からIdの行番号を引いて、その行だけを読む
+			SnapshotReader.Scan first = reader.scan("Id");
+			if (first.next()) {
+				try (IdIndex index = IdIndex.open(Paths.get(file + ".idx"))) {
+					long row = index.get(first.getString(0));
+					SnapshotReader.Scan one = reader.scan("Id", "Name").setRowRange(row, row + 1);
+					if (one.next()) {
+						logger.info("row {}: {} {}", row, one.getString(0), one.getString(1));
+					}
+				}
+			}
+		}
+	}
+
+}
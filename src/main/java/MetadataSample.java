@@ -1,12 +1,18 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sforce.soap.metadata.CustomObject;
 import com.sforce.soap.metadata.Metadata;
 import com.sforce.soap.metadata.MetadataConnection;
-import com.sforce.soap.metadata.ReadResult;
 import com.sforce.ws.ConnectionException;
 
+import metadata.MetadataCache;
 import util.ConnectionUtil;
 
 /**
@@ -18,21 +24,20 @@ public class MetadataSample {
 	
 	private static final Logger logger = LoggerFactory.getLogger(MetadataSample.class);
 
-    public static void main(String[] args) throws ConnectionException {
+    public static void main(String[] args) throws ConnectionException, IOException, InterruptedException, ExecutionException {
     	// CustomObjectのmetadataを取得
         MetadataConnection connection = ConnectionUtil.createMetadata();
-        ReadResult readResult = connection.readMetadata("CustomObject", new String[]{"test__c"});
-        Metadata[] metadata = readResult.getRecords();
-        logger.info("records: " + metadata.length);
-        for (Metadata data: metadata) {
-        	if (data != null) {
-        		logger.info("metadata: " + data);
-                CustomObject co = (CustomObject) data;
-                logger.info("co: " + co);
-        	} else {
-        		logger.info("Empty metadata.");
-        	}
-            
+        // 前回から更新されていないものはファイルから読み込む
+        MetadataCache cache = new MetadataCache(connection, Paths.get("metadata-cache"));
+        Map<String, Metadata> metadata = cache.read("CustomObject", Arrays.asList("test__c"));
+        logger.info("records: " + metadata.size());
+        for (Metadata data: metadata.values()) {
+        	logger.info("metadata: " + data);
+            CustomObject co = (CustomObject) data;
+            logger.info("co: " + co);
+        }
+        if (metadata.isEmpty()) {
+        	logger.info("Empty metadata.");
         }
     }
 
@@ -1,3 +1,7 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -5,7 +9,12 @@ import com.sforce.soap.enterprise.EnterpriseConnection;
 import com.sforce.soap.enterprise.QueryResult;
 import com.sforce.soap.enterprise.sobject.Contact;
 import com.sforce.soap.enterprise.sobject.SObject;
+import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.ws.ConnectionException;
+
+import soap.PartnerRecordReader;
+import soap.QueryCache;
+import soap.QueryIterator;
 import util.ConnectionUtil;
 
 /**
@@ -21,12 +30,12 @@ public class QuerySample {
         EnterpriseConnection connection = ConnectionUtil.createEPC();
         // 全てのフィールドが返却されるが、値がセットされるのはselect句で指定されたもののみ
         String sql = "select Id, FirstName, LastName, LastModifiedDate from Contact limit 5";
-        QueryResult results = connection.query(sql);
-        if (results.getSize() > 0) {
-            for (SObject so: results.getRecords()) {
+        // queryMoreで2000件を超える分も取得する. 次のページは処理中に先読みされる
+        try (QueryIterator it = QueryIterator.query(connection, sql, QueryIterator.MAX_BATCH_SIZE)) {
+            it.forEachRemaining(so -> {
                 Contact c = (Contact) so;
                 logger.info("contact:" + c);
-            }
+            });
         }
         
         logger.info("-----");
@@ -40,6 +49,23 @@ public class QuerySample {
         		logger.info("custom object as so:" + so);
             }
         }
+        
+        logger.info("-----");
+        logger.info("Query Cache");
+        // 何度も検索する参照用のデータは、結果をキャッシュして使い回す. 有効期限が切れても、変更されていなければ取得し直さない
+        QueryCache cache = new QueryCache(c2).setTtl(1, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++) {
+        	List<SObject> records = cache.query(sql2);
+        	logger.info("{} records from cache (hits: {}, misses: {})", records.size(), cache.getHits(), cache.getMisses());
+        }
+        
+        logger.info("-----");
+        logger.info("Partner API");
+        // Partner APIでは型付きのクラスを使わず、指定した項目の値だけを保持する. WSDLにないカスタムオブジェクトも検索できる
+        PartnerConnection partner = ConnectionUtil.createPartner();
+        try (PartnerRecordReader reader = PartnerRecordReader.query(partner, "s1__c", Arrays.asList("id__c", "note__c", "Name"), null, QueryIterator.MAX_BATCH_SIZE)) {
+        	reader.forEachRemaining(record -> logger.info("custom object as record:" + record));
+        }
 
     }
 
@@ -2,19 +2,18 @@
  * Created by nakamura_jun on 2016/12/26.
  */
 
-import com.sforce.soap.enterprise.EnterpriseConnection;
 import com.sforce.soap.enterprise.SaveResult;
 import com.sforce.soap.enterprise.UpsertResult;
 import com.sforce.soap.enterprise.sobject.Account;
-import com.sforce.soap.enterprise.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import java.time.LocalDate;
-import util.ConnectionUtil;
+import soap.SoapWriteBatcher;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -29,20 +28,24 @@ public class SObjectSample {
 	
 	private static final Logger logger = LoggerFactory.getLogger(SObjectSample.class);
 
-    public static void main(String[] args) throws ConnectionException, InterruptedException {
-        EnterpriseConnection connection = ConnectionUtil.createEPC();
+    public static void main(String[] args) throws ConnectionException, InterruptedException, ExecutionException {
+        // 200件ごとに分割して、セッションを共有する複数の接続で並列に書き込む
+        try (SoapWriteBatcher batcher = SoapWriteBatcher.create(SoapWriteBatcher.DEFAULT_POOL_SIZE)) {
+            write(batcher);
+        }
+    }
+
+    private static void write(SoapWriteBatcher batcher) throws InterruptedException, ExecutionException {
 
-        SObject[] so = new SObject[200];
         List<Account> accounts = new ArrayList<>();
         for (int i = 0; i < 200; i++) {
             Account account = new Account();
             account.setName("000test-upsert-" + i + "-" + LocalDate.now());
             account.setExt_id__c(UUID.randomUUID().toString());
-            so[i] = account;
             accounts.add(account);
         }
         
-        SaveResult[] res = connection.create(so);
+        SaveResult[] res = batcher.create(accounts);
 
         for (SaveResult result: res) {
         	logger.info(result.toString());
@@ -73,7 +76,8 @@ public class SObjectSample {
         _accounts.add(dummy);
         
         
-        UpsertResult[] res2 = connection.upsert("ext_id__c", _accounts.toArray(new Account[_accounts.size()]));
+        // 200件を超えても、呼び出しは自動で分割される. 結果は_accountsと同じ順番
+        UpsertResult[] res2 = batcher.upsert("ext_id__c", _accounts);
         for (UpsertResult result: res2) {
         	logger.info("upsert: {}", result);
         }
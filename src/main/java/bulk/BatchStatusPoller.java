@@ -0,0 +1,292 @@
+package bulk;
+
+import java.util.Calendar;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.AsyncExceptionCode;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+
+/**
+ * ジョブ単位でバッチのステータスをまとめて監視するクラス.
+ * 1回のチェックで{@link BulkConnection#getBatchInfoList(String)}を呼び出し、
+ * 監視対象のバッチが終了状態になったものから{@link CompletableFuture}を完了させる.
+ *
+ * バッチが次々と完了している間は短い間隔で、Queuedのまま待たされている間は間隔を伸ばしてチェックする.
+ * チェックが通信エラーなどで失敗した場合も、間隔を伸ばして続ける. 連続して失敗した場合と、
+ * セッションやジョブが無効になった場合だけ、監視中の全てのバッチを失敗にする.
+ */
+public class BatchStatusPoller implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchStatusPoller.class);
+
+	public static final long DEFAULT_MIN_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	public static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/** チェックが連続して失敗したときに、監視をやめるまでの回数 */
+	public static final int DEFAULT_MAX_CONSECUTIVE_ERRORS = 5;
+
+	/** やり直しても成功しないエラー */
+	private static final Set<AsyncExceptionCode> FATAL = EnumSet.of(AsyncExceptionCode.InvalidSessionId, AsyncExceptionCode.InvalidJob,
+			AsyncExceptionCode.InvalidJobState, AsyncExceptionCode.InvalidUser, AsyncExceptionCode.InvalidUrl, AsyncExceptionCode.InvalidVersion,
+			AsyncExceptionCode.FeatureNotEnabled);
+
+	/** これ以上状態が変わらないバッチの状態. PK-chunkの親バッチはNotProcessedで終了する. */
+	private static final Set<BatchStateEnum> DONE = EnumSet.of(BatchStateEnum.Completed, BatchStateEnum.Failed, BatchStateEnum.NotProcessed);
+
+	private final BulkConnection connection;
+
+	private final String jobId;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final boolean ownScheduler;
+
+	private final long minDelayMillis;
+
+	private final long maxDelayMillis;
+
+	private final Map<String, CompletableFuture<BatchInfo>> pending = new ConcurrentHashMap<>();
+
+	/** Queuedでなくなったことを確認済みのバッチ. 待ち時間は1回だけ記録する */
+	private final Set<String> started = ConcurrentHashMap.newKeySet();
+
+	private volatile PipelineMetrics metrics;
+
+	private long delayMillis;
+
+	private int maxConsecutiveErrors = DEFAULT_MAX_CONSECUTIVE_ERRORS;
+
+	/** 連続して失敗したチェックの回数 */
+	private int errors;
+
+	private ScheduledFuture<?> nextTick;
+
+	private volatile Throwable failure;
+
+	private volatile boolean closed;
+
+	/**
+	 * 専用のスレッドを1つ持つpollerを作成する.
+	 */
+	public static BatchStatusPoller start(BulkConnection connection, String jobId) {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "batch-poller-" + jobId);
+			t.setDaemon(true);
+			return t;
+		});
+		return new BatchStatusPoller(connection, jobId, scheduler, true, DEFAULT_MIN_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	/**
+	 * 複数ジョブでschedulerを共有する場合. schedulerのシャットダウンは呼び出し側で行う.
+	 */
+	public static BatchStatusPoller start(BulkConnection connection, String jobId, ScheduledExecutorService scheduler, long minDelayMillis, long maxDelayMillis) {
+		return new BatchStatusPoller(connection, jobId, scheduler, false, minDelayMillis, maxDelayMillis);
+	}
+
+	private BatchStatusPoller(BulkConnection connection, String jobId, ScheduledExecutorService scheduler, boolean ownScheduler, long minDelayMillis, long maxDelayMillis) {
+		if (minDelayMillis <= 0 || maxDelayMillis < minDelayMillis) {
+			throw new IllegalArgumentException("invalid delay: min=" + minDelayMillis + ", max=" + maxDelayMillis);
+		}
+		this.connection = connection;
+		this.jobId = jobId;
+		this.scheduler = scheduler;
+		this.ownScheduler = ownScheduler;
+		this.minDelayMillis = minDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.delayMillis = minDelayMillis;
+		this.metrics = new PipelineMetrics(jobId);
+	}
+
+	/**
+	 * チェックの回数と、バッチごとの待ち時間・処理時間を記録する先. 指定しない場合はこのpoller専用のものに記録する.
+	 */
+	public BatchStatusPoller setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * チェックが何回続けて失敗したら、監視中のバッチを失敗にするか.
+	 */
+	public synchronized BatchStatusPoller setMaxConsecutiveErrors(int maxConsecutiveErrors) {
+		if (maxConsecutiveErrors < 1) {
+			throw new IllegalArgumentException("maxConsecutiveErrors must be positive: " + maxConsecutiveErrors);
+		}
+		this.maxConsecutiveErrors = maxConsecutiveErrors;
+		return this;
+	}
+
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * バッチを監視対象に追加する.
+	 * @param batchId 監視するバッチ
+	 * @return バッチがCompleted, Failed, NotProcessedのいずれかになったときに完了するfuture
+	 */
+	public synchronized CompletableFuture<BatchInfo> watch(String batchId) {
+		if (failure != null) {
+			CompletableFuture<BatchInfo> failed = new CompletableFuture<>();
+			failed.completeExceptionally(failure);
+			return failed;
+		}
+		if (closed) {
+			throw new IllegalStateException("poller is already closed: " + jobId);
+		}
+		CompletableFuture<BatchInfo> result = pending.computeIfAbsent(batchId, id -> new CompletableFuture<>());
+		// 新しく追加されたバッチはすぐに終わるかもしれないので、間隔を戻してチェックし直す.
+		// チェック中の場合は、そのチェックの最後に次回分がスケジュールされる.
+		delayMillis = minDelayMillis;
+		if (nextTick == null || nextTick.getDelay(TimeUnit.MILLISECONDS) > minDelayMillis) {
+			reschedule(minDelayMillis);
+		}
+		return result;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	/** 現在監視中のバッチの数 */
+	public int pendingCount() {
+		return pending.size();
+	}
+
+	private synchronized void reschedule(long delay) {
+		if (closed) {
+			return;
+		}
+		if (nextTick != null) {
+			nextTick.cancel(false);
+		}
+		nextTick = scheduler.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void tick() {
+		synchronized (this) {
+			if (pending.isEmpty() || closed) {
+				nextTick = null;
+				return;
+			}
+		}
+		logger.info("--- checking batch status --- : {} ({} batches)", jobId, pending.size());
+		BatchInfo[] infoList;
+		try {
+			infoList = connection.getBatchInfoList(jobId).getBatchInfo();
+		} catch (AsyncApiException | RuntimeException e) {
+			synchronized (this) {
+				errors++;
+				if (e instanceof AsyncApiException && !FATAL.contains(((AsyncApiException) e).getExceptionCode()) && errors < maxConsecutiveErrors) {
+					delayMillis = Math.min(maxDelayMillis, delayMillis * 2);
+					logger.warn("failed to check batch status of {} ({} of {}). next check in {} ms: {}", jobId, errors, maxConsecutiveErrors, delayMillis, e.toString());
+					reschedule(delayMillis);
+					return;
+				}
+				failure = e;
+				nextTick = null;
+				pending.values().forEach(f -> f.completeExceptionally(e));
+				pending.clear();
+			}
+			return;
+		}
+		metrics.increment(PipelineMetrics.POLLS);
+		synchronized (this) {
+			errors = 0;
+		}
+
+		int done = 0;
+		boolean queuedOnly = true;
+		for (BatchInfo info : infoList) {
+			CompletableFuture<BatchInfo> result = pending.get(info.getId());
+			if (result == null) {
+				continue;
+			}
+			record(info);
+			if (DONE.contains(info.getState())) {
+				if (info.getState() == BatchStateEnum.Failed) {
+					logger.warn("batch:" + info.getId() + " failed. " + info.getStateMessage());
+				}
+				pending.remove(info.getId());
+				result.complete(info);
+				done++;
+			} else if (info.getState() != BatchStateEnum.Queued) {
+				queuedOnly = false;
+			}
+		}
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				logger.info("--- all batches are done. --- : {}", jobId);
+				nextTick = null;
+				return;
+			}
+			if (done > 0) {
+				delayMillis = minDelayMillis;
+			} else if (queuedOnly) {
+				// サーバ側で待たされている間はAPIコールを節約する
+				delayMillis = Math.min(maxDelayMillis, delayMillis * 2);
+			} else {
+				delayMillis = Math.min(maxDelayMillis, delayMillis + delayMillis / 2);
+			}
+			logger.info("-- waiting -- : {} batches, next check in {} ms", pending.size(), delayMillis);
+			reschedule(delayMillis);
+		}
+	}
+
+	/**
+	 * Queuedでなくなったときに待ち時間を、終了したときに処理時間を記録する.
+	 * 待ち時間はサーバの作成日時との差なので、チェックの間隔の分だけ長めになる.
+	 */
+	private void record(BatchInfo info) {
+		BatchStateEnum state = info.getState();
+		if (state != BatchStateEnum.Queued && info.getCreatedDate() != null && started.add(info.getId())) {
+			long created = info.getCreatedDate().getTimeInMillis();
+			Calendar modstamp = info.getSystemModstamp();
+			if (DONE.contains(state) && modstamp != null) {
+				// チェックの間に終わっていた場合は、サーバの時刻だけで計算する
+				metrics.record(PipelineMetrics.QUEUE_WAIT_MILLIS, modstamp.getTimeInMillis() - created - info.getTotalProcessingTime());
+			} else {
+				metrics.record(PipelineMetrics.QUEUE_WAIT_MILLIS, System.currentTimeMillis() - created);
+			}
+		}
+		if (state == BatchStateEnum.Completed || state == BatchStateEnum.Failed) {
+			metrics.record(PipelineMetrics.SERVER_PROCESSING_MILLIS, info.getTotalProcessingTime());
+			metrics.increment(state == BatchStateEnum.Failed ? PipelineMetrics.FAILED_BATCHES : PipelineMetrics.BATCHES);
+		}
+	}
+
+	/**
+	 * 監視を終了する. 終了していないバッチのfutureはキャンセルされる.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			if (nextTick != null) {
+				nextTick.cancel(false);
+			}
+		}
+		pending.values().forEach(f -> f.cancel(false));
+		pending.clear();
+		if (ownScheduler) {
+			scheduler.shutdownNow();
+		}
+	}
+
+}
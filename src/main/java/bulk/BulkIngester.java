@@ -0,0 +1,315 @@
+package bulk;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.ConcurrencyMode;
+import com.sforce.async.ContentType;
+import com.sforce.async.JobInfo;
+import com.sforce.async.OperationEnum;
+
+import util.CsvReader;
+
+/**
+ * CSVファイルをBulk APIで登録(insert/update/upsert)するクラス.
+ *
+ * 入力を1レコードずつ読み込みながら、件数とサイズの上限に収まるバッチに分割して、並列に送信する.
+ * 送信中のバッチは同時実行数までしか保持しないので、ファイルの大きさに関わらずメモリの使用量は一定になる.
+ *
+ * 全てのバッチの完了後に、レコードごとの結果を入力のレコード番号と対応付けてひとつのCSVに出力する.
+ * <pre>
+ * "RowNumber","Id","Success","Created","Error"
+ * </pre>
+ * RowNumberはヘッダを1とした入力ファイルのレコード番号. 値に改行を含むレコードがなければ行番号と一致する.
+ */
+public class BulkIngester {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkIngester.class);
+
+	/** 1バッチのレコード数の上限 */
+	public static final int MAX_BATCH_RECORDS = 10000;
+
+	/** 1バッチのサイズの上限(10MB) */
+	public static final int MAX_BATCH_BYTES = 10000000;
+
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	private static final byte[] RESULT_HEADER = "\"RowNumber\",\"Id\",\"Success\",\"Created\",\"Error\"\n".getBytes(StandardCharsets.UTF_8);
+
+	private final BulkConnection connection;
+
+	private final OperationEnum operation;
+
+	private final String object;
+
+	private String externalIdField;
+
+	private int maxBatchRecords = MAX_BATCH_RECORDS;
+
+	private int maxBatchBytes = MAX_BATCH_BYTES;
+
+	private int concurrency = DEFAULT_CONCURRENCY;
+
+	public BulkIngester(BulkConnection connection, OperationEnum operation, String object) {
+		if (operation != OperationEnum.insert && operation != OperationEnum.update && operation != OperationEnum.upsert) {
+			throw new IllegalArgumentException("unsupported operation: " + operation);
+		}
+		this.connection = connection;
+		this.operation = operation;
+		this.object = object;
+	}
+
+	/** upsertの場合の外部ID項目 */
+	public BulkIngester setExternalIdField(String externalIdField) {
+		this.externalIdField = externalIdField;
+		return this;
+	}
+
+	public BulkIngester setMaxBatchRecords(int maxBatchRecords) {
+		if (maxBatchRecords < 1 || maxBatchRecords > MAX_BATCH_RECORDS) {
+			throw new IllegalArgumentException("maxBatchRecords must be between 1 and " + MAX_BATCH_RECORDS + ": " + maxBatchRecords);
+		}
+		this.maxBatchRecords = maxBatchRecords;
+		return this;
+	}
+
+	public BulkIngester setMaxBatchBytes(int maxBatchBytes) {
+		if (maxBatchBytes < 1 || maxBatchBytes > MAX_BATCH_BYTES) {
+			throw new IllegalArgumentException("maxBatchBytes must be between 1 and " + MAX_BATCH_BYTES + ": " + maxBatchBytes);
+		}
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+
+	/** 同時に送信するバッチの数 */
+	public BulkIngester setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+		}
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * 入力ファイルを登録し、レコードごとの結果をresultFileに出力する.
+	 * @param input 1行目がヘッダ(項目のAPI参照名)のUTF-8のCSV
+	 */
+	public Result ingest(Path input, Path resultFile) throws IOException, AsyncApiException, InterruptedException, ExecutionException {
+		JobInfo job = createJob();
+		logger.info("job created: {} ({} {})", job.getId(), operation, object);
+		List<Batch> batches;
+		try {
+			batches = upload(job, input);
+		} catch (IOException | InterruptedException | ExecutionException | RuntimeException e) {
+			logger.error("Failed to upload batches. aborting job " + job.getId(), e);
+			connection.abortJob(job.getId());
+			throw e;
+		}
+		connection.closeJob(job.getId());
+		logger.info("{} batches uploaded. waiting for results.", batches.size());
+
+		Result result = new Result(job.getId());
+		try (BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId());
+				OutputStream out = new BufferedOutputStream(Files.newOutputStream(resultFile))) {
+			List<CompletableFuture<BatchInfo>> futures = new ArrayList<>();
+			for (Batch batch : batches) {
+				futures.add(poller.watch(batch.id));
+			}
+			out.write(RESULT_HEADER);
+			// 入力の順番どおりに出力するため、先頭のバッチから順に結果を取得する
+			for (int i = 0; i < batches.size(); i++) {
+				writeResults(job, batches.get(i), futures.get(i).get(), out, result);
+			}
+		}
+		logger.info("job {} done. {} records, {} succeeded, {} failed", job.getId(), result.records, result.succeeded, result.failed);
+		return result;
+	}
+
+	private JobInfo createJob() throws AsyncApiException {
+		JobInfo job = new JobInfo();
+		job.setObject(object);
+		job.setOperation(operation);
+		job.setConcurrencyMode(ConcurrencyMode.Parallel);
+		job.setContentType(ContentType.CSV);
+		if (operation == OperationEnum.upsert) {
+			if (externalIdField == null) {
+				throw new IllegalStateException("externalIdField is required for upsert");
+			}
+			job.setExternalIdFieldName(externalIdField);
+		}
+		return connection.createJob(job);
+	}
+
+	/**
+	 * 入力を分割してバッチを作成する. 送信中のバッチが同時実行数に達している間は、読み込みを待つ.
+	 */
+	private List<Batch> upload(JobInfo job, Path input) throws IOException, InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		Semaphore inFlight = new Semaphore(concurrency);
+		List<CompletableFuture<Batch>> futures = new ArrayList<>();
+		try (CsvReader reader = new CsvReader(Files.newInputStream(input))) {
+			if (!reader.readHeader()) {
+				throw new IllegalArgumentException("input has no header: " + input);
+			}
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			reader.writeRecord(header);
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			ByteArrayOutputStream batch = newBatch(header);
+			int count = 0;
+			long firstRow = 0;
+			while (reader.next()) {
+				record.reset();
+				reader.writeRecord(record);
+				if (header.size() + record.size() > maxBatchBytes) {
+					throw new IllegalArgumentException("record " + reader.getRecordNumber() + " exceeds " + maxBatchBytes + " bytes");
+				}
+				if (count == maxBatchRecords || batch.size() + record.size() > maxBatchBytes) {
+					futures.add(submit(job, batch, firstRow, count, executor, inFlight));
+					batch = newBatch(header);
+					count = 0;
+					// 送信に失敗したバッチがあれば残りは読まずに終了する
+					if (futures.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+						break;
+					}
+				}
+				if (count == 0) {
+					firstRow = reader.getRecordNumber();
+				}
+				record.writeTo(batch);
+				count++;
+			}
+			if (count > 0) {
+				futures.add(submit(job, batch, firstRow, count, executor, inFlight));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+		} finally {
+			executor.shutdownNow();
+		}
+		List<Batch> batches = new ArrayList<>();
+		for (CompletableFuture<Batch> future : futures) {
+			batches.add(future.get());
+		}
+		return batches;
+	}
+
+	private static ByteArrayOutputStream newBatch(ByteArrayOutputStream header) throws IOException {
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+		header.writeTo(batch);
+		return batch;
+	}
+
+	private CompletableFuture<Batch> submit(JobInfo job, ByteArrayOutputStream data, long firstRow, int count, ExecutorService executor, Semaphore inFlight) throws InterruptedException {
+		inFlight.acquire();
+		byte[] bytes = data.toByteArray();
+		return CompletableFuture.supplyAsync(() -> {
+			try (InputStream is = new ByteArrayInputStream(bytes)) {
+				BatchInfo info = connection.createBatchFromStream(job, is);
+				logger.info("batch created: {} (rows {}-{}, {} bytes)", info.getId(), firstRow, firstRow + count - 1, bytes.length);
+				return new Batch(info.getId(), firstRow, count);
+			} catch (IOException | AsyncApiException e) {
+				logger.error("Failed to create batch for rows " + firstRow + "-" + (firstRow + count - 1), e);
+				throw new CompletionException(e);
+			} finally {
+				inFlight.release();
+			}
+		}, executor);
+	}
+
+	private void writeResults(JobInfo job, Batch batch, BatchInfo info, OutputStream out, Result result) throws IOException, AsyncApiException {
+		if (info.getState() != BatchStateEnum.Completed) {
+			// バッチ自体が失敗した場合は、全てのレコードを失敗として出力する
+			logger.warn("batch:{} is {}: {}", info.getId(), info.getState(), info.getStateMessage());
+			String error = "\"\",\"false\",\"false\",\"" + String.valueOf(info.getStateMessage()).replace("\"", "\"\"") + "\"\n";
+			for (int i = 0; i < batch.count; i++) {
+				writeRowNumber(out, batch.firstRow + i);
+				out.write(error.getBytes(StandardCharsets.UTF_8));
+			}
+			result.records += batch.count;
+			result.failed += batch.count;
+			return;
+		}
+		try (CsvReader reader = new CsvReader(connection.getBatchResultStream(job.getId(), info.getId()))) {
+			reader.readHeader();
+			int success = reader.columnIndex("Success");
+			long row = batch.firstRow;
+			while (reader.next()) {
+				writeRowNumber(out, row++);
+				reader.writeRecord(out);
+				if (reader.getBoolean(success)) {
+					result.succeeded++;
+				} else {
+					result.failed++;
+				}
+				result.records++;
+			}
+			if (row != batch.firstRow + batch.count) {
+				logger.warn("batch:{} returned {} results for {} records", info.getId(), row - batch.firstRow, batch.count);
+			}
+		}
+	}
+
+	private static void writeRowNumber(OutputStream out, long row) throws IOException {
+		out.write(('"' + Long.toString(row) + "\",").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * 送信したバッチと、入力ファイル上の範囲.
+	 */
+	private static class Batch {
+
+		final String id;
+
+		final long firstRow;
+
+		final int count;
+
+		Batch(String id, long firstRow, int count) {
+			this.id = id;
+			this.firstRow = firstRow;
+			this.count = count;
+		}
+
+	}
+
+	/**
+	 * 登録結果の件数.
+	 */
+	public static class Result {
+
+		public final String jobId;
+
+		public long records;
+
+		public long succeeded;
+
+		public long failed;
+
+		Result(String jobId) {
+			this.jobId = jobId;
+		}
+
+	}
+
+}
@@ -0,0 +1,325 @@
+package bulk;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.BulkConnection;
+
+import util.ConnectionUtil;
+import util.HttpTransport;
+import util.TokenBucket;
+
+/**
+ * 組織のAPIの制限を超えないように、Bulk APIのジョブを順番に実行するクラス.
+ *
+ * ジョブは優先度の高い順に、同時実行数の上限まで実行する.
+ * 1日あたりのAPIリクエスト数とバッチ数の残りを/limitsで取得し、実行中の呼び出しで差し引きながら、
+ * 予備として残す分を下回りそうになったら、残りが回復するまでジョブの開始とバッチの作成を待たせる.
+ * APIリクエスト数は、Bulk APIの応答のSforce-Limit-Infoヘッダでも更新する({@link HttpTransport}で通信する場合).
+ * ステータスの確認と結果のダウンロードは、トークンバケットで1秒あたりの回数を制限する.
+ *
+ * ジョブには、これらの制限を適用したBulkConnectionを渡す.
+ */
+public class BulkJobScheduler implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkJobScheduler.class);
+
+	public static final int DEFAULT_MAX_CONCURRENT_JOBS = 5;
+
+	/** 残りが少ないときに、/limitsを取得し直す間隔 */
+	private static final long LIMITS_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * スケジューラで実行するジョブ.
+	 */
+	@FunctionalInterface
+	public interface Job<T> {
+		/**
+		 * @param connection 制限を適用した接続. ジョブの作成、バッチの作成、ステータスの確認などは全てこの接続で行う
+		 */
+		T run(BulkConnection connection) throws Exception;
+	}
+
+	private final BulkConnection connection;
+
+	private final Semaphore slots;
+
+	private final ExecutorService executor;
+
+	private final Thread dispatcher;
+
+	private final PriorityBlockingQueue<Task<?>> queue = new PriorityBlockingQueue<>();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final TokenBucket polls;
+
+	private final TokenBucket downloads;
+
+	/** 最後に取得した制限値と、それ以降に使った回数 */
+	private OrgLimits limits;
+
+	private long apiCallsSinceRefresh;
+
+	private long batchesSinceRefresh;
+
+	private long lastRefresh;
+
+	/** いずれかのスレッドが/limitsを取得中 */
+	private boolean refreshing;
+
+	private long apiReserve = 1000;
+
+	private long batchReserve = 100;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param maxConcurrentJobs 同時に実行するジョブの数
+	 * @param pollsPerSecond 1秒あたりのステータス確認の回数
+	 * @param downloadsPerSecond 1秒あたりの結果ダウンロードの回数
+	 */
+	public BulkJobScheduler(BulkConnection connection, int maxConcurrentJobs, double pollsPerSecond, double downloadsPerSecond) {
+		this.connection = connection;
+		this.slots = new Semaphore(maxConcurrentJobs);
+		this.executor = Executors.newFixedThreadPool(maxConcurrentJobs);
+		this.polls = new TokenBucket(pollsPerSecond, Math.max(1, (int) pollsPerSecond));
+		this.downloads = new TokenBucket(downloadsPerSecond, Math.max(1, (int) downloadsPerSecond));
+		// 他の呼び出しで組織全体の使用数が変わっても分かるように、応答ごとの使用数を反映する
+		HttpTransport.setLimitInfoListener(connection.getConfig(), limitInfo -> {
+			long[] usage = OrgLimits.parseApiUsage(limitInfo);
+			if (usage != null) {
+				updateApiUsage(usage[0], usage[1]);
+			}
+		});
+		this.dispatcher = new Thread(this::dispatch, "bulk-job-scheduler");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * 他のツールのために残しておくAPIリクエスト数とバッチ数. この数を下回る場合は、回復するまで待つ.
+	 */
+	public synchronized BulkJobScheduler setReserve(long apiReserve, long batchReserve) {
+		this.apiReserve = apiReserve;
+		this.batchReserve = batchReserve;
+		return this;
+	}
+
+	/**
+	 * ジョブを登録する.
+	 * @param priority 大きいほど先に実行する. 同じ優先度の場合は登録順
+	 */
+	public <T> CompletableFuture<T> submit(int priority, String name, Job<T> job) {
+		if (closed) {
+			throw new IllegalStateException("scheduler is closed");
+		}
+		Task<T> task = new Task<>(priority, sequence.getAndIncrement(), name, job);
+		queue.add(task);
+		logger.info("job queued: {} (priority {}, {} waiting)", name, priority, queue.size());
+		return task.future;
+	}
+
+	/**
+	 * /limitsを呼び出して、制限の残りを取得し直す.
+	 */
+	public OrgLimits refreshLimits() throws IOException {
+		OrgLimits fetched = OrgLimits.fetch(connection.getConfig(), ConnectionUtil.ASYNC_API_VERSION);
+		synchronized (this) {
+			limits = fetched;
+			apiCallsSinceRefresh = 0;
+			batchesSinceRefresh = 0;
+			lastRefresh = System.currentTimeMillis();
+			notifyAll();
+		}
+		logger.info("org limits: {}", fetched);
+		return fetched;
+	}
+
+	/**
+	 * Bulk APIの応答のSforce-Limit-InfoヘッダやSOAP APIのLimitInfoHeaderなど、
+	 * 他の呼び出しで分かったAPIリクエストの使用数を反映する.
+	 */
+	public synchronized void updateApiUsage(long used, long max) {
+		if (limits != null) {
+			limits = limits.withApiUsage(used, max);
+			apiCallsSinceRefresh = 0;
+			notifyAll();
+		}
+	}
+
+	/** 現在の見込みの残り */
+	public synchronized OrgLimits getLimits() {
+		return limits == null ? null : limits.consume(apiCallsSinceRefresh, batchesSinceRefresh);
+	}
+
+	private void dispatch() {
+		while (!closed) {
+			Task<?> task;
+			try {
+				slots.acquire();
+				task = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				// 残りが少ない間はジョブを開始しない
+				awaitCapacity(0, 0);
+			} catch (InterruptedException e) {
+				task.future.cancel(false);
+				return;
+			} catch (IOException e) {
+				slots.release();
+				task.future.completeExceptionally(e);
+				continue;
+			}
+			logger.info("job started: {}", task.name);
+			executor.execute(() -> {
+				try {
+					task.run(this);
+				} finally {
+					slots.release();
+				}
+			});
+		}
+	}
+
+	/**
+	 * APIリクエストをapiCalls回、バッチをbatches個使えるようになるまで待ち、使った分を差し引く.
+	 * /limitsの取得はロックを持たずに1スレッドだけが行い、その間は他の呼び出しをふさがない.
+	 */
+	void awaitCapacity(long apiCalls, long batches) throws InterruptedException, IOException {
+		while (true) {
+			synchronized (this) {
+				if (limits != null) {
+					OrgLimits current = limits.consume(apiCallsSinceRefresh, batchesSinceRefresh);
+					if (current.getDailyApiRemaining() - apiCalls > apiReserve && current.getDailyBatchRemaining() - batches > batchReserve) {
+						apiCallsSinceRefresh += apiCalls;
+						batchesSinceRefresh += batches;
+						return;
+					}
+				}
+				if (closed) {
+					throw new InterruptedException("scheduler is closed");
+				}
+				if (refreshing) {
+					// 取得中のスレッドが結果を反映したら起こされる
+					wait();
+					continue;
+				}
+				if (limits != null) {
+					long waitMillis = lastRefresh + LIMITS_RETRY_MILLIS - System.currentTimeMillis();
+					if (waitMillis > 0) {
+						logger.warn("org limits are low ({}). waiting {} ms.", getLimits(), waitMillis);
+						wait(waitMillis);
+						continue;
+					}
+				}
+				refreshing = true;
+			}
+			try {
+				refreshLimits();
+			} finally {
+				synchronized (this) {
+					refreshing = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bulk APIの呼び出しの前に、種類に応じた制限を適用する.
+	 * ジョブを待たせるほど残りが少なくない限り、ステータス確認とダウンロード以外はすぐに返る.
+	 */
+	void acquire(Kind kind) throws InterruptedException, IOException {
+		switch (kind) {
+		case BATCH:
+			awaitCapacity(1, 1);
+			return;
+		case POLL:
+			polls.acquire();
+			break;
+		case DOWNLOAD:
+			downloads.acquire();
+			break;
+		default:
+			break;
+		}
+		awaitCapacity(1, 0);
+	}
+
+	/**
+	 * 実行中のジョブの完了は待たない. 待っているジョブはキャンセルする.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		dispatcher.interrupt();
+		Task<?> task;
+		while ((task = queue.poll()) != null) {
+			task.future.cancel(false);
+		}
+		executor.shutdown();
+		HttpTransport.setLimitInfoListener(connection.getConfig(), null);
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	private static class Task<T> implements Comparable<Task<?>> {
+
+		final int priority;
+
+		final long sequence;
+
+		final String name;
+
+		final Job<T> job;
+
+		final CompletableFuture<T> future = new CompletableFuture<>();
+
+		Task(int priority, long sequence, String name, Job<T> job) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.name = name;
+			this.job = job;
+		}
+
+		void run(BulkJobScheduler scheduler) {
+			try {
+				future.complete(job.run(new ThrottledBulkConnection(scheduler.connection, scheduler)));
+				logger.info("job finished: {}", name);
+			} catch (Exception e) {
+				logger.error("job failed: " + name, e);
+				future.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public int compareTo(Task<?> other) {
+			if (priority != other.priority) {
+				return Integer.compare(other.priority, priority);
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+
+	}
+
+	/**
+	 * 呼び出しの種類.
+	 */
+	enum Kind {
+		CALL, BATCH, POLL, DOWNLOAD
+	}
+
+}
@@ -0,0 +1,297 @@
+package bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.JobInfo;
+
+import sink.ResultSink;
+
+/**
+ * 分割されたバッチの結果を、同時実行数を制限して並列にダウンロードするクラス.
+ * バッチごとの結果は一時ファイル(spool)に保存し、最後にバッチの順番どおりにひとつの出力へ連結する.
+ */
+public class ChunkDownloader {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkDownloader.class);
+
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	private final BulkConnection connection;
+
+	private final JobInfo job;
+
+	private final BatchStatusPoller poller;
+
+	private final Path spoolDir;
+
+	private final int concurrency;
+
+	private final ExtractCheckpoint checkpoint;
+
+	private PipelineMetrics metrics;
+
+	/** 他のジョブと共有するスレッド. nullの場合はdownloadのたびにconcurrency個のスレッドを作る */
+	private ExecutorService sharedExecutor;
+
+	public ChunkDownloader(BulkConnection connection, JobInfo job, BatchStatusPoller poller, Path spoolDir, int concurrency) {
+		this(connection, job, poller, spoolDir, concurrency, null);
+	}
+
+	/**
+	 * 途中経過を記録しながらダウンロードする場合.
+	 * 前回の実行で保存済みの結果はダウンロードせずに、spoolDirに残っている一時ファイルをそのまま使う.
+	 */
+	public ChunkDownloader(BulkConnection connection, JobInfo job, BatchStatusPoller poller, Path spoolDir, int concurrency, ExtractCheckpoint checkpoint) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+		}
+		this.connection = connection;
+		this.job = job;
+		this.poller = poller;
+		this.spoolDir = spoolDir;
+		this.concurrency = concurrency;
+		this.checkpoint = checkpoint;
+		this.metrics = poller.getMetrics();
+	}
+
+	/**
+	 * ダウンロードの速さと件数を記録する先. 指定しない場合はpollerと同じものに記録する.
+	 */
+	public ChunkDownloader setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * 複数のジョブで同じスレッドを使う場合. 同時実行数はexecutorのスレッド数で決まり、シャットダウンは呼び出し側で行う.
+	 */
+	public ChunkDownloader setExecutor(ExecutorService executor) {
+		this.sharedExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * バッチが完了したものから結果をダウンロードする.
+	 * Completed以外で終了したバッチがあれば、他のバッチを保存し終えてから失敗する.
+	 * @return batchListと同じ順番のspool
+	 */
+	public List<Spool> download(List<BatchInfo> batchList) throws InterruptedException, ExecutionException {
+		return forEachDone(batchList, this::save);
+	}
+
+	/**
+	 * 一時ファイルに保存せずに、バッチが完了したものから結果をsinkに直接書き込む.
+	 * 書き込みはバッチごとに並列で行う. Completed以外で終了したバッチがあれば失敗する.
+	 * @return 書き込んだレコード数
+	 */
+	public long stream(List<BatchInfo> batchList, ResultSink sink) throws InterruptedException, ExecutionException {
+		long rows = 0;
+		for (long n : forEachDone(batchList, (info, index) -> write(info, sink))) {
+			rows += n;
+		}
+		return rows;
+	}
+
+	@FunctionalInterface
+	private interface BatchTask<T> {
+		T run(BatchInfo info, int index) throws IOException, AsyncApiException;
+	}
+
+	/**
+	 * バッチが終了したものから、同時実行数を制限してtaskを実行する.
+	 * @return batchListと同じ順番の結果
+	 */
+	private <T> List<T> forEachDone(List<BatchInfo> batchList, BatchTask<T> task) throws InterruptedException, ExecutionException {
+		ExecutorService executor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(concurrency);
+		try {
+			List<CompletableFuture<T>> futures = new ArrayList<>();
+			for (int i = 0; i < batchList.size(); i++) {
+				final int index = i;
+				BatchInfo chunkBatch = batchList.get(i);
+				// pollerのスレッドをふさがないように、ダウンロードは別スレッドで行う
+				futures.add(poller.watch(chunkBatch.getId()).thenApplyAsync(info -> {
+					try {
+						return task.run(info, index);
+					} catch (IOException | AsyncApiException e) {
+						logger.error("Failed to save result of " + info.getId(), e);
+						throw new CompletionException(e);
+					}
+				}, executor));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+
+			List<T> results = new ArrayList<>();
+			for (CompletableFuture<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} finally {
+			if (executor != sharedExecutor) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private long write(BatchInfo info, ResultSink sink) throws IOException, AsyncApiException {
+		checkCompleted(info);
+		long batchStart = System.nanoTime();
+		long rows = 0;
+		for (String resultId : connection.getQueryResultList(job.getId(), info.getId()).getResult()) {
+			try (InputStream is = connection.getQueryResultStream(job.getId(), info.getId(), resultId)) {
+				rows += sink.write(info, is);
+			}
+		}
+		metrics.add(PipelineMetrics.RECORDS, rows);
+		metrics.record(PipelineMetrics.RECORDS_PER_SECOND, perSecond(rows, System.nanoTime() - batchStart));
+		logger.info("--- written --- : batchId:{}, {} rows", info.getId(), rows);
+		return rows;
+	}
+
+	private Spool save(BatchInfo info, int index) throws IOException, AsyncApiException {
+		checkCompleted(info);
+		Path file = spoolDir.resolve(String.format("chunk-%05d-%s.csv", index, info.getId()));
+		long offset = 0;
+		if (checkpoint != null) {
+			offset = checkpoint.getOffset(info.getId());
+			if (offset > 0 && (!Files.exists(file) || Files.size(file) < offset)) {
+				logger.warn("spool file for {} is missing or truncated. downloading again.", info.getId());
+				checkpoint.resetBatch(info.getId());
+				offset = 0;
+			} else if (checkpoint.isBatchDone(info.getId())) {
+				logger.info("--- already saved --- : batchId:{}", info.getId());
+				return new Spool(info, file, checkpoint.getHeaderLength(info.getId()));
+			}
+		}
+		long batchStart = System.nanoTime();
+		String[] resultIds = connection.getQueryResultList(job.getId(), info.getId()).getResult();
+		logger.info("getting {} results for {}", resultIds.length, info.getId());
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			// 前回の実行で記録されていない書きかけの部分は捨てる
+			channel.truncate(offset);
+			channel.position(offset);
+			OutputStream os = Channels.newOutputStream(channel);
+			CsvResultMerger merger = new CsvResultMerger(os);
+			if (checkpoint != null) {
+				merger.resume(checkpoint.getHeaderLength(info.getId()));
+			}
+			for (String resultId : resultIds) {
+				if (checkpoint != null && checkpoint.isSaved(info.getId(), resultId)) {
+					logger.info("skip saved result {} of {}", resultId, info.getId());
+					continue;
+				}
+				long start = System.nanoTime();
+				try (InputStream is = connection.getQueryResultStream(job.getId(), info.getId(), resultId)) {
+					long bytes = merger.append(is);
+					metrics.add(PipelineMetrics.DOWNLOAD_BYTES, bytes);
+					metrics.record(PipelineMetrics.DOWNLOAD_BYTES_PER_SECOND, perSecond(bytes, System.nanoTime() - start));
+				}
+				if (checkpoint != null) {
+					channel.force(false);
+					checkpoint.markSaved(info.getId(), resultId, channel.position(), merger.getHeaderLength());
+				}
+			}
+			if (checkpoint != null) {
+				checkpoint.markBatchDone(info.getId(), channel.position(), merger.getHeaderLength());
+			}
+			metrics.add(PipelineMetrics.RECORDS, info.getNumberRecordsProcessed());
+			metrics.record(PipelineMetrics.RECORDS_PER_SECOND, perSecond(info.getNumberRecordsProcessed(), System.nanoTime() - batchStart));
+			logger.info("--- saved --- : batchId:{}, {} bytes", info.getId(), merger.getBytesWritten());
+			return new Spool(info, file, merger.getHeaderLength());
+		}
+	}
+
+	/**
+	 * 失敗したバッチを読み飛ばすと、結果が欠けたまま成功したように見えるので、例外にする.
+	 */
+	private static void checkCompleted(BatchInfo info) throws IOException {
+		if (info.getState() != BatchStateEnum.Completed) {
+			throw new IOException("batch:" + info.getId() + " is " + info.getState() + ". " + info.getStateMessage());
+		}
+	}
+
+	/**
+	 * spoolをリストの順番どおりに連結する. ヘッダ行は最初に見つかったものだけを出力する.
+	 * @return 出力したバイト数
+	 */
+	public static long concat(List<Spool> spools, WritableByteChannel out) throws IOException {
+		return concat(spools, out, null);
+	}
+
+	/**
+	 * 出力への書き込みで待たされた時間を記録しながら連結する. gzipの圧縮が追いつかない場合はここが長くなる.
+	 */
+	public static long concat(List<Spool> spools, WritableByteChannel out, PipelineMetrics metrics) throws IOException {
+		long total = 0;
+		boolean headerWritten = false;
+		for (Spool spool : spools) {
+			try (FileChannel in = FileChannel.open(spool.file, StandardOpenOption.READ)) {
+				long position = headerWritten ? spool.headerLength : 0;
+				long size = in.size();
+				while (position < size) {
+					long start = System.nanoTime();
+					long n = in.transferTo(position, size - position, out);
+					if (metrics != null) {
+						metrics.record(PipelineMetrics.SINK_WRITE_MICROS, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+					}
+					position += n;
+					total += n;
+				}
+				if (size > 0 && spool.headerLength > 0) {
+					headerWritten = true;
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * 1秒あたりの量. 数GBのバイト数に1秒分のナノ秒を掛けるとlongを超えるので、doubleで計算する.
+	 */
+	private static long perSecond(long amount, long nanos) {
+		return nanos <= 0 ? amount : (long) (amount * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+	}
+
+	/**
+	 * バッチひとつ分の結果を保存した一時ファイル.
+	 */
+	public static class Spool {
+
+		public final BatchInfo batchInfo;
+
+		public final Path file;
+
+		/** ファイル先頭のヘッダ行のバイト数. 結果がない場合は0 */
+		public final int headerLength;
+
+		Spool(BatchInfo batchInfo, Path file, int headerLength) {
+			this.batchInfo = batchInfo;
+			this.file = file;
+			this.headerLength = headerLength;
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 分割されたクエリ結果(CSV)をバイト列のままひとつの出力にまとめるクラス.
+ * 文字列へのデコードは行わず、2つ目以降の結果の先頭行(ヘッダ)だけを読み飛ばす.
+ *
+ * スレッドセーフではないので、書き込みは1スレッドから行うこと.
+ */
+public class CsvResultMerger {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	/** 結果が0件の場合にヘッダの代わりに返される行 */
+	private static final byte[] NO_RECORDS = "Records not found for this query".getBytes(StandardCharsets.UTF_8);
+
+	private final OutputStream out;
+
+	private final byte[] buffer;
+
+	private boolean headerWritten;
+
+	private int headerLength;
+
+	private long bytesWritten;
+
+	public CsvResultMerger(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public CsvResultMerger(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * 途中まで書き込まれたファイルに続けて書き込む場合に、ヘッダ行が出力済みであることを設定する.
+	 * @param headerLength 出力済みのヘッダ行のバイト数. 0の場合はヘッダ未出力として扱う
+	 */
+	public void resume(int headerLength) {
+		this.headerWritten = headerLength > 0;
+		this.headerLength = headerLength;
+	}
+
+	/**
+	 * 結果をひとつ追記する. ヘッダは最初の結果のものだけを出力する.
+	 * @param in getQueryResultStreamなどで取得した結果. closeは呼び出し側で行う
+	 * @return 出力したバイト数
+	 */
+	public long append(InputStream in) throws IOException {
+		long written = 0;
+		int lastByte = '\n';
+		boolean inHeader = true;
+		boolean quoted = false;
+		// ヘッダ行が長い場合に備えて、改行が見つかるまでの分を保持する
+		byte[] header = new byte[0];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			int start = 0;
+			if (inHeader) {
+				int end = -1;
+				for (int i = 0; i < n; i++) {
+					byte b = buffer[i];
+					if (b == '"') {
+						quoted = !quoted;
+					} else if (b == '\n' && !quoted) {
+						end = i;
+						break;
+					}
+				}
+				if (end < 0) {
+					header = concat(header, buffer, 0, n);
+					continue;
+				}
+				header = concat(header, buffer, 0, end + 1);
+				inHeader = false;
+				start = end + 1;
+				if (isNoRecords(header)) {
+					// 0件の場合は何も出力しない
+					header = null;
+				} else if (!headerWritten) {
+					out.write(header);
+					written += header.length;
+					lastByte = '\n';
+					headerWritten = true;
+					headerLength = header.length;
+				}
+			}
+			if (start < n) {
+				out.write(buffer, start, n - start);
+				written += n - start;
+				lastByte = buffer[n - 1];
+			}
+		}
+		if (inHeader && header.length > 0 && !isNoRecords(header) && !headerWritten) {
+			// 改行で終わっていないヘッダのみの結果
+			out.write(header);
+			out.write('\n');
+			written += header.length + 1;
+			headerWritten = true;
+			headerLength = header.length + 1;
+		} else if (lastByte != '\n') {
+			// 次の結果と行がつながらないように改行で終える
+			out.write('\n');
+			written++;
+		}
+		bytesWritten += written;
+		return written;
+	}
+
+	/** 出力したヘッダ行のバイト数. ヘッダを出力していない場合は0 */
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	/** これまでに出力したバイト数 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	private static byte[] concat(byte[] head, byte[] src, int offset, int length) {
+		byte[] result = Arrays.copyOf(head, head.length + length);
+		System.arraycopy(src, offset, result, head.length, length);
+		return result;
+	}
+
+	private static boolean isNoRecords(byte[] line) {
+		int length = line.length;
+		while (length > 0 && (line[length - 1] == '\n' || line[length - 1] == '\r')) {
+			length--;
+		}
+		return length == NO_RECORDS.length && Arrays.equals(Arrays.copyOf(line, length), NO_RECORDS);
+	}
+
+}
@@ -0,0 +1,118 @@
+package bulk;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.CsvReader;
+import util.ParallelGzipOutputStream;
+
+/**
+ * 差分抽出の結果を、前回までのスナップショット(gzip圧縮したCSV)にマージするクラス.
+ *
+ * スナップショットの先頭列はId、差分の結果は同じ列の最後にIsDeletedを追加したものとする.
+ * 差分に含まれるレコードは置き換え、IsDeletedがtrueのものは削除し、新しいレコードは末尾に追加する.
+ * 差分はメモリ上に保持するので、差分が全件に近い場合は全件抽出を行うこと.
+ */
+public class DeltaMerger {
+
+	private static final Logger logger = LoggerFactory.getLogger(DeltaMerger.class);
+
+	/**
+	 * 差分抽出用のクエリを作成する. 削除されたレコードも取得するため、queryAllで実行すること.
+	 * @param fields スナップショットの列. 先頭はIdにする
+	 * @param since 前回取得した時刻. 同じ秒に更新されたものを取りこぼさないように、この時刻も含める
+	 */
+	public static String query(String fields, String object, Instant since) {
+		return "select " + fields + ", IsDeleted from " + object + " where SystemModstamp >= " + since;
+	}
+
+	/**
+	 * snapshotにdeltaをマージして置き換える. snapshotがない場合はdeltaから作成する.
+	 * @return マージ後のレコード件数
+	 */
+	public static long merge(Path snapshot, Path delta) throws IOException {
+		Map<String, byte[]> updated = new LinkedHashMap<>();
+		Set<String> deleted = new HashSet<>();
+		byte[] header = null;
+		try (CsvReader reader = gzipReader(delta)) {
+			if (reader.readHeader()) {
+				// IsDeletedの列を除いたものがスナップショットの列
+				int columns = reader.fieldCount() - 1;
+				header = encode(reader, columns);
+				while (reader.next()) {
+					String id = reader.getString(0);
+					if (reader.getBoolean(columns)) {
+						updated.remove(id);
+						deleted.add(id);
+					} else {
+						deleted.remove(id);
+						updated.put(id, encode(reader, columns));
+					}
+				}
+			}
+		}
+		logger.info("delta: {} updated, {} deleted", updated.size(), deleted.size());
+
+		Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+		long count = 0;
+		try (OutputStream out = new BufferedOutputStream(new ParallelGzipOutputStream(Files.newOutputStream(tmp)), 64 * 1024)) {
+			if (Files.exists(snapshot)) {
+				try (CsvReader reader = gzipReader(snapshot)) {
+					if (reader.next()) {
+						reader.writeRecord(out);
+					} else if (header != null) {
+						out.write(header);
+					}
+					while (reader.next()) {
+						String id = reader.getString(0);
+						if (deleted.contains(id)) {
+							continue;
+						}
+						byte[] replaced = updated.remove(id);
+						if (replaced != null) {
+							out.write(replaced);
+						} else {
+							reader.writeRecord(out);
+						}
+						count++;
+					}
+				}
+			} else if (header != null) {
+				out.write(header);
+			}
+			// スナップショットになかったものは新規のレコード
+			for (byte[] record : updated.values()) {
+				out.write(record);
+				count++;
+			}
+		}
+		Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("snapshot {} : {} records", snapshot, count);
+		return count;
+	}
+
+	private static CsvReader gzipReader(Path file) throws IOException {
+		return new CsvReader(new GZIPInputStream(Files.newInputStream(file), 64 * 1024));
+	}
+
+	private static byte[] encode(CsvReader reader, int columns) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(reader.fieldCount() * 16);
+		reader.writeRecord(bout, columns);
+		return bout.toByteArray();
+	}
+
+}
@@ -0,0 +1,151 @@
+package bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PK-chunkを使った抽出の途中経過を記録するファイル.
+ * ジョブID、バッチID、保存済みのresultIdと一時ファイル上のバイト位置を保持し、
+ * 途中で失敗した場合に、次回の実行で同じジョブの未取得の結果だけを取得できるようにする.
+ *
+ * 更新のたびに一時ファイルに書き出してからリネームするので、途中で強制終了しても壊れない.
+ */
+public class ExtractCheckpoint {
+
+	private static final Logger logger = LoggerFactory.getLogger(ExtractCheckpoint.class);
+
+	private final Path file;
+
+	private final Properties props = new Properties();
+
+	private ExtractCheckpoint(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * 前回の途中経過を読み込む. ファイルがない場合は空の状態で作成する.
+	 */
+	public static ExtractCheckpoint load(Path file) throws IOException {
+		ExtractCheckpoint checkpoint = new ExtractCheckpoint(file);
+		if (Files.exists(file)) {
+			try (InputStream is = Files.newInputStream(file)) {
+				checkpoint.props.load(is);
+			}
+			logger.info("checkpoint loaded: {} (jobId: {})", file, checkpoint.getJobId());
+		}
+		return checkpoint;
+	}
+
+	public synchronized String getJobId() {
+		return props.getProperty("job.id");
+	}
+
+	public synchronized String getParentBatchId() {
+		return props.getProperty("job.parentBatchId");
+	}
+
+	public synchronized String getQuery() {
+		return props.getProperty("job.query");
+	}
+
+	/** ジョブ作成時に指定したPK-chunkの分割サイズ */
+	public synchronized int getChunkSize() {
+		return Integer.parseInt(props.getProperty("job.chunkSize", "0"));
+	}
+
+	/**
+	 * 新しいジョブで記録をやり直す.
+	 */
+	public synchronized void start(String jobId, String parentBatchId, String query, int chunkSize) throws IOException {
+		props.clear();
+		props.setProperty("job.id", jobId);
+		props.setProperty("job.parentBatchId", parentBatchId);
+		props.setProperty("job.query", query);
+		props.setProperty("job.chunkSize", Integer.toString(chunkSize));
+		store();
+	}
+
+	/** 結果が保存済みかどうか */
+	public synchronized boolean isSaved(String batchId, String resultId) {
+		return props.containsKey("result." + batchId + "." + resultId);
+	}
+
+	/** バッチの結果がすべて保存済みかどうか */
+	public synchronized boolean isBatchDone(String batchId) {
+		return Boolean.parseBoolean(props.getProperty("batch." + batchId + ".done"));
+	}
+
+	/** 一時ファイルのうち、保存が確定しているバイト数 */
+	public synchronized long getOffset(String batchId) {
+		return Long.parseLong(props.getProperty("batch." + batchId + ".offset", "0"));
+	}
+
+	/** 一時ファイル先頭のヘッダ行のバイト数 */
+	public synchronized int getHeaderLength(String batchId) {
+		return Integer.parseInt(props.getProperty("batch." + batchId + ".header", "0"));
+	}
+
+	/**
+	 * 結果ひとつ分の保存が完了したことを記録する.
+	 * @param offset 結果を書き込んだ後の一時ファイルのバイト数
+	 */
+	public synchronized void markSaved(String batchId, String resultId, long offset, int headerLength) {
+		props.setProperty("result." + batchId + "." + resultId, Long.toString(offset));
+		props.setProperty("batch." + batchId + ".offset", Long.toString(offset));
+		props.setProperty("batch." + batchId + ".header", Integer.toString(headerLength));
+		storeQuietly();
+	}
+
+	public synchronized void markBatchDone(String batchId, long offset, int headerLength) {
+		props.setProperty("batch." + batchId + ".offset", Long.toString(offset));
+		props.setProperty("batch." + batchId + ".header", Integer.toString(headerLength));
+		props.setProperty("batch." + batchId + ".done", "true");
+		storeQuietly();
+	}
+
+	/**
+	 * 一時ファイルがなくなっているなどで、バッチの記録を破棄する.
+	 */
+	public synchronized void resetBatch(String batchId) {
+		String prefix = "batch." + batchId + ".";
+		String resultPrefix = "result." + batchId + ".";
+		props.stringPropertyNames().stream()
+				.filter(key -> key.startsWith(prefix) || key.startsWith(resultPrefix))
+				.forEach(props::remove);
+		storeQuietly();
+	}
+
+	/**
+	 * 抽出がすべて完了したときに記録を削除する.
+	 */
+	public synchronized void delete() throws IOException {
+		props.clear();
+		Files.deleteIfExists(file);
+	}
+
+	private void storeQuietly() {
+		try {
+			store();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to save checkpoint: " + file, e);
+		}
+	}
+
+	private void store() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream os = Files.newOutputStream(tmp)) {
+			props.store(os, "bulk extract checkpoint");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
@@ -0,0 +1,273 @@
+package bulk;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.ConcurrencyMode;
+import com.sforce.async.ContentType;
+import com.sforce.async.JobInfo;
+import com.sforce.async.OperationEnum;
+
+import util.ParallelGzipOutputStream;
+
+/**
+ * 複数のオブジェクトをPK-chunkで並行して抽出するクラス.
+ *
+ * ジョブは{@link BulkJobScheduler}で同時実行数と組織の制限を守って実行し、件数の多いオブジェクトから開始する.
+ * 一番大きいオブジェクトを最後に始めると、全体の終了がそのオブジェクトだけ遅れるため.
+ * 結果のダウンロードとgzip圧縮は、全てのジョブでひとつのスレッドプールを共有する.
+ * ステータスの確認も1つのスレッドでまとめて行う.
+ */
+public class ExtractOrchestrator implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ExtractOrchestrator.class);
+
+	/**
+	 * 抽出するオブジェクトとクエリ.
+	 */
+	public static class Spec {
+
+		final String object;
+
+		final String query;
+
+		public Spec(String object, String query) {
+			this.object = object;
+			this.query = query;
+		}
+
+		@Override
+		public String toString() {
+			return object;
+		}
+
+	}
+
+	/**
+	 * 件数を数える方法. 通常はSOAP APIの select count() を使う.
+	 */
+	@FunctionalInterface
+	public interface RowCounter {
+		long count(String object) throws Exception;
+	}
+
+	/**
+	 * オブジェクトごとの結果.
+	 */
+	public static class Result {
+
+		public final Spec spec;
+
+		public final long rowCount;
+
+		/** 出力したファイル. 失敗した場合はnull */
+		public final Path file;
+
+		/** 失敗した場合の例外. 成功した場合はnull */
+		public final Throwable error;
+
+		Result(Spec spec, long rowCount, Path file, Throwable error) {
+			this.spec = spec;
+			this.rowCount = rowCount;
+			this.file = file;
+			this.error = error;
+		}
+
+	}
+
+	private final BulkJobScheduler scheduler;
+
+	private final RowCounter counter;
+
+	private final PkChunkSizer sizer;
+
+	private final Path outputDir;
+
+	private final ExecutorService workers;
+
+	private final ScheduledExecutorService pollers;
+
+	private int targetBatches = 10;
+
+	private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * @param threads ダウンロードと圧縮に使うスレッドの合計. 全てのジョブで共有する
+	 */
+	public ExtractOrchestrator(BulkJobScheduler scheduler, RowCounter counter, PkChunkSizer sizer, Path outputDir, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		this.scheduler = scheduler;
+		this.counter = counter;
+		this.sizer = sizer;
+		this.outputDir = outputDir;
+		this.workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "extract-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.pollers = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "extract-poller");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/** オブジェクトごとのバッチ数の目安. PK-chunkの分割サイズを決めるのに使う */
+	public ExtractOrchestrator setTargetBatches(int targetBatches) {
+		this.targetBatches = targetBatches;
+		return this;
+	}
+
+	public ExtractOrchestrator setGzipLevel(int gzipLevel) {
+		this.gzipLevel = gzipLevel;
+		return this;
+	}
+
+	/**
+	 * 全てのオブジェクトを抽出する. 失敗したオブジェクトがあっても他は続ける.
+	 * @return specsと同じ順番の結果
+	 */
+	public List<Result> run(List<Spec> specs) throws InterruptedException {
+		// 件数を数えて、多い順に優先度を付ける
+		List<long[]> order = new ArrayList<>();
+		long[] rows = new long[specs.size()];
+		for (int i = 0; i < specs.size(); i++) {
+			try {
+				rows[i] = counter.count(specs.get(i).object);
+			} catch (Exception e) {
+				logger.warn("Failed to count " + specs.get(i).object + ". scheduled last.", e);
+				rows[i] = -1;
+			}
+			order.add(new long[] {i, rows[i]});
+		}
+		Collections.sort(order, Comparator.comparingLong((long[] o) -> o[1]).reversed());
+
+		List<CompletableFuture<Path>> futures = new ArrayList<>(Collections.nCopies(specs.size(), null));
+		for (int rank = 0; rank < order.size(); rank++) {
+			int index = (int) order.get(rank)[0];
+			Spec spec = specs.get(index);
+			long rowCount = rows[index];
+			logger.info("queue {} ({} rows)", spec.object, rowCount);
+			futures.set(index, scheduler.submit(order.size() - rank, spec.object, connection -> extract(connection, spec, rowCount)));
+		}
+
+		List<Result> results = new ArrayList<>();
+		for (int i = 0; i < specs.size(); i++) {
+			try {
+				results.add(new Result(specs.get(i), rows[i], futures.get(i).get(), null));
+			} catch (ExecutionException e) {
+				results.add(new Result(specs.get(i), rows[i], null, e.getCause()));
+			}
+		}
+		try {
+			sizer.store();
+		} catch (IOException e) {
+			logger.warn("Failed to store chunk statistics", e);
+		}
+		return results;
+	}
+
+	private Path extract(BulkConnection connection, Spec spec, long rowCount) throws Exception {
+		// 件数が分からない場合(負の値)は、0件として分割サイズを1にしないように既定の分割サイズを使う
+		int chunkSize = sizer.chunkSize(spec.object, rowCount, targetBatches);
+		JobInfo job = new JobInfo();
+		job.setObject(spec.object);
+		job.setOperation(OperationEnum.query);
+		job.setConcurrencyMode(ConcurrencyMode.Parallel);
+		job.setContentType(ContentType.CSV);
+		job = PkChunkSizer.createJob(connection, job, chunkSize, null);
+		logger.info("{}: jobId {}, chunkSize {}", spec.object, job.getId(), chunkSize);
+
+		Path workDir = outputDir.resolve(spec.object + ".work");
+		Files.createDirectories(workDir);
+		Path file = outputDir.resolve(spec.object + ".csv.gz");
+		PipelineMetrics metrics = new PipelineMetrics(spec.object + " " + job.getId()).register();
+		BatchStatusPoller poller = BatchStatusPoller.start(connection, job.getId(), pollers,
+				BatchStatusPoller.DEFAULT_MIN_DELAY_MILLIS, BatchStatusPoller.DEFAULT_MAX_DELAY_MILLIS).setMetrics(metrics);
+		try {
+			// PK-chunkが有効の場合、最初のバッチはNotProcessedになり、分割したバッチが追加される
+			BatchInfo parent = connection.createBatchFromStream(job, new ByteArrayInputStream(spec.query.getBytes(StandardCharsets.UTF_8)));
+			parent = poller.watch(parent.getId()).get();
+			if (parent.getState() == BatchStateEnum.Failed) {
+				throw new IOException(spec.object + ": batch " + parent.getId() + " failed. " + parent.getStateMessage());
+			}
+			List<BatchInfo> batchList = chunkBatches(connection, job, parent);
+
+			ChunkDownloader downloader = new ChunkDownloader(connection, job, poller, workDir, 1).setExecutor(workers);
+			List<ChunkDownloader.Spool> spools = downloader.download(batchList);
+			for (ChunkDownloader.Spool spool : spools) {
+				sizer.record(spec.object, chunkSize, spool.batchInfo, Files.size(spool.file));
+			}
+			// 圧縮もダウンロードと同じスレッドを使う. 1ジョブが占有しないように、投入するブロック数を抑える
+			try (OutputStream os = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				 OutputStream gzip = new ParallelGzipOutputStream(os, gzipLevel, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, workers, 4);
+				 WritableByteChannel out = Channels.newChannel(gzip)) {
+				metrics.add(PipelineMetrics.UNCOMPRESSED_BYTES, ChunkDownloader.concat(spools, out, metrics));
+			}
+			metrics.add(PipelineMetrics.COMPRESSED_BYTES, Files.size(file));
+			deleteWorkDir(workDir);
+			return file;
+		} finally {
+			poller.close();
+			connection.closeJob(job.getId());
+			logger.info(metrics.summary());
+			metrics.close();
+		}
+	}
+
+	private static List<BatchInfo> chunkBatches(BulkConnection connection, JobInfo job, BatchInfo parent) throws AsyncApiException {
+		List<BatchInfo> batchList = new ArrayList<>();
+		for (BatchInfo info : connection.getBatchInfoList(job.getId()).getBatchInfo()) {
+			if (!info.getId().equals(parent.getId())) {
+				batchList.add(info);
+			}
+		}
+		return batchList;
+	}
+
+	private static void deleteWorkDir(Path workDir) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(workDir)) {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		}
+		Files.deleteIfExists(workDir);
+	}
+
+	/**
+	 * 共有しているスレッドを停止する. スケジューラは呼び出し側で閉じる.
+	 */
+	@Override
+	public void close() {
+		workers.shutdownNow();
+		pollers.shutdownNow();
+	}
+
+}
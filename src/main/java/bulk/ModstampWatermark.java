@@ -0,0 +1,59 @@
+package bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Calendar;
+import java.util.Properties;
+
+/**
+ * オブジェクトごとに、どの時点までのデータを取得済みかを記録するファイル.
+ * 次回の差分抽出では、記録した時刻以降にSystemModstampが更新されたレコードだけを取得する.
+ */
+public class ModstampWatermark {
+
+	private final Path file;
+
+	private final Properties props = new Properties();
+
+	private ModstampWatermark(Path file) {
+		this.file = file;
+	}
+
+	public static ModstampWatermark load(Path file) throws IOException {
+		ModstampWatermark watermark = new ModstampWatermark(file);
+		if (Files.exists(file)) {
+			try (InputStream is = Files.newInputStream(file)) {
+				watermark.props.load(is);
+			}
+		}
+		return watermark;
+	}
+
+	/**
+	 * @return 取得済みの時刻. 一度も取得していない場合はnull
+	 */
+	public synchronized Instant get(String object) {
+		String value = props.getProperty(object);
+		return value == null ? null : Instant.parse(value);
+	}
+
+	/**
+	 * 取得済みの時刻を更新する.
+	 * 抽出ジョブの作成日時(サーバ側の時刻)を渡すことで、クライアントとサーバの時刻のずれの影響を受けないようにする.
+	 */
+	public synchronized void put(String object, Calendar extractedAt) throws IOException {
+		props.setProperty(object, extractedAt.toInstant().truncatedTo(ChronoUnit.SECONDS).toString());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream os = Files.newOutputStream(tmp)) {
+			props.store(os, "SystemModstamp high-water mark per object");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
@@ -0,0 +1,181 @@
+package bulk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * 組織のAPIの制限値と残りの回数.
+ * REST APIの/limitsで取得し、レスポンスヘッダ(Sforce-Limit-Info)の使用回数でも更新する.
+ */
+public class OrgLimits {
+
+	/** 1日あたりのAPIリクエスト数 */
+	public static final String DAILY_API_REQUESTS = "DailyApiRequests";
+
+	/** 1日あたりのBulk APIのバッチ数 */
+	public static final String DAILY_BULK_API_REQUESTS = "DailyBulkApiRequests";
+
+	private static final Pattern API_USAGE = Pattern.compile("api-usage=(\\d+)/(\\d+)");
+
+	private final long dailyApiMax;
+
+	private final long dailyApiRemaining;
+
+	private final long dailyBatchMax;
+
+	private final long dailyBatchRemaining;
+
+	public OrgLimits(long dailyApiMax, long dailyApiRemaining, long dailyBatchMax, long dailyBatchRemaining) {
+		this.dailyApiMax = dailyApiMax;
+		this.dailyApiRemaining = dailyApiRemaining;
+		this.dailyBatchMax = dailyBatchMax;
+		this.dailyBatchRemaining = dailyBatchRemaining;
+	}
+
+	public long getDailyApiMax() {
+		return dailyApiMax;
+	}
+
+	public long getDailyApiRemaining() {
+		return dailyApiRemaining;
+	}
+
+	public long getDailyBatchMax() {
+		return dailyBatchMax;
+	}
+
+	public long getDailyBatchRemaining() {
+		return dailyBatchRemaining;
+	}
+
+	/**
+	 * /limitsを呼び出して最新の値を取得する.
+	 * @param config Bulk APIの接続設定. エンドポイントのホストとセッションIDを使う
+	 */
+	public static OrgLimits fetch(ConnectorConfig config, String apiVersion) throws IOException {
+		String endpoint = config.getRestEndpoint();
+		String url = endpoint.substring(0, endpoint.indexOf("/services/")) + "/services/data/v" + apiVersion + "/limits";
+		HttpURLConnection http = (HttpURLConnection) new URL(url).openConnection();
+		http.setRequestProperty("Authorization", "Bearer " + config.getSessionId());
+		http.setRequestProperty("Accept", "application/json");
+		http.setConnectTimeout(config.getConnectionTimeout());
+		http.setReadTimeout(config.getReadTimeout());
+		try {
+			if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				throw new IOException("limits request failed: " + http.getResponseCode() + " " + http.getResponseMessage());
+			}
+			String json;
+			try (InputStream is = http.getInputStream()) {
+				json = read(is);
+			}
+			OrgLimits limits = new OrgLimits(
+					value(json, DAILY_API_REQUESTS, "Max"), value(json, DAILY_API_REQUESTS, "Remaining"),
+					value(json, DAILY_BULK_API_REQUESTS, "Max"), value(json, DAILY_BULK_API_REQUESTS, "Remaining"));
+			// /limits自体もAPIリクエストとして数えられるので、ヘッダの値が新しければそちらを使う
+			return limits.withLimitInfo(http.getHeaderField("Sforce-Limit-Info"));
+		} finally {
+			http.disconnect();
+		}
+	}
+
+	/**
+	 * Sforce-Limit-Infoヘッダ(api-usage=使用数/上限)の値で、APIリクエストの残りを更新する.
+	 * @return ヘッダがない場合はthis
+	 */
+	public OrgLimits withLimitInfo(String limitInfo) {
+		long[] usage = parseApiUsage(limitInfo);
+		return usage == null ? this : withApiUsage(usage[0], usage[1]);
+	}
+
+	/**
+	 * Sforce-Limit-Infoヘッダの値から、APIリクエストの使用数と上限を取り出す.
+	 * @return {使用数, 上限}. ヘッダがない場合や形式が違う場合はnull
+	 */
+	public static long[] parseApiUsage(String limitInfo) {
+		if (limitInfo == null) {
+			return null;
+		}
+		Matcher m = API_USAGE.matcher(limitInfo);
+		if (!m.find()) {
+			return null;
+		}
+		return new long[] {Long.parseLong(m.group(1)), Long.parseLong(m.group(2))};
+	}
+
+	/**
+	 * SOAP APIのLimitInfoHeader(API REQUESTS)などで取得した使用数で、APIリクエストの残りを更新する.
+	 */
+	public OrgLimits withApiUsage(long used, long max) {
+		return new OrgLimits(max, Math.max(0, max - used), dailyBatchMax, dailyBatchRemaining);
+	}
+
+	/**
+	 * 前回の取得以降に使った分を差し引く.
+	 */
+	OrgLimits consume(long apiCalls, long batches) {
+		return new OrgLimits(dailyApiMax, Math.max(0, dailyApiRemaining - apiCalls), dailyBatchMax, Math.max(0, dailyBatchRemaining - batches));
+	}
+
+	/**
+	 * JSONから、nameの直下にあるkeyの数値を取り出す.
+	 * DailyApiRequestsはアプリケーションごとの内訳をネストして持つので、深さを数えて直下のものだけを見る.
+	 */
+	static long value(String json, String name, String key) throws IOException {
+		int start = json.indexOf("\"" + name + "\"");
+		if (start < 0) {
+			throw new IOException(name + " not found in limits");
+		}
+		int i = json.indexOf('{', start);
+		int depth = 0;
+		String quotedKey = "\"" + key + "\"";
+		for (; i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (c == '{') {
+				depth++;
+			} else if (c == '}') {
+				if (--depth == 0) {
+					break;
+				}
+			} else if (depth == 1 && json.startsWith(quotedKey, i)) {
+				int colon = json.indexOf(':', i + quotedKey.length());
+				int from = colon + 1;
+				while (Character.isWhitespace(json.charAt(from))) {
+					from++;
+				}
+				int to = from;
+				while (to < json.length() && (Character.isDigit(json.charAt(to)) || json.charAt(to) == '-')) {
+					to++;
+				}
+				return Long.parseLong(json.substring(from, to));
+			} else if (c == '"') {
+				// 文字列の中の括弧は数えない
+				i = json.indexOf('"', i + 1);
+			}
+		}
+		throw new IOException(name + "." + key + " not found in limits");
+	}
+
+	private static String read(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = is.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return "api " + dailyApiRemaining + "/" + dailyApiMax + ", batches " + dailyBatchRemaining + "/" + dailyBatchMax;
+	}
+
+}
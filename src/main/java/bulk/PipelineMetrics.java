@@ -0,0 +1,169 @@
+package bulk;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.Histogram;
+
+/**
+ * Bulk APIの抽出1回分の計測値.
+ *
+ * サーバ側で待たされているのか、通信か、手元のCSVやgzipの処理かを切り分けるため、
+ * バッチごとの待ち時間や処理時間、ダウンロードと書き込みの速さを平均ではなく分布で記録する.
+ * {@link #register}でJMX(sfsample:type=BulkPipeline)に公開し、終了時に{@link #summary()}をログに出力する.
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean, AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(PipelineMetrics.class);
+
+	/** バッチの作成からQueuedでなくなるまでの時間(ms) */
+	public static final String QUEUE_WAIT_MILLIS = "queueWaitMillis";
+
+	/** サーバでのバッチの処理時間(ms). BatchInfoのtotalProcessingTime */
+	public static final String SERVER_PROCESSING_MILLIS = "serverProcessingMillis";
+
+	/** 結果ひとつ分のダウンロードの速さ(byte/s) */
+	public static final String DOWNLOAD_BYTES_PER_SECOND = "downloadBytesPerSecond";
+
+	/** バッチひとつ分の結果の保存の速さ(records/s) */
+	public static final String RECORDS_PER_SECOND = "recordsPerSecond";
+
+	/** 出力(gzip)への書き込みで待たされた時間(μs). 1回の書き込みごと */
+	public static final String SINK_WRITE_MICROS = "sinkWriteMicros";
+
+	public static final String POLLS = "polls";
+
+	public static final String BATCHES = "batches";
+
+	public static final String FAILED_BATCHES = "failedBatches";
+
+	public static final String RECORDS = "records";
+
+	public static final String DOWNLOAD_BYTES = "downloadBytes";
+
+	/** 圧縮前と圧縮後のバイト数. 圧縮率はこの比 */
+	public static final String UNCOMPRESSED_BYTES = "uncompressedBytes";
+
+	public static final String COMPRESSED_BYTES = "compressedBytes";
+
+	private final String name;
+
+	private final long started = System.nanoTime();
+
+	private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	private ObjectName objectName;
+
+	public PipelineMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * プラットフォームのMBeanServerに登録する. 同じ名前が登録済みの場合は置き換える.
+	 */
+	public synchronized PipelineMetrics register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName on = new ObjectName("sfsample:type=BulkPipeline,name=" + ObjectName.quote(name));
+			if (server.isRegistered(on)) {
+				server.unregisterMBean(on);
+			}
+			server.registerMBean(this, on);
+			objectName = on;
+		} catch (JMException e) {
+			// 計測できなくても抽出は続ける
+			logger.warn("Failed to register metrics: " + name, e);
+		}
+		return this;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void increment(String counter) {
+		add(counter, 1);
+	}
+
+	public void add(String counter, long delta) {
+		counters.computeIfAbsent(counter, k -> new AtomicLong()).addAndGet(delta);
+	}
+
+	public void record(String histogram, long value) {
+		histograms.computeIfAbsent(histogram, k -> new Histogram()).record(value);
+	}
+
+	public long get(String counter) {
+		AtomicLong value = counters.get(counter);
+		return value == null ? 0 : value.get();
+	}
+
+	public Histogram histogram(String histogram) {
+		return histograms.computeIfAbsent(histogram, k -> new Histogram());
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> values = new TreeMap<>();
+		counters.forEach((k, v) -> values.put(k, v.get()));
+		return values;
+	}
+
+	@Override
+	public Map<String, Histogram.Snapshot> getHistograms() {
+		Map<String, Histogram.Snapshot> values = new TreeMap<>();
+		histograms.forEach((k, v) -> values.put(k, v.snapshot()));
+		return values;
+	}
+
+	@Override
+	public String getSummary() {
+		return summary();
+	}
+
+	/**
+	 * 終了時に出力する集計. 全体のrecords/sと圧縮率は累計から計算する.
+	 */
+	public String summary() {
+		double seconds = Math.max(1, System.nanoTime() - started) / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append("--- metrics: ").append(name).append(String.format(" (%.1f s) ---", seconds));
+		getCounters().forEach((k, v) -> sb.append(System.lineSeparator()).append(String.format("  %-24s %d", k, v)));
+		sb.append(System.lineSeparator()).append(String.format("  %-24s %.0f", "overall records/s", get(RECORDS) / seconds));
+		long compressed = get(COMPRESSED_BYTES);
+		if (compressed > 0) {
+			sb.append(System.lineSeparator()).append(String.format("  %-24s %.2f", "compression ratio", (double) get(UNCOMPRESSED_BYTES) / compressed));
+		}
+		getHistograms().forEach((k, v) -> sb.append(System.lineSeparator()).append(String.format("  %-24s %s", k, v)));
+		return sb.toString();
+	}
+
+	/**
+	 * JMXの登録を解除する.
+	 */
+	@Override
+	public synchronized void close() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			logger.warn("Failed to unregister metrics: " + name, e);
+		}
+		objectName = null;
+	}
+
+}
@@ -0,0 +1,21 @@
+package bulk;
+
+import java.util.Map;
+
+import util.Histogram;
+
+/**
+ * {@link PipelineMetrics}をJMXで公開するためのインターフェース.
+ */
+public interface PipelineMetricsMXBean {
+
+	/** 回数やバイト数などの累計 */
+	Map<String, Long> getCounters();
+
+	/** 時間やスループットの分布 */
+	Map<String, Histogram.Snapshot> getHistograms();
+
+	/** {@link PipelineMetrics#summary()}と同じ内容 */
+	String getSummary();
+
+}
@@ -0,0 +1,156 @@
+package bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchStateEnum;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.JobInfo;
+
+import util.JobHeaderConnection;
+
+/**
+ * PK-chunkの分割サイズをジョブごとに決めるクラス.
+ *
+ * 対象オブジェクトの件数から、バッチ数がtargetBatches程度になるサイズを求め、
+ * 過去の実行で記録したバッチごとの処理時間と結果のサイズから、1バッチが大きくなりすぎないように制限する.
+ * 記録はファイルに保存し、次回以降の実行で使う.
+ */
+public class PkChunkSizer {
+
+	private static final Logger logger = LoggerFactory.getLogger(PkChunkSizer.class);
+
+	/** PK-chunkで指定できる分割サイズの上限 */
+	public static final int MAX_CHUNK_SIZE = 250000;
+
+	/** 分割サイズを指定しない場合のAPIの既定値. 件数が分からない場合に使う */
+	public static final int DEFAULT_CHUNK_SIZE = 100000;
+
+	/** 1バッチの処理時間の目安. バッチは10分を超えると再試行されるため、余裕を持たせる */
+	public static final long DEFAULT_TARGET_BATCH_MILLIS = 5 * 60 * 1000L;
+
+	/** 1バッチの結果サイズの目安 */
+	public static final long DEFAULT_TARGET_BATCH_BYTES = 512L * 1024 * 1024;
+
+	/** 過去の記録に対する新しい記録の重み */
+	private static final double WEIGHT = 0.5;
+
+	private final Path file;
+
+	private final Properties props = new Properties();
+
+	private long targetBatchMillis = DEFAULT_TARGET_BATCH_MILLIS;
+
+	private long targetBatchBytes = DEFAULT_TARGET_BATCH_BYTES;
+
+	private PkChunkSizer(Path file) {
+		this.file = file;
+	}
+
+	public static PkChunkSizer load(Path file) throws IOException {
+		PkChunkSizer sizer = new PkChunkSizer(file);
+		if (Files.exists(file)) {
+			try (InputStream is = Files.newInputStream(file)) {
+				sizer.props.load(is);
+			}
+		}
+		return sizer;
+	}
+
+	public PkChunkSizer setTargetBatchMillis(long targetBatchMillis) {
+		this.targetBatchMillis = targetBatchMillis;
+		return this;
+	}
+
+	public PkChunkSizer setTargetBatchBytes(long targetBatchBytes) {
+		this.targetBatchBytes = targetBatchBytes;
+		return this;
+	}
+
+	/**
+	 * 分割サイズを求める.
+	 * @param rowCount 対象オブジェクトの件数. PK-chunkはIdの範囲で分割するので、抽出条件で絞り込む前の件数を渡す.
+	 * 数えられなかった場合は負の値. APIの既定値を、過去の記録で制限して使う
+	 * @param targetBatches 目標とするバッチ数
+	 */
+	public synchronized int chunkSize(String object, long rowCount, int targetBatches) {
+		long size = rowCount < 0 ? DEFAULT_CHUNK_SIZE : Math.max(1, (rowCount + targetBatches - 1) / targetBatches);
+		double millisPerRow = getDouble(object + ".millisPerRow");
+		if (millisPerRow > 0) {
+			size = Math.min(size, (long) (targetBatchMillis / millisPerRow));
+		}
+		double bytesPerRow = getDouble(object + ".bytesPerRow");
+		if (bytesPerRow > 0) {
+			size = Math.min(size, (long) (targetBatchBytes / bytesPerRow));
+		}
+		int chunkSize = (int) Math.max(1, Math.min(MAX_CHUNK_SIZE, size));
+		logger.info("chunk size for {}: {} ({} rows, {} ms/row, {} bytes/row)", object, chunkSize, rowCount, millisPerRow, bytesPerRow);
+		return chunkSize;
+	}
+
+	/**
+	 * 完了したバッチの処理時間と結果のサイズを記録する. 保存は{@link #store()}で行う.
+	 * @param chunkSize ジョブ作成時に指定した分割サイズ
+	 * @param bytes 結果のバイト数. 分からない場合は負の値
+	 */
+	public synchronized void record(String object, int chunkSize, BatchInfo info, long bytes) {
+		if (info.getState() != BatchStateEnum.Completed || chunkSize <= 0) {
+			return;
+		}
+		update(object + ".millisPerRow", (double) info.getTotalProcessingTime() / chunkSize);
+		if (bytes >= 0) {
+			update(object + ".bytesPerRow", (double) bytes / chunkSize);
+		}
+	}
+
+	public synchronized void store() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream os = Files.newOutputStream(tmp)) {
+			props.store(os, "observed PK-chunk batch latency and size per object");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void update(String key, double value) {
+		double current = getDouble(key);
+		double next = current > 0 ? current * (1 - WEIGHT) + value * WEIGHT : value;
+		props.setProperty(key, Double.toString(next));
+	}
+
+	private double getDouble(String key) {
+		return Double.parseDouble(props.getProperty(key, "0"));
+	}
+
+	/**
+	 * PK-chunkを有効にしてジョブを作成する.
+	 * ヘッダが他のジョブに残らないように、ジョブの作成だけに付ける.
+	 * connectionがセッションの更新や制限の適用をする接続の場合は、ジョブの作成にもそれが適用される.
+	 * @param parent 共有オブジェクト(AccountShareなど)の場合の親オブジェクト. 不要な場合はnull
+	 * @see JobHeaderConnection
+	 */
+	public static JobInfo createJob(BulkConnection connection, JobInfo job, int chunkSize, String parent) throws AsyncApiException {
+		String header = "chunkSize=" + chunkSize;
+		if (parent != null) {
+			header += "; parent=" + parent;
+		}
+		return JobHeaderConnection.createJob(connection, job, "Sforce-Enable-PKChunking", header);
+	}
+
+	/**
+	 * 件数を数えるクエリ. PK-chunkの分割サイズを決めるため、抽出条件は付けない.
+	 */
+	public static String countQuery(String object) {
+		return "select count() from " + object;
+	}
+
+}
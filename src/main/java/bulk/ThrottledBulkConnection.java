@@ -0,0 +1,130 @@
+package bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.AsyncExceptionCode;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchInfoList;
+import com.sforce.async.BatchResult;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.ContentType;
+import com.sforce.async.JobInfo;
+import com.sforce.async.QueryResultList;
+
+import util.JobHeaderConnection;
+
+/**
+ * {@link BulkJobScheduler}の制限を適用してから、元の接続に処理を委譲するBulkConnection.
+ * 元の接続のセッションの更新などがそのまま働くように、superではなく元の接続を呼び出す.
+ * PK-chunkなどのジョブの作成時だけのヘッダは、{@link JobHeaderConnection}として元の接続に委譲する.
+ */
+class ThrottledBulkConnection extends BulkConnection implements JobHeaderConnection {
+
+	private final BulkConnection delegate;
+
+	private final BulkJobScheduler scheduler;
+
+	ThrottledBulkConnection(BulkConnection delegate, BulkJobScheduler scheduler) throws AsyncApiException {
+		super(delegate.getConfig());
+		this.delegate = delegate;
+		this.scheduler = scheduler;
+	}
+
+	private void acquire(BulkJobScheduler.Kind kind) throws AsyncApiException {
+		try {
+			scheduler.acquire(kind);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AsyncApiException("interrupted while waiting for org limits", AsyncExceptionCode.ClientInputError, e);
+		} catch (IOException e) {
+			throw new AsyncApiException("Failed to get org limits", AsyncExceptionCode.ClientInputError, e);
+		}
+	}
+
+	@Override
+	public JobInfo createJob(JobInfo job) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.CALL);
+		return delegate.createJob(job);
+	}
+
+	@Override
+	public JobInfo createJob(JobInfo job, ContentType contentType) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.CALL);
+		return delegate.createJob(job, contentType);
+	}
+
+	@Override
+	public JobInfo createJob(JobInfo job, String headerName, String headerValue) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.CALL);
+		return JobHeaderConnection.createJob(delegate, job, headerName, headerValue);
+	}
+
+	@Override
+	public BatchInfo createBatchFromStream(JobInfo jobInfo, InputStream input) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.BATCH);
+		return delegate.createBatchFromStream(jobInfo, input);
+	}
+
+	@Override
+	public BatchInfoList getBatchInfoList(String jobId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.POLL);
+		return delegate.getBatchInfoList(jobId);
+	}
+
+	@Override
+	public BatchInfo getBatchInfo(String jobId, String batchId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.POLL);
+		return delegate.getBatchInfo(jobId, batchId);
+	}
+
+	@Override
+	public BatchResult getBatchResult(String jobId, String batchId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.DOWNLOAD);
+		return delegate.getBatchResult(jobId, batchId);
+	}
+
+	@Override
+	public InputStream getBatchResultStream(String jobId, String batchId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.DOWNLOAD);
+		return delegate.getBatchResultStream(jobId, batchId);
+	}
+
+	@Override
+	public QueryResultList getQueryResultList(String jobId, String batchId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.CALL);
+		return delegate.getQueryResultList(jobId, batchId);
+	}
+
+	@Override
+	public InputStream getQueryResultStream(String jobId, String batchId, String resultId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.DOWNLOAD);
+		return delegate.getQueryResultStream(jobId, batchId, resultId);
+	}
+
+	@Override
+	public JobInfo getJobStatus(String jobId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.POLL);
+		return delegate.getJobStatus(jobId);
+	}
+
+	@Override
+	public JobInfo closeJob(String jobId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.CALL);
+		return delegate.closeJob(jobId);
+	}
+
+	@Override
+	public JobInfo abortJob(String jobId) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.CALL);
+		return delegate.abortJob(jobId);
+	}
+
+	@Override
+	public JobInfo updateJob(JobInfo job) throws AsyncApiException {
+		acquire(BulkJobScheduler.Kind.CALL);
+		return delegate.updateJob(job);
+	}
+
+}
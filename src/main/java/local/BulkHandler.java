@@ -0,0 +1,476 @@
+package local;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import util.CsvReader;
+
+/**
+ * Bulk API(/services/async/)のジョブ、バッチ、結果の取得に応答する.
+ *
+ * バッチの状態は作成からの経過時間で決まり、バックグラウンドの処理はない.
+ * PK-chunk(Sforce-Enable-PKChunking)を指定したジョブでは、作成したバッチを後でNotProcessedにして、
+ * 同時に件数を分割したバッチを追加する.
+ */
+class BulkHandler implements HttpHandler {
+
+	private static final String NAMESPACE = "http://www.force.com/2009/06/asyncapi/dataload";
+
+	private static final Pattern CHUNK_SIZE = Pattern.compile("chunkSize=(\\d+)");
+
+	/** PK-chunkで分割サイズを指定しないときの件数 */
+	private static final long DEFAULT_CHUNK_SIZE = 100000;
+
+	private static final int RESULT_BUFFER_SIZE = 64 * 1024;
+
+	private static class Job {
+
+		final String id;
+
+		final String operation;
+
+		final String object;
+
+		final String concurrencyMode;
+
+		final String contentType;
+
+		final String externalIdFieldName;
+
+		final long chunkSize;
+
+		final Instant created = Instant.now();
+
+		final List<Batch> batches = new CopyOnWriteArrayList<>();
+
+		/** insertで採番したIDの数 */
+		final AtomicLong ingested = new AtomicLong();
+
+		volatile String state = "Open";
+
+		Job(String id, String operation, String object, String concurrencyMode, String contentType, String externalIdFieldName, long chunkSize) {
+			this.id = id;
+			this.operation = operation;
+			this.object = object;
+			this.concurrencyMode = concurrencyMode;
+			this.contentType = contentType;
+			this.externalIdFieldName = externalIdFieldName;
+			this.chunkSize = chunkSize;
+		}
+
+		boolean isQuery() {
+			return operation.startsWith("query");
+		}
+
+	}
+
+	private static class Batch {
+
+		final String id;
+
+		final long sequence;
+
+		final Instant created;
+
+		/** Queuedになる時刻. PK-chunkで追加したバッチは、元のバッチがNotProcessedになるまで見えない */
+		final long start;
+
+		/** PK-chunkの元のバッチの場合true */
+		final boolean parent;
+
+		final RecordGenerator.Query query;
+
+		/** クエリの場合はレコードの番号の範囲、データの登録の場合は採番したIDの範囲 */
+		final long from;
+
+		final long to;
+
+		final String failure;
+
+		Batch(String id, long sequence, long start, boolean parent, RecordGenerator.Query query, long from, long to, String failure) {
+			this.id = id;
+			this.sequence = sequence;
+			this.created = Instant.ofEpochMilli(start);
+			this.start = start;
+			this.parent = parent;
+			this.query = query;
+			this.from = from;
+			this.to = to;
+			this.failure = failure;
+		}
+
+	}
+
+	private final LocalOrgServer server;
+
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+	private final AtomicLong jobSequence = new AtomicLong();
+
+	private final AtomicLong batchSequence = new AtomicLong();
+
+	BulkHandler(LocalOrgServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		server.beforeResponse(exchange);
+		if (!server.isValid(exchange.getRequestHeaders().getFirst("X-SFDC-Session"))) {
+			error(exchange, 400, "InvalidSessionId", "Invalid session id");
+			return;
+		}
+		// /services/async/{version}/job/{jobId}/batch/{batchId}/result/{resultId}
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		if (path.length < 5 || !path[4].equals("job")) {
+			error(exchange, 404, "InvalidUrl", "unsupported url: " + exchange.getRequestURI());
+			return;
+		}
+		boolean post = exchange.getRequestMethod().equals("POST");
+		if (path.length == 5) {
+			createJob(exchange);
+			return;
+		}
+		Job job = jobs.get(path[5]);
+		if (job == null) {
+			error(exchange, 400, "InvalidJob", "Invalid job id: " + path[5]);
+			return;
+		}
+		if (path.length == 6) {
+			if (post) {
+				updateJob(exchange, job);
+			} else {
+				sendXml(exchange, jobInfo(job));
+			}
+		} else if (path.length == 7) {
+			if (post) {
+				createBatch(exchange, job);
+			} else {
+				sendXml(exchange, batchInfoList(job));
+			}
+		} else {
+			Batch batch = findBatch(job, path[7]);
+			if (batch == null) {
+				error(exchange, 400, "InvalidBatch", "Invalid batch id: " + path[7]);
+			} else if (path.length == 8) {
+				sendXml(exchange, batchInfo(job, batch, System.currentTimeMillis()));
+			} else if (path.length == 9) {
+				result(exchange, job, batch);
+			} else {
+				queryResult(exchange, job, batch, path[9]);
+			}
+		}
+	}
+
+	private void createJob(HttpExchange exchange) throws IOException {
+		String body = new String(LocalOrgServer.readBody(exchange), StandardCharsets.UTF_8);
+		String operation = element(body, "operation");
+		String object = element(body, "object");
+		if (operation == null || object == null) {
+			error(exchange, 400, "InvalidJob", "operation and object are required");
+			return;
+		}
+		long chunkSize = 0;
+		String pkChunking = exchange.getRequestHeaders().getFirst("Sforce-Enable-PKChunking");
+		if (pkChunking != null && !pkChunking.equalsIgnoreCase("false")) {
+			Matcher m = CHUNK_SIZE.matcher(pkChunking);
+			chunkSize = m.find() ? Long.parseLong(m.group(1)) : DEFAULT_CHUNK_SIZE;
+		}
+		String concurrencyMode = element(body, "concurrencyMode");
+		String contentType = element(body, "contentType");
+		Job job = new Job("750" + String.format("%012d", jobSequence.incrementAndGet()), operation, object,
+				concurrencyMode == null ? "Parallel" : concurrencyMode, contentType == null ? "CSV" : contentType,
+				element(body, "externalIdFieldName"), chunkSize);
+		jobs.put(job.id, job);
+		sendXml(exchange, jobInfo(job));
+	}
+
+	private void updateJob(HttpExchange exchange, Job job) throws IOException {
+		String state = element(new String(LocalOrgServer.readBody(exchange), StandardCharsets.UTF_8), "state");
+		if (state != null) {
+			job.state = state;
+		}
+		sendXml(exchange, jobInfo(job));
+	}
+
+	private void createBatch(HttpExchange exchange, Job job) throws IOException {
+		if (!job.state.equals("Open")) {
+			error(exchange, 400, "InvalidJobState", "Job not open: " + job.id);
+			return;
+		}
+		byte[] body = LocalOrgServer.readBody(exchange);
+		long now = System.currentTimeMillis();
+		Batch batch;
+		if (job.isQuery()) {
+			RecordGenerator.Query query;
+			try {
+				query = RecordGenerator.parse(new String(body, StandardCharsets.UTF_8));
+			} catch (IllegalArgumentException e) {
+				batch = newBatch(now, false, null, 0, 0, "InvalidBatch : " + e.getMessage());
+				job.batches.add(batch);
+				sendXml(exchange, batchInfo(job, batch, now));
+				return;
+			}
+			long total = server.getConfig().rows(query.object);
+			if (job.chunkSize > 0) {
+				batch = newBatch(now, true, query, 0, total, null);
+				job.batches.add(batch);
+				// 元のバッチがNotProcessedになった時点で、分割したバッチがQueuedになる
+				long chunkStart = now + server.getConfig().getBatchMillis() / 2;
+				for (long from = 0; from < total; from += job.chunkSize) {
+					job.batches.add(newBatch(chunkStart, false, query, from, Math.min(total, from + job.chunkSize), null));
+				}
+			} else {
+				batch = newBatch(now, false, query, 0, total, null);
+				job.batches.add(batch);
+			}
+		} else {
+			long records = 0;
+			try (CsvReader reader = new CsvReader(new ByteArrayInputStream(body))) {
+				reader.readHeader();
+				while (reader.next()) {
+					records++;
+				}
+			}
+			long from = job.ingested.getAndAdd(records);
+			batch = newBatch(now, false, null, from, from + records, null);
+			job.batches.add(batch);
+		}
+		sendXml(exchange, batchInfo(job, batch, now));
+	}
+
+	private Batch newBatch(long start, boolean parent, RecordGenerator.Query query, long from, long to, String failure) {
+		long sequence = batchSequence.incrementAndGet();
+		server.countBatch();
+		if (failure == null && !parent && server.getConfig().fails(sequence)) {
+			failure = "InternalServerError : simulated failure";
+		}
+		return new Batch("751" + String.format("%012d", sequence), sequence, start, parent, query, from, to, failure);
+	}
+
+	private static Batch findBatch(Job job, String batchId) {
+		for (Batch batch : job.batches) {
+			if (batch.id.equals(batchId)) {
+				return batch;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 作成からbatchMillisの前半はQueued、後半はInProgress、その後はCompletedかFailed.
+	 * PK-chunkの元のバッチは、前半が過ぎた時点でNotProcessedになる.
+	 */
+	private String state(Batch batch, long now) {
+		long batchMillis = server.getConfig().getBatchMillis();
+		if (now < batch.start + batchMillis / 2) {
+			return "Queued";
+		}
+		if (batch.parent) {
+			return "NotProcessed";
+		}
+		if (now < batch.start + batchMillis) {
+			return "InProgress";
+		}
+		return batch.failure == null ? "Completed" : "Failed";
+	}
+
+	private void result(HttpExchange exchange, Job job, Batch batch) throws IOException {
+		String state = state(batch, System.currentTimeMillis());
+		if (!state.equals("Completed")) {
+			error(exchange, 400, "InvalidBatch", "Batch not completed: " + batch.id + " (" + state + ")");
+			return;
+		}
+		if (job.isQuery()) {
+			StringBuilder xml = new StringBuilder();
+			xml.append("<result-list xmlns=\"").append(NAMESPACE).append("\">");
+			for (int i = 0; i < resultCount(batch); i++) {
+				xml.append("<result>").append(resultId(batch, i)).append("</result>");
+			}
+			xml.append("</result-list>");
+			sendXml(exchange, xml);
+			return;
+		}
+		boolean created = job.operation.equals("insert") || job.operation.equals("upsert");
+		exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=UTF-8");
+		try (OutputStream out = new BufferedOutputStream(LocalOrgServer.responseBody(exchange, 200, 0), RESULT_BUFFER_SIZE)) {
+			out.write("\"Id\",\"Success\",\"Created\",\"Error\"\n".getBytes(StandardCharsets.UTF_8));
+			for (long row = batch.from; row < batch.to; row++) {
+				String line = "\"" + RecordGenerator.id(job.object, row) + "\",\"true\",\"" + created + "\",\"\"\n";
+				out.write(line.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private void queryResult(HttpExchange exchange, Job job, Batch batch, String resultId) throws IOException {
+		int index = -1;
+		for (int i = 0; i < resultCount(batch); i++) {
+			if (resultId(batch, i).equals(resultId)) {
+				index = i;
+			}
+		}
+		if (!job.isQuery() || index < 0 || !state(batch, System.currentTimeMillis()).equals("Completed")) {
+			error(exchange, 400, "InvalidBatch", "Invalid result id: " + resultId);
+			return;
+		}
+		long rowsPerResult = server.getConfig().getRowsPerResult();
+		long from = batch.from + index * rowsPerResult;
+		long to = Math.min(batch.to, from + rowsPerResult);
+		// 件数が多くてもメモリに載せないように、chunkedで少しずつ返す
+		exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=UTF-8");
+		try (OutputStream out = new BufferedOutputStream(LocalOrgServer.responseBody(exchange, 200, 0), RESULT_BUFFER_SIZE)) {
+			RecordGenerator.writeCsv(out, batch.query, from, to);
+		}
+	}
+
+	private int resultCount(Batch batch) {
+		long rowsPerResult = server.getConfig().getRowsPerResult();
+		return (int) Math.max(1, (batch.to - batch.from + rowsPerResult - 1) / rowsPerResult);
+	}
+
+	private static String resultId(Batch batch, int index) {
+		return "752" + String.format("%07d%05d", batch.sequence, index);
+	}
+
+	private StringBuilder jobInfo(Job job) {
+		long now = System.currentTimeMillis();
+		int queued = 0;
+		int inProgress = 0;
+		int completed = 0;
+		int failed = 0;
+		int total = 0;
+		long processed = 0;
+		for (Batch batch : job.batches) {
+			if (batch.start > now) {
+				continue;
+			}
+			total++;
+			switch (state(batch, now)) {
+			case "Queued":
+				queued++;
+				break;
+			case "InProgress":
+				inProgress++;
+				break;
+			case "Completed":
+				completed++;
+				processed += batch.to - batch.from;
+				break;
+			case "Failed":
+				failed++;
+				break;
+			default:
+				// PK-chunkの元のバッチ(NotProcessed)は数えない
+				break;
+			}
+		}
+		StringBuilder xml = new StringBuilder();
+		xml.append("<jobInfo xmlns=\"").append(NAMESPACE).append("\">")
+				.append("<id>").append(job.id).append("</id>")
+				.append("<operation>").append(job.operation).append("</operation>")
+				.append("<object>").append(job.object).append("</object>")
+				.append("<createdById>").append(LocalOrgServer.USER_ID).append("</createdById>")
+				.append("<createdDate>").append(job.created).append("</createdDate>")
+				.append("<systemModstamp>").append(Instant.ofEpochMilli(now)).append("</systemModstamp>")
+				.append("<state>").append(job.state).append("</state>");
+		if (job.externalIdFieldName != null) {
+			xml.append("<externalIdFieldName>").append(job.externalIdFieldName).append("</externalIdFieldName>");
+		}
+		xml.append("<concurrencyMode>").append(job.concurrencyMode).append("</concurrencyMode>")
+				.append("<contentType>").append(job.contentType).append("</contentType>")
+				.append("<numberBatchesQueued>").append(queued).append("</numberBatchesQueued>")
+				.append("<numberBatchesInProgress>").append(inProgress).append("</numberBatchesInProgress>")
+				.append("<numberBatchesCompleted>").append(completed).append("</numberBatchesCompleted>")
+				.append("<numberBatchesFailed>").append(failed).append("</numberBatchesFailed>")
+				.append("<numberBatchesTotal>").append(total).append("</numberBatchesTotal>")
+				.append("<numberRecordsProcessed>").append(processed).append("</numberRecordsProcessed>")
+				.append("<numberRetries>0</numberRetries>")
+				.append("<apiVersion>39.0</apiVersion>")
+				.append("<numberRecordsFailed>0</numberRecordsFailed>")
+				.append("<totalProcessingTime>0</totalProcessingTime>")
+				.append("<apiActiveProcessingTime>0</apiActiveProcessingTime>")
+				.append("<apexProcessingTime>0</apexProcessingTime>")
+				.append("</jobInfo>");
+		return xml;
+	}
+
+	private StringBuilder batchInfoList(Job job) {
+		long now = System.currentTimeMillis();
+		List<Batch> visible = new ArrayList<>();
+		for (Batch batch : job.batches) {
+			if (batch.start <= now) {
+				visible.add(batch);
+			}
+		}
+		StringBuilder xml = new StringBuilder();
+		xml.append("<batchInfoList xmlns=\"").append(NAMESPACE).append("\">");
+		for (Batch batch : visible) {
+			appendBatchInfo(xml, "batchInfo", job, batch, now);
+		}
+		xml.append("</batchInfoList>");
+		return xml;
+	}
+
+	private StringBuilder batchInfo(Job job, Batch batch, long now) {
+		StringBuilder xml = new StringBuilder();
+		appendBatchInfo(xml, "batchInfo xmlns=\"" + NAMESPACE + "\"", job, batch, now);
+		return xml;
+	}
+
+	private void appendBatchInfo(StringBuilder xml, String tag, Job job, Batch batch, long now) {
+		String state = state(batch, now);
+		long processed = state.equals("Completed") ? batch.to - batch.from : 0;
+		// InProgressだった時間を処理時間として返す
+		long processingTime = state.equals("Completed") || state.equals("Failed") ? server.getConfig().getBatchMillis() - server.getConfig().getBatchMillis() / 2 : 0;
+		xml.append('<').append(tag).append('>')
+				.append("<id>").append(batch.id).append("</id>")
+				.append("<jobId>").append(job.id).append("</jobId>")
+				.append("<state>").append(state).append("</state>");
+		if (state.equals("Failed")) {
+			xml.append("<stateMessage>").append(RecordGenerator.escape(batch.failure)).append("</stateMessage>");
+		} else if (state.equals("NotProcessed")) {
+			xml.append("<stateMessage>Not processed</stateMessage>");
+		}
+		// 最後に状態が変わった時刻
+		long modified = Math.min(now, batch.start + (batch.parent ? server.getConfig().getBatchMillis() / 2 : server.getConfig().getBatchMillis()));
+		xml.append("<createdDate>").append(batch.created).append("</createdDate>")
+				.append("<systemModstamp>").append(Instant.ofEpochMilli(modified)).append("</systemModstamp>")
+				.append("<numberRecordsProcessed>").append(processed).append("</numberRecordsProcessed>")
+				.append("<numberRecordsFailed>0</numberRecordsFailed>")
+				.append("<totalProcessingTime>").append(processingTime).append("</totalProcessingTime>")
+				.append("<apiActiveProcessingTime>").append(processingTime).append("</apiActiveProcessingTime>")
+				.append("<apexProcessingTime>0</apexProcessingTime>")
+				.append("</batchInfo>");
+	}
+
+	private static void sendXml(HttpExchange exchange, StringBuilder body) throws IOException {
+		LocalOrgServer.send(exchange, 200, "application/xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body);
+	}
+
+	private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+		LocalOrgServer.send(exchange, status, "application/xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<error xmlns=\"" + NAMESPACE + "\"><exceptionCode>" + code + "</exceptionCode>"
+				+ "<exceptionMessage>" + RecordGenerator.escape(message) + "</exceptionMessage></error>");
+	}
+
+	private static String element(String body, String name) {
+		Matcher m = Pattern.compile("<(?:\\w+:)?" + name + "(?:\\s[^>]*)?>([^<]*)</").matcher(body);
+		return m.find() ? m.group(1).trim() : null;
+	}
+
+}
@@ -0,0 +1,396 @@
+package local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import util.ConnectionUtil;
+
+/**
+ * 負荷試験用に、Salesforceの代わりに応答するローカルのHTTPサーバ.
+ *
+ * 以下のAPIを最低限エミュレートする.
+ * <ul>
+ * <li>SOAP API(Enterprise/Partner)のlogin, query, queryAll, queryMore. select句がcount/max/minだけのクエリは、全件を集計した1件を返す</li>
+ * <li>Bulk APIのジョブ、バッチ、結果の取得. PK-chunkを指定した場合は、元のバッチをNotProcessedにして分割したバッチを追加する</li>
+ * <li>REST APIの/limits</li>
+ * </ul>
+ * レコードは{@link RecordGenerator}で要求のたびに作るので、件数を増やしてもメモリは増えない.
+ * 抽出条件は解釈せず、常にオブジェクトの全件を返す. Metadata APIには対応していない.
+ * リクエストにAccept-Encoding: gzipがある場合は、応答をgzipで返す.
+ *
+ * {@code -DSF_LOGIN_URL=}{@link #getLoginUrl()}を指定すると、{@link ConnectionUtil}の接続はすべてこのサーバに向く.
+ */
+public class LocalOrgServer implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalOrgServer.class);
+
+	static final String ORG_ID = "00D000000000001";
+
+	static final String USER_ID = "005000000000001";
+
+	/**
+	 * サーバの設定.
+	 */
+	public static class Config {
+
+		private int port;
+
+		private int threads = 32;
+
+		private long latencyMillis;
+
+		private long batchMillis = 2000;
+
+		private double failureRate;
+
+		private long seed = 1;
+
+		private long defaultRows = 10000;
+
+		private final Map<String, Long> rows = new HashMap<>();
+
+		private long rowsPerResult = 1000000;
+
+		private int sessionSecondsValid = 7200;
+
+		private long dailyApiRequests = 15000;
+
+		private long dailyBulkApiRequests = 10000;
+
+		/** 0の場合は空いているポートを使う */
+		public Config setPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/** リクエストを処理するスレッド数 */
+		public Config setThreads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/** 全てのレスポンスを返す前に待つ時間 */
+		public Config setLatencyMillis(long latencyMillis) {
+			this.latencyMillis = latencyMillis;
+			return this;
+		}
+
+		/** バッチの作成から完了までの時間. 前半はQueued、後半はInProgressになる */
+		public Config setBatchMillis(long batchMillis) {
+			this.batchMillis = batchMillis;
+			return this;
+		}
+
+		/** バッチがFailedになる割合(0〜1) */
+		public Config setFailureRate(double failureRate) {
+			this.failureRate = failureRate;
+			return this;
+		}
+
+		/** 失敗させるバッチを決める乱数の種. 同じ種なら同じバッチが失敗する */
+		public Config setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/** setRowsで指定していないオブジェクトの件数 */
+		public Config setDefaultRows(long defaultRows) {
+			this.defaultRows = defaultRows;
+			return this;
+		}
+
+		public Config setRows(String object, long count) {
+			rows.put(object.toLowerCase(Locale.ROOT), count);
+			return this;
+		}
+
+		/** Bulk APIのクエリ結果を分割する件数 */
+		public Config setRowsPerResult(long rowsPerResult) {
+			this.rowsPerResult = rowsPerResult;
+			return this;
+		}
+
+		/** セッションの有効期間. 切れるとINVALID_SESSION_ID(InvalidSessionId)を返す */
+		public Config setSessionSecondsValid(int sessionSecondsValid) {
+			this.sessionSecondsValid = sessionSecondsValid;
+			return this;
+		}
+
+		/** /limitsで返す1日あたりのAPIリクエスト数とBulk APIのバッチ数の上限 */
+		public Config setDailyLimits(long dailyApiRequests, long dailyBulkApiRequests) {
+			this.dailyApiRequests = dailyApiRequests;
+			this.dailyBulkApiRequests = dailyBulkApiRequests;
+			return this;
+		}
+
+		long rows(String object) {
+			return rows.getOrDefault(object.toLowerCase(Locale.ROOT), defaultRows);
+		}
+
+		int getSessionSecondsValid() {
+			return sessionSecondsValid;
+		}
+
+		long getBatchMillis() {
+			return batchMillis;
+		}
+
+		long getRowsPerResult() {
+			return rowsPerResult;
+		}
+
+		/**
+		 * 番号がnのバッチを失敗させるかどうか.
+		 * Randomは近いシードの最初の値がほとんど同じになるので、シードをかき混ぜるSplittableRandomを使う.
+		 */
+		boolean fails(long n) {
+			return failureRate > 0 && new SplittableRandom(seed * 31 + n).nextDouble() < failureRate;
+		}
+
+	}
+
+	private final Config config;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	/** セッションIDと有効期限 */
+	private final Map<String, Long> sessions = new ConcurrentHashMap<>();
+
+	private final AtomicLong apiRequests = new AtomicLong();
+
+	private final AtomicLong bulkBatches = new AtomicLong();
+
+	private final AtomicLong responseBytes = new AtomicLong();
+
+	private LocalOrgServer(Config config) throws IOException {
+		this.config = config;
+		this.server = HttpServer.create(new InetSocketAddress("localhost", config.port), 0);
+		this.executor = Executors.newFixedThreadPool(config.threads);
+		server.setExecutor(executor);
+		createContext("/services/Soap/", new SoapHandler(this));
+		createContext("/services/async/", new BulkHandler(this));
+		createContext("/services/data/", this::limits);
+	}
+
+	private void createContext(String path, HttpHandler handler) {
+		server.createContext(path, guard(handler)).getFilters().add(new Filter() {
+
+			@Override
+			public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+				exchange.setStreams(null, new FilterOutputStream(exchange.getResponseBody()) {
+
+					@Override
+					public void write(int b) throws IOException {
+						out.write(b);
+						responseBytes.incrementAndGet();
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+						responseBytes.addAndGet(len);
+					}
+
+				});
+				chain.doFilter(exchange);
+			}
+
+			@Override
+			public String description() {
+				return "counts response bytes";
+			}
+
+		});
+	}
+
+	public static LocalOrgServer start(Config config) throws IOException {
+		LocalOrgServer local = new LocalOrgServer(config);
+		local.server.start();
+		logger.info("local org started: {}", local.getLoginUrl());
+		return local;
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/** SF_LOGIN_URLに指定するURL */
+	public String getLoginUrl() {
+		return "http://localhost:" + getPort();
+	}
+
+	/** 発行済みのセッションを全て無効にする. セッションの更新の確認に使う */
+	public void expireSessions() {
+		sessions.clear();
+	}
+
+	/** これまでに受け付けたAPIリクエスト数 */
+	public long getApiRequests() {
+		return apiRequests.get();
+	}
+
+	/** これまでに返した応答の本文のバイト数(圧縮した場合は圧縮後). 転送量の確認に使う */
+	public long getResponseBytes() {
+		return responseBytes.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	Config getConfig() {
+		return config;
+	}
+
+	String login() {
+		String sessionId = ORG_ID + "!" + UUID.randomUUID().toString().replace("-", "");
+		sessions.put(sessionId, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.sessionSecondsValid));
+		return sessionId;
+	}
+
+	boolean isValid(String sessionId) {
+		Long expires = sessionId == null ? null : sessions.get(sessionId);
+		return expires != null && expires > System.currentTimeMillis();
+	}
+
+	void countBatch() {
+		bulkBatches.incrementAndGet();
+	}
+
+	/**
+	 * リクエストを数えて、設定した遅延の分だけ待つ. 全てのハンドラの先頭で呼び出す.
+	 */
+	void beforeResponse(HttpExchange exchange) {
+		long used = apiRequests.incrementAndGet();
+		exchange.getResponseHeaders().set("Sforce-Limit-Info", "api-usage=" + used + "/" + config.dailyApiRequests);
+		if (config.latencyMillis > 0) {
+			try {
+				Thread.sleep(config.latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void limits(HttpExchange exchange) throws IOException {
+		beforeResponse(exchange);
+		String auth = exchange.getRequestHeaders().getFirst("Authorization");
+		if (auth == null || !isValid(auth.replaceFirst("^(?i)Bearer\\s+", ""))) {
+			send(exchange, 401, "application/json", "[{\"message\":\"Session expired or invalid\",\"errorCode\":\"INVALID_SESSION_ID\"}]");
+			return;
+		}
+		String json = "{\"DailyApiRequests\":{\"Max\":" + config.dailyApiRequests
+				+ ",\"Remaining\":" + Math.max(0, config.dailyApiRequests - apiRequests.get()) + "}"
+				+ ",\"DailyBulkApiRequests\":{\"Max\":" + config.dailyBulkApiRequests
+				+ ",\"Remaining\":" + Math.max(0, config.dailyBulkApiRequests - bulkBatches.get()) + "}}";
+		send(exchange, 200, "application/json", json);
+	}
+
+	/**
+	 * リクエストの本文を読み込む. wscは圧縮を有効にするとgzipで送ってくる.
+	 */
+	static byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+		try (OutputStream out = responseBody(exchange, status, bytes.length)) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * ヘッダを送って、応答の本文を書き込むストリームを返す.
+	 * クライアントがgzipを受け付ける場合は圧縮し、長さが分からないのでchunkedにする.
+	 * @param length 本文の長さ. 分からない場合は0
+	 */
+	static OutputStream responseBody(HttpExchange exchange, int status, long length) throws IOException {
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accept != null && accept.toLowerCase(Locale.ROOT).contains("gzip")) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			exchange.sendResponseHeaders(status, 0);
+			return new GZIPOutputStream(exchange.getResponseBody(), 64 * 1024);
+		}
+		exchange.sendResponseHeaders(status, length);
+		return exchange.getResponseBody();
+	}
+
+	/**
+	 * 例外をそのまま返すと接続が切れるだけなので、500を返してログに残す.
+	 */
+	static HttpHandler guard(HttpHandler handler) {
+		return exchange -> {
+			try {
+				handler.handle(exchange);
+			} catch (RuntimeException | IOException e) {
+				logger.warn("local org request failed: " + exchange.getRequestURI(), e);
+				try {
+					send(exchange, 500, "text/plain", String.valueOf(e));
+				} catch (IOException | RuntimeException ignore) {
+					// レスポンスを返し始めている場合は何もできない
+				}
+			} finally {
+				exchange.close();
+			}
+		};
+	}
+
+	/**
+	 * 単独で起動する. 停止するまで動き続ける.
+	 * <pre>
+	 * -DSF_LOCAL_PORT=8090 -DSF_LOCAL_ROWS=10000000 -DSF_LOCAL_LATENCY_MILLIS=50 -DSF_LOCAL_FAILURE_RATE=0.01
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		Config config = new Config()
+				.setPort(Integer.getInteger("SF_LOCAL_PORT", 8090))
+				.setDefaultRows(Long.getLong("SF_LOCAL_ROWS", 10000))
+				.setLatencyMillis(Long.getLong("SF_LOCAL_LATENCY_MILLIS", 0))
+				.setBatchMillis(Long.getLong("SF_LOCAL_BATCH_MILLIS", 2000))
+				.setFailureRate(Double.parseDouble(System.getProperty("SF_LOCAL_FAILURE_RATE", "0")));
+		LocalOrgServer local = start(config);
+		System.out.println("-DSF_LOGIN_URL=" + local.getLoginUrl() + " -DSF_USER=local -DSF_PASSWORD=local");
+	}
+
+}
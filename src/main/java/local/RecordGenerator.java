@@ -0,0 +1,190 @@
+package local;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ローカルのサーバで返すレコードを作成するクラス.
+ * 値はオブジェクト名、項目名とレコードの番号だけから決まるので、同じレコードは何度取得しても同じ値になる.
+ * レコードは保持せずに、要求されるたびに作成する.
+ */
+class RecordGenerator {
+
+	private static final Pattern SELECT = Pattern.compile("(?is)^\\s*select\\s+(.+?)\\s+from\\s+(\\w+)");
+
+	/** count(Id)やmax(SystemModstamp)などの集計関数 */
+	private static final Pattern AGGREGATE = Pattern.compile("(?i)(count|max|min)\\(\\s*(\\w*)\\s*\\)");
+
+	private static final Instant BASE_TIME = Instant.parse("2017-01-01T00:00:00Z");
+
+	private RecordGenerator() {
+	}
+
+	/**
+	 * SOQLのselect句とfrom句.
+	 */
+	static class Query {
+
+		final String object;
+
+		final List<String> fields;
+
+		/** select count() の場合true */
+		final boolean count;
+
+		/** select句が全て集計関数の場合true. 1件のAggregateResultを返す */
+		final boolean aggregate;
+
+		Query(String object, List<String> fields, boolean count) {
+			this.object = object;
+			this.fields = fields;
+			this.count = count;
+			boolean aggregate = !fields.isEmpty();
+			for (String field : fields) {
+				aggregate &= AGGREGATE.matcher(field).matches();
+			}
+			this.aggregate = aggregate;
+		}
+
+	}
+
+	/**
+	 * 抽出条件などは解釈せず、オブジェクトの全レコードを対象とする.
+	 */
+	static Query parse(String soql) {
+		Matcher m = SELECT.matcher(soql);
+		if (!m.find()) {
+			throw new IllegalArgumentException("MALFORMED_QUERY: " + soql);
+		}
+		String select = m.group(1).trim();
+		if (select.replace(" ", "").equalsIgnoreCase("count()")) {
+			return new Query(m.group(2), new ArrayList<>(), true);
+		}
+		List<String> fields = new ArrayList<>();
+		for (String field : select.split(",")) {
+			fields.add(field.trim());
+		}
+		return new Query(m.group(2), fields, false);
+	}
+
+	/** オブジェクトのIDの先頭3文字 */
+	static String prefix(String object) {
+		switch (object.toLowerCase(Locale.ROOT)) {
+		case "account":
+			return "001";
+		case "contact":
+			return "003";
+		case "user":
+			return "005";
+		default:
+			return "a00";
+		}
+	}
+
+	/** 15桁のID */
+	static String id(String object, long row) {
+		return prefix(object) + String.format("%012d", row);
+	}
+
+	static String value(String object, String field, long row) {
+		switch (field.toLowerCase(Locale.ROOT)) {
+		case "id":
+			return id(object, row);
+		case "name":
+			return object + " " + row;
+		case "isdeleted":
+			return "false";
+		case "systemmodstamp":
+		case "lastmodifieddate":
+		case "createddate":
+			return BASE_TIME.plusSeconds(row).toString();
+		case "phone":
+			return String.format("03-%04d-%04d", (row / 10000) % 10000, row % 10000);
+		default:
+			return field + "-" + row;
+		}
+	}
+
+	/**
+	 * Bulk APIと同じ形式(全ての値をダブルクォートで囲む)で、[from, to)のレコードをCSVとして書き込む.
+	 */
+	static void writeCsv(OutputStream out, Query query, long from, long to) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < query.fields.size(); i++) {
+			line.append(i > 0 ? ",\"" : "\"").append(query.fields.get(i)).append('"');
+		}
+		line.append('\n');
+		out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+		for (long row = from; row < to; row++) {
+			line.setLength(0);
+			for (int i = 0; i < query.fields.size(); i++) {
+				line.append(i > 0 ? ",\"" : "\"").append(value(query.object, query.fields.get(i), row)).append('"');
+			}
+			line.append('\n');
+			out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * SOAP APIのqueryのレスポンスのrecords要素を書き込む.
+	 * @param partner Partner APIの場合true. オブジェクト名をtype要素で返す
+	 */
+	static void writeSoapRecords(StringBuilder xml, Query query, long from, long to, boolean partner) {
+		for (long row = from; row < to; row++) {
+			if (partner) {
+				xml.append("<records xsi:type=\"sf:sObject\"><sf:type>").append(query.object).append("</sf:type>");
+			} else {
+				xml.append("<records xsi:type=\"sf:").append(query.object).append("\">");
+			}
+			for (String field : query.fields) {
+				String name = field.contains(".") ? field.substring(field.lastIndexOf('.') + 1) : field;
+				xml.append("<sf:").append(name).append('>')
+						.append(escape(value(query.object, field, row)))
+						.append("</sf:").append(name).append('>');
+			}
+			xml.append("</records>");
+		}
+	}
+
+	/**
+	 * 全件を集計した1件のAggregateResultを書き込む. 値はexpr0, expr1, ...の順.
+	 * count()は件数、max()は最後のレコード、min()は最初のレコードの値にする.
+	 */
+	static void writeSoapAggregate(StringBuilder xml, Query query, long total, boolean partner) {
+		if (partner) {
+			xml.append("<records xsi:type=\"sf:sObject\"><sf:type>AggregateResult</sf:type>");
+		} else {
+			xml.append("<records xsi:type=\"sf:AggregateResult\">");
+		}
+		for (int i = 0; i < query.fields.size(); i++) {
+			Matcher m = AGGREGATE.matcher(query.fields.get(i));
+			m.matches();
+			String value;
+			if (m.group(1).equalsIgnoreCase("count")) {
+				value = String.valueOf(total);
+			} else if (total == 0) {
+				value = null;
+			} else {
+				value = value(query.object, m.group(2), m.group(1).equalsIgnoreCase("max") ? total - 1 : 0);
+			}
+			if (value == null) {
+				xml.append("<sf:expr").append(i).append(" xsi:nil=\"true\"/>");
+			} else {
+				xml.append("<sf:expr").append(i).append('>').append(escape(value)).append("</sf:expr").append(i).append('>');
+			}
+		}
+		xml.append("</records>");
+	}
+
+	static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+}
@@ -0,0 +1,226 @@
+package local;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import util.ConnectionUtil;
+
+/**
+ * SOAP API(/services/Soap/c/, /services/Soap/u/)のlogin, query, queryAll, queryMoreに応答する.
+ * 要求は本文の要素名だけで判別し、XMLとしては解析しない.
+ */
+class SoapHandler implements HttpHandler {
+
+	private static final Pattern OPERATION = Pattern.compile("<(?:\\w+:)?(login|queryAll|queryMore|query)[\\s>]");
+
+	private static final int DEFAULT_BATCH_SIZE = 500;
+
+	private static final int MAX_BATCH_SIZE = 2000;
+
+	/**
+	 * queryMoreのための、クエリと1回に返す件数.
+	 * ロケータは「カーソルのID-次の位置」なので、位置はここに持たない.
+	 */
+	private static class Cursor {
+
+		final RecordGenerator.Query query;
+
+		final long total;
+
+		final int batchSize;
+
+		Cursor(RecordGenerator.Query query, long total, int batchSize) {
+			this.query = query;
+			this.total = total;
+			this.batchSize = batchSize;
+		}
+
+	}
+
+	private final LocalOrgServer server;
+
+	private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+
+	private final AtomicLong cursorSequence = new AtomicLong();
+
+	SoapHandler(LocalOrgServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		server.beforeResponse(exchange);
+		String path = exchange.getRequestURI().getPath();
+		boolean partner = path.contains("/Soap/u/");
+		String body = new String(LocalOrgServer.readBody(exchange), StandardCharsets.UTF_8);
+		if (!partner && !path.contains("/Soap/c/")) {
+			fault(exchange, partner, "UNSUPPORTED_API_VERSION", "only enterprise and partner API are supported: " + path);
+			return;
+		}
+		Matcher m = OPERATION.matcher(body);
+		if (!m.find()) {
+			fault(exchange, partner, "INVALID_OPERATION", "unsupported operation");
+			return;
+		}
+		String operation = m.group(1);
+		if (operation.equals("login")) {
+			login(exchange, partner);
+			return;
+		}
+		if (!server.isValid(element(body, "sessionId"))) {
+			fault(exchange, partner, "INVALID_SESSION_ID", "Invalid Session ID found in SessionHeader: Illegal Session");
+			return;
+		}
+		try {
+			if (operation.equals("queryMore")) {
+				queryMore(exchange, partner, element(body, "queryLocator"));
+			} else {
+				String batchSize = element(body, "batchSize");
+				query(exchange, partner, unescape(element(body, "queryString")),
+						batchSize == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batchSize));
+			}
+		} catch (IllegalArgumentException e) {
+			fault(exchange, partner, "MALFORMED_QUERY", e.getMessage());
+		}
+	}
+
+	private void login(HttpExchange exchange, boolean partner) throws IOException {
+		String base = server.getLoginUrl() + "/services/Soap/";
+		String api = partner ? "u/" : "c/";
+		StringBuilder xml = new StringBuilder();
+		xml.append("<loginResponse><result>")
+				.append("<metadataServerUrl>").append(base).append("m/").append(ConnectionUtil.API_VERSION).append('/').append(LocalOrgServer.ORG_ID).append("</metadataServerUrl>")
+				.append("<passwordExpired>false</passwordExpired>")
+				.append("<sandbox>true</sandbox>")
+				.append("<serverUrl>").append(base).append(api).append(ConnectionUtil.API_VERSION).append('/').append(LocalOrgServer.ORG_ID).append("</serverUrl>")
+				.append("<sessionId>").append(server.login()).append("</sessionId>")
+				.append("<userId>").append(LocalOrgServer.USER_ID).append("</userId>")
+				.append("<userInfo>")
+				.append("<accessibilityMode>false</accessibilityMode>")
+				.append("<currencySymbol>￥</currencySymbol>")
+				.append("<orgAttachmentFileSizeLimit>5242880</orgAttachmentFileSizeLimit>")
+				.append("<orgDefaultCurrencyIsoCode>JPY</orgDefaultCurrencyIsoCode>")
+				.append("<orgDefaultCurrencyLocale>ja_JP</orgDefaultCurrencyLocale>")
+				.append("<orgDisallowHtmlAttachments>false</orgDisallowHtmlAttachments>")
+				.append("<orgHasPersonAccounts>false</orgHasPersonAccounts>")
+				.append("<organizationId>").append(LocalOrgServer.ORG_ID).append("</organizationId>")
+				.append("<organizationMultiCurrency>false</organizationMultiCurrency>")
+				.append("<organizationName>local</organizationName>")
+				.append("<profileId>00e000000000001</profileId>")
+				.append("<roleId xsi:nil=\"true\"/>")
+				.append("<sessionSecondsValid>").append(server.getConfig().getSessionSecondsValid()).append("</sessionSecondsValid>")
+				.append("<userDefaultCurrencyIsoCode xsi:nil=\"true\"/>")
+				.append("<userEmail>local@example.com</userEmail>")
+				.append("<userFullName>local</userFullName>")
+				.append("<userId>").append(LocalOrgServer.USER_ID).append("</userId>")
+				.append("<userLanguage>ja</userLanguage>")
+				.append("<userLocale>ja_JP</userLocale>")
+				.append("<userName>local@example.com</userName>")
+				.append("<userTimeZone>Asia/Tokyo</userTimeZone>")
+				.append("<userType>Standard</userType>")
+				.append("<userUiSkin>Theme3</userUiSkin>")
+				.append("</userInfo>")
+				.append("</result></loginResponse>");
+		envelope(exchange, partner, 200, xml);
+	}
+
+	private void query(HttpExchange exchange, boolean partner, String soql, int batchSize) throws IOException {
+		if (soql == null) {
+			throw new IllegalArgumentException("queryString is required");
+		}
+		RecordGenerator.Query query = RecordGenerator.parse(soql);
+		long total = server.getConfig().rows(query.object);
+		if (query.count) {
+			StringBuilder xml = new StringBuilder();
+			xml.append("<queryResponse><result><done>true</done><queryLocator xsi:nil=\"true\"/><size>")
+					.append(total).append("</size></result></queryResponse>");
+			envelope(exchange, partner, 200, xml);
+			return;
+		}
+		if (query.aggregate) {
+			StringBuilder xml = new StringBuilder();
+			xml.append("<queryResponse><result><done>true</done><queryLocator xsi:nil=\"true\"/>");
+			RecordGenerator.writeSoapAggregate(xml, query, total, partner);
+			xml.append("<size>1</size></result></queryResponse>");
+			envelope(exchange, partner, 200, xml);
+			return;
+		}
+		Cursor cursor = new Cursor(query, total, Math.max(200, Math.min(MAX_BATCH_SIZE, batchSize)));
+		String id = "01g" + String.format("%012d", cursorSequence.incrementAndGet());
+		cursors.put(id, cursor);
+		page(exchange, partner, "queryResponse", id, cursor, 0);
+	}
+
+	private void queryMore(HttpExchange exchange, boolean partner, String locator) throws IOException {
+		int separator = locator == null ? -1 : locator.lastIndexOf('-');
+		Cursor cursor = separator < 0 ? null : cursors.get(locator.substring(0, separator));
+		if (cursor == null) {
+			fault(exchange, partner, "INVALID_QUERY_LOCATOR", "invalid query locator: " + locator);
+			return;
+		}
+		page(exchange, partner, "queryMoreResponse", locator.substring(0, separator), cursor, Long.parseLong(locator.substring(separator + 1)));
+	}
+
+	private void page(HttpExchange exchange, boolean partner, String response, String id, Cursor cursor, long from) throws IOException {
+		long to = Math.min(cursor.total, from + cursor.batchSize);
+		boolean done = to >= cursor.total;
+		if (done) {
+			cursors.remove(id);
+		}
+		StringBuilder xml = new StringBuilder(256 + (int) (to - from) * 64 * Math.max(1, cursor.query.fields.size()));
+		xml.append('<').append(response).append("><result><done>").append(done).append("</done>");
+		if (done) {
+			xml.append("<queryLocator xsi:nil=\"true\"/>");
+		} else {
+			xml.append("<queryLocator>").append(id).append('-').append(to).append("</queryLocator>");
+		}
+		RecordGenerator.writeSoapRecords(xml, cursor.query, from, to, partner);
+		xml.append("<size>").append(cursor.total).append("</size></result></").append(response).append('>');
+		envelope(exchange, partner, 200, xml);
+	}
+
+	private void fault(HttpExchange exchange, boolean partner, String code, String message) throws IOException {
+		String faultNamespace = partner ? "urn:fault.partner.soap.sforce.com" : "urn:fault.enterprise.soap.sforce.com";
+		StringBuilder xml = new StringBuilder();
+		xml.append("<soapenv:Fault><faultcode xmlns:sf=\"").append(faultNamespace).append("\">sf:").append(code).append("</faultcode>")
+				.append("<faultstring>").append(code).append(": ").append(RecordGenerator.escape(message)).append("</faultstring>")
+				.append("<detail><sf:UnexpectedErrorFault xmlns:sf=\"").append(faultNamespace).append("\" xsi:type=\"sf:UnexpectedErrorFault\">")
+				.append("<sf:exceptionCode>").append(code).append("</sf:exceptionCode>")
+				.append("<sf:exceptionMessage>").append(RecordGenerator.escape(message)).append("</sf:exceptionMessage>")
+				.append("</sf:UnexpectedErrorFault></detail></soapenv:Fault>");
+		envelope(exchange, partner, 500, xml);
+	}
+
+	private static void envelope(HttpExchange exchange, boolean partner, int status, StringBuilder body) throws IOException {
+		String api = partner ? "partner" : "enterprise";
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+				+ " xmlns=\"urn:" + api + ".soap.sforce.com\""
+				+ " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+				+ " xmlns:sf=\"urn:sobject." + api + ".soap.sforce.com\">"
+				+ "<soapenv:Body>" + body + "</soapenv:Body></soapenv:Envelope>";
+		LocalOrgServer.send(exchange, status, "text/xml", xml);
+	}
+
+	/** 名前空間の接頭辞を無視して、最初に現れた要素の値を取得する */
+	private static String element(String body, String name) {
+		Matcher m = Pattern.compile("<(?:\\w+:)?" + name + "(?:\\s[^>]*)?>([^<]*)</").matcher(body);
+		return m.find() ? m.group(1) : null;
+	}
+
+	private static String unescape(String value) {
+		if (value == null) {
+			return null;
+		}
+		return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+}
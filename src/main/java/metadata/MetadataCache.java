@@ -0,0 +1,279 @@
+package metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.soap.metadata.FileProperties;
+import com.sforce.soap.metadata.ListMetadataQuery;
+import com.sforce.soap.metadata.Metadata;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.soap.metadata.ReadResult;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.bind.TypeMapper;
+import com.sforce.ws.parser.PullParserException;
+import com.sforce.ws.parser.XmlInputStream;
+import com.sforce.ws.parser.XmlOutputStream;
+
+import util.ConnectionUtil;
+
+/**
+ * readMetadataの結果をファイルに保存して使い回すキャッシュ.
+ * 種類(CustomObjectなど)とfullNameごとに1ファイルで保存し、listMetadataで取得した最終更新日時が
+ * 保存したときと変わっていなければ、readMetadataを呼ばずにファイルから読み込む.
+ *
+ * キャッシュにないものは、readMetadataの上限である10件ずつに分けて並列に取得する.
+ */
+public class MetadataCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetadataCache.class);
+
+	/** readMetadataで一度に指定できるfullNameの数 */
+	public static final int MAX_NAMES_PER_READ = 10;
+
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	private static final String NAMESPACE = "http://soap.sforce.com/2006/04/metadata";
+
+	private static final QName ELEMENT = new QName(NAMESPACE, "result");
+
+	private final MetadataConnection connection;
+
+	private final Path dir;
+
+	private int concurrency = DEFAULT_CONCURRENCY;
+
+	public MetadataCache(MetadataConnection connection, Path dir) {
+		this.connection = connection;
+		this.dir = dir;
+	}
+
+	/** 同時に実行するreadMetadataの数 */
+	public MetadataCache setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+		}
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * 指定した種類のメタデータを全て取得する.
+	 */
+	public Map<String, Metadata> readAll(String type) throws ConnectionException, IOException, InterruptedException, ExecutionException {
+		Map<String, Long> listed = list(type);
+		return read(type, new ArrayList<>(listed.keySet()), listed);
+	}
+
+	/**
+	 * メタデータを取得する.
+	 * @return fullNameの順番どおりのMap. 存在しないものは含まない
+	 */
+	public Map<String, Metadata> read(String type, List<String> fullNames) throws ConnectionException, IOException, InterruptedException, ExecutionException {
+		return read(type, fullNames, list(type));
+	}
+
+	private Map<String, Metadata> read(String type, List<String> fullNames, Map<String, Long> listed) throws IOException, InterruptedException, ExecutionException {
+		Path typeDir = dir.resolve(type);
+		Files.createDirectories(typeDir);
+		Index index = Index.load(typeDir.resolve("index.properties"));
+
+		Map<String, Metadata> found = new HashMap<>();
+		List<String> misses = new ArrayList<>();
+		for (String fullName : fullNames) {
+			Long modified = listed.get(fullName);
+			// listMetadataに出てこないものは、更新されたかどうか判断できないので毎回取得する
+			if (modified != null && modified == index.get(fullName)) {
+				Metadata metadata = load(typeDir.resolve(fileName(fullName)));
+				if (metadata != null) {
+					found.put(fullName, metadata);
+					continue;
+				}
+			}
+			misses.add(fullName);
+		}
+		logger.info("{}: {} cached, {} to read", type, found.size(), misses.size());
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+			List<CompletableFuture<Metadata[]>> futures = new ArrayList<>();
+			for (int from = 0; from < misses.size(); from += MAX_NAMES_PER_READ) {
+				String[] names = misses.subList(from, Math.min(from + MAX_NAMES_PER_READ, misses.size())).toArray(new String[0]);
+				futures.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return connection.readMetadata(type, names).getRecords();
+					} catch (ConnectionException e) {
+						logger.error("Failed to read " + type + " " + String.join(",", names), e);
+						throw new CompletionException(e);
+					}
+				}, executor));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+			for (CompletableFuture<Metadata[]> future : futures) {
+				for (Metadata metadata : future.get()) {
+					// 存在しないfullNameは、fullNameのない空のレコードで返される
+					if (metadata == null || metadata.getFullName() == null) {
+						continue;
+					}
+					found.put(metadata.getFullName(), metadata);
+					store(typeDir.resolve(fileName(metadata.getFullName())), metadata);
+					Long modified = listed.get(metadata.getFullName());
+					if (modified != null) {
+						index.put(metadata.getFullName(), modified);
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		index.store();
+
+		Map<String, Metadata> result = new LinkedHashMap<>();
+		for (String fullName : fullNames) {
+			if (found.containsKey(fullName)) {
+				result.put(fullName, found.get(fullName));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * fullNameと最終更新日時の一覧.
+	 */
+	private Map<String, Long> list(String type) throws ConnectionException {
+		ListMetadataQuery query = new ListMetadataQuery();
+		query.setType(type);
+		FileProperties[] properties = connection.listMetadata(new ListMetadataQuery[]{query}, Double.parseDouble(ConnectionUtil.API_VERSION));
+		Map<String, Long> listed = new HashMap<>();
+		for (FileProperties p : properties) {
+			if (p.getLastModifiedDate() != null) {
+				listed.put(p.getFullName(), p.getLastModifiedDate().getTimeInMillis());
+			}
+		}
+		return listed;
+	}
+
+	private static String fileName(String fullName) {
+		try {
+			return URLEncoder.encode(fullName, "UTF-8") + ".xml";
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * SOAPのレスポンスと同じXMLで保存する. 読み込むときにxsi:typeからCustomObjectなどのクラスが決まる.
+	 */
+	private static void store(Path file, Metadata metadata) {
+		ReadResult result = new ReadResult();
+		result.setRecords(new Metadata[]{metadata});
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+				XmlOutputStream out = new XmlOutputStream(os, false);
+				out.setPrefix("xsi", "http://www.w3.org/2001/XMLSchema-instance");
+				out.setPrefix("xsd", "http://www.w3.org/2001/XMLSchema");
+				out.setPrefix("m", NAMESPACE);
+				out.startDocument();
+				result.write(ELEMENT, out, newTypeMapper());
+				out.endDocument();
+				out.close();
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to save metadata: " + file, e);
+		}
+	}
+
+	/**
+	 * @return ファイルがない、または読み込めない場合はnull
+	 */
+	private static Metadata load(Path file) {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+			XmlInputStream in = new XmlInputStream();
+			in.setInput(is, "UTF-8");
+			ReadResult result = new ReadResult();
+			result.load(in, newTypeMapper());
+			Metadata[] records = result.getRecords();
+			return records.length > 0 ? records[0] : null;
+		} catch (IOException | ConnectionException | PullParserException e) {
+			logger.warn("cached metadata is broken. reading again: {} ({})", file, e.toString());
+			return null;
+		}
+	}
+
+	private static TypeMapper newTypeMapper() {
+		TypeMapper typeMapper = new TypeMapper();
+		typeMapper.setPackagePrefix(null);
+		return typeMapper;
+	}
+
+	/**
+	 * 保存したメタデータの最終更新日時.
+	 */
+	private static class Index {
+
+		private final Path file;
+
+		private final Properties props = new Properties();
+
+		private Index(Path file) {
+			this.file = file;
+		}
+
+		static Index load(Path file) throws IOException {
+			Index index = new Index(file);
+			if (Files.exists(file)) {
+				try (InputStream is = Files.newInputStream(file)) {
+					index.props.load(is);
+				}
+			}
+			return index;
+		}
+
+		long get(String fullName) {
+			return Long.parseLong(props.getProperty(fullName, "-1"));
+		}
+
+		void put(String fullName, long lastModified) {
+			props.setProperty(fullName, Long.toString(lastModified));
+		}
+
+		void store() throws IOException {
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (OutputStream os = Files.newOutputStream(tmp)) {
+				props.store(os, "lastModifiedDate of cached metadata");
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+	}
+
+}
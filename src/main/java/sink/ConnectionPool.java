@@ -0,0 +1,70 @@
+package sink;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 決まった数のJDBC接続を使い回す簡単なプール.
+ * 接続は最初に全て作成し、借りた接続は必ず{@link #release}で返すこと.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+	private final List<Connection> all = new ArrayList<>();
+
+	private final BlockingQueue<Connection> free;
+
+	public ConnectionPool(String url, String user, String password, int size) throws SQLException {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		this.free = new ArrayBlockingQueue<>(size);
+		try {
+			for (int i = 0; i < size; i++) {
+				Connection connection = DriverManager.getConnection(url, user, password);
+				connection.setAutoCommit(false);
+				all.add(connection);
+				free.add(connection);
+			}
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public int size() {
+		return all.size();
+	}
+
+	/**
+	 * 空いている接続を借りる. 全て使用中の場合は返されるまで待つ.
+	 */
+	public Connection borrow() throws SQLException {
+		try {
+			return free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for a connection", e);
+		}
+	}
+
+	public void release(Connection connection) {
+		free.add(connection);
+	}
+
+	@Override
+	public void close() {
+		for (Connection connection : all) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// 閉じられなくても他の接続は閉じる
+			}
+		}
+	}
+
+}
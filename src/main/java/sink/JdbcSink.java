@@ -0,0 +1,369 @@
+package sink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.BatchInfo;
+import com.sforce.soap.enterprise.DescribeSObjectResult;
+import com.sforce.soap.enterprise.Field;
+
+import util.CsvReader;
+
+/**
+ * Bulk APIのクエリ結果を、JDBCでテーブルに直接書き込む{@link ResultSink}.
+ *
+ * レコードはIdをキーにupsertするので、同じ結果を読み込み直しても重複しない.
+ * 結果ごとにプールから接続を借り、batchSize件ずつexecuteBatchしてコミットする.
+ * テーブルがない場合は、最初の結果のヘッダ行(またはdescribeの型)から作成する.
+ */
+public class JdbcSink implements ResultSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(JdbcSink.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * upsertの書き方がデータベースごとに異なるため、製品名で切り替える.
+	 * どれにも当てはまらない場合は、同じIdの行を削除してから挿入する.
+	 */
+	public enum Dialect {
+		H2("CLOB"), POSTGRESQL("TEXT"), MYSQL("LONGTEXT"), GENERIC("CLOB");
+
+		/** 長さが分からない、または長い文字列の型 */
+		final String textType;
+
+		Dialect(String textType) {
+			this.textType = textType;
+		}
+
+		static Dialect of(DatabaseMetaData metaData) throws SQLException {
+			String product = metaData.getDatabaseProductName().toLowerCase(Locale.ROOT);
+			if (product.contains("h2")) {
+				return H2;
+			} else if (product.contains("postgres")) {
+				return POSTGRESQL;
+			} else if (product.contains("mysql") || product.contains("mariadb")) {
+				return MYSQL;
+			}
+			return GENERIC;
+		}
+	}
+
+	/** 値をバインドするときの型 */
+	enum Kind {
+		STRING(Types.VARCHAR), BOOLEAN(Types.BOOLEAN), INTEGER(Types.BIGINT), DECIMAL(Types.DECIMAL), DATE(Types.DATE), TIMESTAMP(Types.TIMESTAMP);
+
+		final int sqlType;
+
+		Kind(int sqlType) {
+			this.sqlType = sqlType;
+		}
+	}
+
+	static class Column {
+
+		/** テーブルの列名. 参照先の項目(Account.Name)は.を_に置き換える */
+		final String name;
+
+		final String sqlType;
+
+		final Kind kind;
+
+		Column(String name, String sqlType, Kind kind) {
+			this.name = name;
+			this.sqlType = sqlType;
+			this.kind = kind;
+		}
+
+	}
+
+	private final ConnectionPool pool;
+
+	private final String table;
+
+	private final Dialect dialect;
+
+	/** describeで分かった項目の型. キーは小文字の項目名 */
+	private final Map<String, Column> described = new HashMap<>();
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private List<Column> columns;
+
+	private String upsertSql;
+
+	private String deleteSql;
+
+	public JdbcSink(ConnectionPool pool, String table) throws SQLException {
+		this.pool = pool;
+		this.table = table;
+		Connection connection = pool.borrow();
+		try {
+			this.dialect = Dialect.of(connection.getMetaData());
+		} finally {
+			pool.release(connection);
+		}
+	}
+
+	/** 1回のexecuteBatchとコミットで書き込む件数 */
+	public JdbcSink setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * テーブルを作成するときに、describeの項目の型を使う. 指定しない項目は文字列になる.
+	 */
+	public synchronized JdbcSink setColumnTypes(DescribeSObjectResult describe) {
+		for (Field field : describe.getFields()) {
+			described.put(field.getName().toLowerCase(Locale.ROOT), column(field));
+		}
+		return this;
+	}
+
+	public Dialect getDialect() {
+		return dialect;
+	}
+
+	@Override
+	public long write(BatchInfo batch, InputStream csv) throws IOException {
+		try (CsvReader reader = new CsvReader(csv)) {
+			// 0件の結果はヘッダの代わりにメッセージの行だけなので、列として扱わない
+			if (!reader.readHeader() || reader.isNoRecords()) {
+				return 0;
+			}
+			List<Column> columns = prepare(reader.getHeader());
+			int idIndex = idIndex(columns);
+			Connection connection = pool.borrow();
+			try (PreparedStatement upsert = connection.prepareStatement(upsertSql);
+				 PreparedStatement delete = deleteSql == null ? null : connection.prepareStatement(deleteSql)) {
+				long rows = 0;
+				int pending = 0;
+				while (reader.next()) {
+					if (delete != null) {
+						delete.setString(1, reader.getString(idIndex));
+						delete.addBatch();
+					}
+					bind(upsert, columns, reader);
+					upsert.addBatch();
+					rows++;
+					if (++pending == batchSize) {
+						flush(connection, delete, upsert);
+						pending = 0;
+					}
+				}
+				if (pending > 0) {
+					flush(connection, delete, upsert);
+				}
+				logger.debug("{} rows of batch {} written to {}", rows, batch.getId(), table);
+				return rows;
+			} catch (SQLException | RuntimeException e) {
+				rollback(connection);
+				throw new IOException("Failed to write batch " + batch.getId() + " to " + table, e);
+			} finally {
+				pool.release(connection);
+			}
+		} catch (SQLException e) {
+			throw new IOException("Failed to prepare " + table, e);
+		}
+	}
+
+	private static void flush(Connection connection, PreparedStatement delete, PreparedStatement upsert) throws SQLException {
+		if (delete != null) {
+			delete.executeBatch();
+		}
+		upsert.executeBatch();
+		connection.commit();
+	}
+
+	private static void rollback(Connection connection) {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			logger.warn("rollback failed", e);
+		}
+	}
+
+	/**
+	 * 最初の結果のヘッダから列を決め、テーブルがなければ作成する. 2回目以降は同じヘッダであることだけを確認する.
+	 */
+	private synchronized List<Column> prepare(String[] header) throws SQLException, IOException {
+		if (columns != null) {
+			if (header.length != columns.size()) {
+				throw new IOException("header of results differs: " + String.join(",", header));
+			}
+			return columns;
+		}
+		List<Column> prepared = new ArrayList<>();
+		for (String field : header) {
+			Column column = described.get(field.toLowerCase(Locale.ROOT));
+			String name = field.replace('.', '_');
+			if (column == null) {
+				column = field.equalsIgnoreCase("Id") ? new Column(name, "VARCHAR(18)", Kind.STRING) : new Column(name, dialect.textType, Kind.STRING);
+			}
+			prepared.add(column);
+		}
+		idIndex(prepared);
+		Connection connection = pool.borrow();
+		try {
+			if (!exists(connection.getMetaData())) {
+				try (Statement statement = connection.createStatement()) {
+					statement.execute(createTableSql(prepared));
+				}
+				connection.commit();
+				logger.info("table {} created", table);
+			}
+		} finally {
+			pool.release(connection);
+		}
+		upsertSql = upsertSql(prepared);
+		deleteSql = dialect == Dialect.GENERIC ? "DELETE FROM " + table + " WHERE Id = ?" : null;
+		columns = prepared;
+		return columns;
+	}
+
+	private boolean exists(DatabaseMetaData metaData) throws SQLException {
+		// 識別子の大文字・小文字の扱いがデータベースごとに異なるので、全て試す
+		for (String name : new String[] {table, table.toUpperCase(Locale.ROOT), table.toLowerCase(Locale.ROOT)}) {
+			try (ResultSet tables = metaData.getTables(null, null, name, null)) {
+				if (tables.next()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private String createTableSql(List<Column> columns) {
+		StringBuilder sql = new StringBuilder("CREATE TABLE ").append(table).append(" (");
+		for (int i = 0; i < columns.size(); i++) {
+			Column column = columns.get(i);
+			sql.append(i > 0 ? ", " : "").append(column.name).append(' ').append(column.sqlType);
+			if (column.name.equalsIgnoreCase("Id")) {
+				sql.append(" PRIMARY KEY");
+			}
+		}
+		return sql.append(')').toString();
+	}
+
+	private String upsertSql(List<Column> columns) {
+		StringBuilder names = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		StringBuilder updates = new StringBuilder();
+		for (Column column : columns) {
+			names.append(names.length() > 0 ? ", " : "").append(column.name);
+			values.append(values.length() > 0 ? ", " : "").append('?');
+			if (column.name.equalsIgnoreCase("Id")) {
+				continue;
+			}
+			updates.append(updates.length() > 0 ? ", " : "").append(column.name).append(" = ");
+			updates.append(dialect == Dialect.POSTGRESQL ? "EXCLUDED." + column.name : "VALUES(" + column.name + ")");
+		}
+		String insert = "INSERT INTO " + table + " (" + names + ") VALUES (" + values + ")";
+		switch (dialect) {
+		case H2:
+			return "MERGE INTO " + table + " (" + names + ") KEY (Id) VALUES (" + values + ")";
+		case POSTGRESQL:
+			return insert + " ON CONFLICT (Id) DO " + (updates.length() == 0 ? "NOTHING" : "UPDATE SET " + updates);
+		case MYSQL:
+			return insert + " ON DUPLICATE KEY UPDATE " + (updates.length() == 0 ? "Id = Id" : updates);
+		default:
+			return insert;
+		}
+	}
+
+	private static int idIndex(List<Column> columns) throws IOException {
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).name.equalsIgnoreCase("Id")) {
+				return i;
+			}
+		}
+		throw new IOException("Id is required in the query to upsert results");
+	}
+
+	private static void bind(PreparedStatement statement, List<Column> columns, CsvReader reader) throws SQLException {
+		for (int i = 0; i < columns.size(); i++) {
+			Column column = columns.get(i);
+			int index = i + 1;
+			if (reader.isEmpty(i)) {
+				statement.setNull(index, column.kind.sqlType);
+				continue;
+			}
+			String value = reader.getString(i);
+			switch (column.kind) {
+			case BOOLEAN:
+				statement.setBoolean(index, Boolean.parseBoolean(value));
+				break;
+			case INTEGER:
+				statement.setLong(index, Long.parseLong(value));
+				break;
+			case DECIMAL:
+				statement.setBigDecimal(index, new BigDecimal(value));
+				break;
+			case DATE:
+				statement.setDate(index, java.sql.Date.valueOf(LocalDate.parse(value)));
+				break;
+			case TIMESTAMP:
+				statement.setTimestamp(index, Timestamp.from(Instant.parse(value)));
+				break;
+			default:
+				statement.setString(index, value);
+				break;
+			}
+		}
+	}
+
+	private Column column(Field field) {
+		switch (field.getType()) {
+		case id:
+		case reference:
+			return new Column(field.getName(), "VARCHAR(18)", Kind.STRING);
+		case _boolean:
+			return new Column(field.getName(), "BOOLEAN", Kind.BOOLEAN);
+		case _int:
+			return new Column(field.getName(), "BIGINT", Kind.INTEGER);
+		case _double:
+		case currency:
+		case percent:
+			int precision = field.getPrecision() > 0 ? field.getPrecision() : 18;
+			return new Column(field.getName(), "DECIMAL(" + precision + ", " + field.getScale() + ")", Kind.DECIMAL);
+		case date:
+			return new Column(field.getName(), "DATE", Kind.DATE);
+		case datetime:
+			return new Column(field.getName(), "TIMESTAMP", Kind.TIMESTAMP);
+		default:
+			int length = field.getLength();
+			return new Column(field.getName(), length > 0 && length <= 255 ? "VARCHAR(" + length + ")" : dialect.textType, Kind.STRING);
+		}
+	}
+
+	/**
+	 * 接続はプールの持ち主が閉じるので、何もしない.
+	 */
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,27 @@
+package sink;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.sforce.async.BatchInfo;
+
+/**
+ * Bulk APIのクエリ結果(CSV)の書き込み先.
+ * ファイルに保存してから読み込み直さずに、ダウンロードしながら直接書き込む.
+ *
+ * 結果は複数のスレッドから同時に渡されるので、実装はスレッドセーフにすること.
+ */
+public interface ResultSink extends AutoCloseable {
+
+	/**
+	 * 結果ひとつ分を書き込む.
+	 * @param batch 結果のバッチ
+	 * @param csv ヘッダ行から始まるCSV. closeは呼び出し側で行う
+	 * @return 書き込んだレコード数
+	 */
+	long write(BatchInfo batch, InputStream csv) throws IOException;
+
+	@Override
+	void close() throws IOException;
+
+}
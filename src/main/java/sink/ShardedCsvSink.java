@@ -0,0 +1,505 @@
+package sink;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.BatchInfo;
+
+import util.CsvReader;
+import util.SalesforceIds;
+
+/**
+ * Bulk APIのクエリ結果を、件数またはサイズで区切った複数のgzipファイル(シャード)に書き込む{@link ResultSink}.
+ *
+ * ひとつのgzipファイルは先頭から順にしか展開できないので、SparkやDBへの読み込みが1コアになる.
+ * シャードはそれぞれヘッダ行を持つ独立したCSV(gzip)なので、別々に並列で読み込める.
+ *
+ * 結果を書き込むスレッドごとに別のシャードを使うので、シャードへの書き込みは並列に行われる.
+ * closeすると、シャードごとの件数、バイト数、SHA-256、Idの範囲を書いたマニフェストを作成する.
+ * マニフェストは全てのシャードを閉じた後に作成するので、マニフェストがあれば出力は完全である.
+ * 書き込みに失敗した場合はマニフェストを作成しない.
+ *
+ * <pre>
+ * try (ShardedCsvSink sink = new ShardedCsvSink(dir, "account").setMaxRows(1000000)) {
+ *     downloader.stream(batchList, sink);
+ * }
+ * ShardedCsvSink.verify(dir.resolve("account.manifest.csv"));
+ * </pre>
+ */
+public class ShardedCsvSink implements ResultSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(ShardedCsvSink.class);
+
+	/** HDFSのブロックの大きさに合わせる */
+	public static final long DEFAULT_MAX_BYTES = 128 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final String MANIFEST_HEADER = "\"File\",\"Rows\",\"Bytes\",\"Sha256\",\"MinId\",\"MaxId\"";
+
+	/**
+	 * 作成したシャード. マニフェストの1行.
+	 */
+	public static class Shard {
+
+		private final int number;
+
+		private final String file;
+
+		private final long rows;
+
+		private final long bytes;
+
+		private final String sha256;
+
+		private final String minId;
+
+		private final String maxId;
+
+		Shard(int number, String file, long rows, long bytes, String sha256, String minId, String maxId) {
+			this.number = number;
+			this.file = file;
+			this.rows = rows;
+			this.bytes = bytes;
+			this.sha256 = sha256;
+			this.minId = minId;
+			this.maxId = maxId;
+		}
+
+		/** マニフェストと同じディレクトリにあるファイルの名前 */
+		public String getFile() {
+			return file;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		/** 圧縮後のファイルのバイト数 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** 圧縮後のファイルのSHA-256(16進数) */
+		public String getSha256() {
+			return sha256;
+		}
+
+		/**
+		 * @return Id列がない場合はnull
+		 */
+		public String getMinId() {
+			return minId;
+		}
+
+		public String getMaxId() {
+			return maxId;
+		}
+
+	}
+
+	/**
+	 * 書き込み中のシャード. 使うのは一度にひとつのスレッドだけ.
+	 */
+	private class OpenShard {
+
+		final int number;
+
+		final Path file;
+
+		final MessageDigest digest;
+
+		/** 圧縮後のバイト数 */
+		long bytes;
+
+		final OutputStream out;
+
+		long rows;
+
+		final byte[] minId = new byte[18];
+
+		int minLength;
+
+		long minHigh;
+
+		long minLow;
+
+		final byte[] maxId = new byte[18];
+
+		int maxLength;
+
+		long maxHigh;
+
+		long maxLow;
+
+		OpenShard(int number) throws IOException {
+			this.number = number;
+			this.file = directory.resolve(String.format("%s-%05d.csv.gz", prefix, number));
+			this.digest = newDigest();
+			OutputStream counting = new FilterOutputStream(Files.newOutputStream(file)) {
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					digest.update((byte) b);
+					bytes++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					digest.update(b, off, len);
+					bytes += len;
+				}
+
+			};
+			GZIPOutputStream gzip = new GZIPOutputStream(counting, BUFFER_SIZE) {
+				{
+					def.setLevel(compressionLevel);
+				}
+			};
+			// CsvReaderは値ごとに少しずつ書き込むので、圧縮の前にまとめる
+			this.out = new BufferedOutputStream(gzip, BUFFER_SIZE);
+			out.write(headerLine);
+		}
+
+		void addId(byte[] buffer, int start, int length) {
+			if (length == 0 || length > 18 || !SalesforceIds.isId(buffer, start, length)) {
+				return;
+			}
+			long high = SalesforceIds.high(buffer, start);
+			long low = SalesforceIds.low(buffer, start);
+			if (minLength == 0 || SalesforceIds.compare(high, low, minHigh, minLow) < 0) {
+				System.arraycopy(buffer, start, minId, 0, length);
+				minLength = length;
+				minHigh = high;
+				minLow = low;
+			}
+			if (maxLength == 0 || SalesforceIds.compare(high, low, maxHigh, maxLow) > 0) {
+				System.arraycopy(buffer, start, maxId, 0, length);
+				maxLength = length;
+				maxHigh = high;
+				maxLow = low;
+			}
+		}
+
+		boolean isFull() {
+			return rows >= maxRows || bytes >= maxBytes;
+		}
+
+		Shard finish() throws IOException {
+			out.close();
+			return new Shard(number, file.getFileName().toString(), rows, bytes, hex(digest.digest()),
+					minLength == 0 ? null : new String(minId, 0, minLength, StandardCharsets.US_ASCII),
+					maxLength == 0 ? null : new String(maxId, 0, maxLength, StandardCharsets.US_ASCII));
+		}
+
+	}
+
+	private final Path directory;
+
+	private final String prefix;
+
+	private long maxRows = Long.MAX_VALUE;
+
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private String[] header;
+
+	private byte[] headerLine;
+
+	/** 書き込み中ではないシャード. 次の結果の書き込みに使い回す */
+	private final Deque<OpenShard> idle = new ArrayDeque<>();
+
+	private final List<Shard> shards = new ArrayList<>();
+
+	private int nextNumber;
+
+	private int writing;
+
+	private boolean failed;
+
+	private boolean closed;
+
+	/**
+	 * @param directory 出力先のディレクトリ. ない場合は作成する
+	 * @param prefix シャードとマニフェストのファイル名の先頭
+	 */
+	public ShardedCsvSink(Path directory, String prefix) throws IOException {
+		this.directory = directory;
+		this.prefix = prefix;
+		Files.createDirectories(directory);
+	}
+
+	/** ひとつのシャードの最大の件数 */
+	public ShardedCsvSink setMaxRows(long maxRows) {
+		if (maxRows < 1) {
+			throw new IllegalArgumentException("maxRows must be positive: " + maxRows);
+		}
+		this.maxRows = maxRows;
+		return this;
+	}
+
+	/**
+	 * ひとつのシャードの圧縮後の最大のバイト数. 圧縮のバッファの分だけ超えることがあるので、目安として使う.
+	 */
+	public ShardedCsvSink setMaxBytes(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	/** gzipの圧縮レベル({@link Deflater}の定数) */
+	public ShardedCsvSink setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+
+	/** マニフェストのパス */
+	public Path getManifest() {
+		return directory.resolve(prefix + ".manifest.csv");
+	}
+
+	/**
+	 * closeするまでに作成したシャード. シャードの番号の順.
+	 */
+	public synchronized List<Shard> getShards() {
+		return Collections.unmodifiableList(new ArrayList<>(shards));
+	}
+
+	@Override
+	public long write(BatchInfo batch, InputStream csv) throws IOException {
+		try (CsvReader reader = new CsvReader(csv)) {
+			if (!reader.readHeader()) {
+				return 0;
+			}
+			int id = reader.columnIndex("Id");
+			OpenShard shard = null;
+			long rows = 0;
+			try {
+				while (reader.next()) {
+					if (shard == null) {
+						shard = take(reader.getHeader());
+					}
+					reader.writeRecord(shard.out);
+					shard.rows++;
+					if (id >= 0 && id < reader.fieldCount()) {
+						shard.addId(reader.buffer(), reader.fieldStart(id), reader.fieldLength(id));
+					}
+					rows++;
+					if (shard.isFull()) {
+						OpenShard full = shard;
+						shard = null;
+						finish(full);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// 書きかけのシャードは使い回さない
+				synchronized (this) {
+					failed = true;
+				}
+				if (shard != null) {
+					try {
+						shard.out.close();
+					} catch (IOException suppressed) {
+						e.addSuppressed(suppressed);
+					}
+				}
+				throw e;
+			}
+			release(shard);
+			logger.debug("{} rows of batch {} written", rows, batch.getId());
+			return rows;
+		}
+	}
+
+	/**
+	 * 空いているシャードを取り出す. なければ新しく作る.
+	 * 最初の結果のヘッダを全てのシャードのヘッダにする. 2回目以降は同じヘッダであることだけを確認する.
+	 */
+	private synchronized OpenShard take(String[] resultHeader) throws IOException {
+		if (closed) {
+			throw new IOException(getManifest() + " is already closed");
+		}
+		if (header == null) {
+			header = resultHeader;
+			StringBuilder line = new StringBuilder();
+			for (String name : header) {
+				line.append(line.length() == 0 ? "\"" : ",\"").append(name.replace("\"", "\"\"")).append('"');
+			}
+			headerLine = line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+		} else if (!Arrays.equals(header, resultHeader)) {
+			throw new IOException("header of results differs: " + String.join(",", resultHeader));
+		}
+		writing++;
+		OpenShard shard = idle.pollFirst();
+		return shard != null ? shard : new OpenShard(nextNumber++);
+	}
+
+	/**
+	 * いっぱいになったシャードを閉じる. 圧縮の残りを書き出すので、ロックの外で行う.
+	 */
+	private void finish(OpenShard shard) throws IOException {
+		Shard finished = shard.finish();
+		synchronized (this) {
+			writing--;
+			shards.add(finished);
+		}
+		logger.debug("shard {} finished: {} rows, {} bytes", finished.getFile(), finished.getRows(), finished.getBytes());
+	}
+
+	private synchronized void release(OpenShard shard) {
+		if (shard != null) {
+			writing--;
+			idle.addFirst(shard);
+		}
+	}
+
+	/**
+	 * 全てのシャードを閉じて、マニフェストを作成する.
+	 * @throws IOException 書き込みに失敗した結果がある場合. マニフェストは作成しない
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		IOException error = null;
+		for (OpenShard shard : idle) {
+			try {
+				shards.add(shard.finish());
+			} catch (IOException e) {
+				error = error == null ? e : error;
+				failed = true;
+			}
+		}
+		idle.clear();
+		if (error != null) {
+			throw error;
+		}
+		if (failed || writing > 0) {
+			throw new IOException("some results were not written. " + getManifest() + " is not created");
+		}
+		shards.sort(Comparator.comparingInt(shard -> shard.number));
+		writeManifest();
+		long rows = 0;
+		long bytes = 0;
+		for (Shard shard : shards) {
+			rows += shard.rows;
+			bytes += shard.bytes;
+		}
+		logger.info("{} rows in {} shards ({} bytes) written to {}", rows, shards.size(), bytes, directory);
+	}
+
+	/**
+	 * 書きかけのマニフェストを読まれないように、別名で書いてから置き換える.
+	 */
+	private void writeManifest() throws IOException {
+		Path manifest = getManifest();
+		Path temp = directory.resolve(manifest.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write(MANIFEST_HEADER);
+			writer.write('\n');
+			for (Shard shard : shards) {
+				writer.write("\"" + shard.file + "\",\"" + shard.rows + "\",\"" + shard.bytes + "\",\"" + shard.sha256
+						+ "\",\"" + (shard.minId == null ? "" : shard.minId) + "\",\"" + (shard.maxId == null ? "" : shard.maxId) + "\"\n");
+			}
+		}
+		Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * マニフェストを読み込む.
+	 */
+	public static List<Shard> readManifest(Path manifest) throws IOException {
+		List<Shard> shards = new ArrayList<>();
+		try (CsvReader reader = new CsvReader(Files.newInputStream(manifest))) {
+			if (!reader.readHeader()) {
+				throw new IOException("empty manifest: " + manifest);
+			}
+			while (reader.next()) {
+				shards.add(new Shard(shards.size(), reader.getString("File"), reader.getLong(reader.columnIndex("Rows")),
+						reader.getLong(reader.columnIndex("Bytes")), reader.getString("Sha256"),
+						emptyToNull(reader.getString("MinId")), emptyToNull(reader.getString("MaxId"))));
+			}
+		}
+		return shards;
+	}
+
+	/**
+	 * マニフェストに書かれた全てのシャードがあり、バイト数とSHA-256が一致することを確認する.
+	 * @return 全てのシャードの件数の合計
+	 * @throws IOException シャードがない、または一致しない場合
+	 */
+	public static long verify(Path manifest) throws IOException {
+		long rows = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (Shard shard : readManifest(manifest)) {
+			Path file = manifest.resolveSibling(shard.file);
+			if (!Files.exists(file) || Files.size(file) != shard.bytes) {
+				throw new IOException("shard is missing or has wrong size: " + file);
+			}
+			MessageDigest digest = newDigest();
+			try (InputStream in = Files.newInputStream(file)) {
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, n);
+				}
+			}
+			if (!hex(digest.digest()).equals(shard.sha256)) {
+				throw new IOException("checksum mismatch: " + file);
+			}
+			rows += shard.rows;
+		}
+		return rows;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256は全てのJava実行環境にある
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static String emptyToNull(String value) {
+		return value.isEmpty() ? null : value;
+	}
+
+}
@@ -0,0 +1,149 @@
+package snapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import util.SalesforceIds;
+
+/**
+ * ひとつのブロックの、ひとつの列の値を順番に読む.
+ * 辞書の値はブロックを読み込んだときに一度だけStringにする.
+ */
+final class ColumnCursor {
+
+	private ByteBuffer chunk;
+
+	private byte encoding;
+
+	private int row;
+
+	// PLAIN
+	private int valueStart;
+
+	private int valueLength;
+
+	// DICTIONARY
+	private String[] dictionary;
+
+	private int width;
+
+	private int codesStart;
+
+	// ID
+	private int idLength;
+
+	private boolean constantHigh;
+
+	private long high;
+
+	private int highsStart;
+
+	private int lowsStart;
+
+	void load(ByteBuffer chunk, byte encoding, int rows) {
+		this.chunk = chunk;
+		this.encoding = encoding;
+		this.row = -1;
+		switch (encoding) {
+		case SnapshotFormat.PLAIN:
+			break;
+		case SnapshotFormat.DICTIONARY:
+			int entries = chunk.getInt();
+			dictionary = new String[entries + 1];
+			for (int i = 1; i <= entries; i++) {
+				byte[] value = new byte[SnapshotFormat.getVarInt(chunk)];
+				chunk.get(value);
+				dictionary[i] = new String(value, StandardCharsets.UTF_8);
+			}
+			width = chunk.get();
+			codesStart = chunk.position();
+			break;
+		case SnapshotFormat.ID:
+			idLength = chunk.get();
+			constantHigh = chunk.get() == 1;
+			if (constantHigh) {
+				high = chunk.getLong();
+				highsStart = -1;
+			} else {
+				highsStart = chunk.position();
+			}
+			lowsStart = chunk.position() + (constantHigh ? 0 : 8 * rows);
+			break;
+		default:
+			throw new IllegalStateException("unknown encoding: " + encoding);
+		}
+	}
+
+	void next() {
+		row++;
+		if (encoding == SnapshotFormat.PLAIN) {
+			valueLength = SnapshotFormat.getVarInt(chunk);
+			valueStart = chunk.position();
+			chunk.position(valueStart + valueLength);
+		}
+	}
+
+	boolean isNull() {
+		switch (encoding) {
+		case SnapshotFormat.DICTIONARY:
+			return code() == 0;
+		case SnapshotFormat.ID:
+			return chunk.getLong(lowsStart + 8 * row) == SnapshotFormat.NULL_LOW;
+		default:
+			return valueLength == 0;
+		}
+	}
+
+	/**
+	 * @return nullの場合は空文字列(CSVと同じ)
+	 */
+	String getString() {
+		switch (encoding) {
+		case SnapshotFormat.DICTIONARY:
+			int code = code();
+			return code == 0 ? "" : dictionary[code];
+		case SnapshotFormat.ID:
+			long low = chunk.getLong(lowsStart + 8 * row);
+			return low == SnapshotFormat.NULL_LOW ? "" : SalesforceIds.toString(idHigh(), low, idLength);
+		default:
+			if (valueLength == 0) {
+				return "";
+			}
+			byte[] value = new byte[valueLength];
+			int position = chunk.position();
+			chunk.position(valueStart);
+			chunk.get(value);
+			chunk.position(position);
+			return new String(value, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * 現在の値を{@link SalesforceIds}で詰めた、Idの前半. nullでないことを呼び出し側で確認すること.
+	 */
+	long idHigh() {
+		if (encoding == SnapshotFormat.ID) {
+			return constantHigh ? high : chunk.getLong(highsStart + 8 * row);
+		}
+		return SalesforceIds.high(getString());
+	}
+
+	long idLow() {
+		if (encoding == SnapshotFormat.ID) {
+			return chunk.getLong(lowsStart + 8 * row);
+		}
+		return SalesforceIds.low(getString());
+	}
+
+	/**
+	 * Idの範囲で絞り込むために、現在の値をIdとして比較する. nullは範囲外として扱うため、呼び出し側で確認すること.
+	 */
+	int compareId(long otherHigh, long otherLow) {
+		return SalesforceIds.compare(idHigh(), idLow(), otherHigh, otherLow);
+	}
+
+	private int code() {
+		return width == 1 ? chunk.get(codesStart + row) & 0xFF : chunk.getShort(codesStart + 2 * row) & 0xFFFF;
+	}
+
+}
@@ -0,0 +1,282 @@
+package snapshot;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import util.SalesforceIds;
+
+/**
+ * ひとつのブロックの、ひとつの列の値を貯めてエンコードする.
+ * 値はStringにせずにバイト列のまま保持し、辞書の候補もバイト列のハッシュ表で数える.
+ */
+final class ColumnEncoder {
+
+	/** 全ての値を連結したもの */
+	private byte[] data = new byte[4096];
+
+	private int dataLength;
+
+	/** 値ごとの終了位置. 開始位置はひとつ前の値の終了位置 */
+	private int[] ends = new int[1024];
+
+	private int rows;
+
+	/** 値ごとの辞書の番号(1から). nullは0 */
+	private int[] codes = new int[1024];
+
+	/** 辞書の値の、dataでの開始位置と長さ */
+	private int[] entryStarts = new int[256];
+
+	private int[] entryLengths = new int[256];
+
+	private int entries;
+
+	/** エントリの番号を入れるハッシュ表. 0は空き */
+	private int[] table = new int[512];
+
+	/** 値の種類が多すぎて辞書にできない */
+	private boolean overflow;
+
+	/** null以外が全て同じ長さのIdかどうか */
+	private boolean ids = true;
+
+	private int idLength;
+
+	private int minRow = -1;
+
+	private int maxRow = -1;
+
+	void add(byte[] bytes, int offset, int length) {
+		if (rows == ends.length) {
+			ends = Arrays.copyOf(ends, rows * 2);
+			codes = Arrays.copyOf(codes, rows * 2);
+		}
+		int start = dataLength;
+		if (start + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, start + length));
+		}
+		System.arraycopy(bytes, offset, data, start, length);
+		dataLength += length;
+		ends[rows] = dataLength;
+		if (length > 0) {
+			if (!overflow) {
+				codes[rows] = code(start, length);
+			}
+			if (ids) {
+				ids = (idLength == 0 || idLength == length) && SalesforceIds.isId(data, start, length);
+				idLength = length;
+			}
+			if (minRow < 0 || SnapshotFormat.compare(data, start, length, data, start(minRow), length(minRow)) < 0) {
+				minRow = rows;
+			}
+			if (maxRow < 0 || SnapshotFormat.compare(data, start, length, data, start(maxRow), length(maxRow)) > 0) {
+				maxRow = rows;
+			}
+		}
+		rows++;
+	}
+
+	int rows() {
+		return rows;
+	}
+
+	/** 貯めている値のバイト数 */
+	int bytes() {
+		return dataLength;
+	}
+
+	byte[] min() {
+		return minRow < 0 ? null : Arrays.copyOfRange(data, start(minRow), ends[minRow]);
+	}
+
+	byte[] max() {
+		return maxRow < 0 ? null : Arrays.copyOfRange(data, start(maxRow), ends[maxRow]);
+	}
+
+	/**
+	 * 一番小さくなるエンコーディングを選ぶ.
+	 */
+	byte encoding() {
+		long plain = dataLength;
+		for (int i = 0; i < rows; i++) {
+			plain += SnapshotFormat.varIntSize(length(i));
+		}
+		long best = plain;
+		byte encoding = SnapshotFormat.PLAIN;
+		if (!overflow) {
+			long dictionary = 4 + 1 + (long) rows * width();
+			for (int i = 0; i < entries; i++) {
+				dictionary += SnapshotFormat.varIntSize(entryLengths[i]) + entryLengths[i];
+			}
+			if (dictionary < best) {
+				best = dictionary;
+				encoding = SnapshotFormat.DICTIONARY;
+			}
+		}
+		if (ids && idLength > 0) {
+			long id = 2 + (constantHigh() ? 8 : 8L * rows) + 8L * rows;
+			if (id < best) {
+				encoding = SnapshotFormat.ID;
+			}
+		}
+		return encoding;
+	}
+
+	ByteBuffer encode(byte encoding) {
+		switch (encoding) {
+		case SnapshotFormat.DICTIONARY:
+			return encodeDictionary();
+		case SnapshotFormat.ID:
+			return encodeIds();
+		default:
+			return encodePlain();
+		}
+	}
+
+	private ByteBuffer encodePlain() {
+		int size = dataLength;
+		for (int i = 0; i < rows; i++) {
+			size += SnapshotFormat.varIntSize(length(i));
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (int i = 0; i < rows; i++) {
+			SnapshotFormat.putVarInt(buffer, length(i));
+			buffer.put(data, start(i), length(i));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private ByteBuffer encodeDictionary() {
+		int width = width();
+		int size = 4 + 1 + rows * width;
+		for (int i = 0; i < entries; i++) {
+			size += SnapshotFormat.varIntSize(entryLengths[i]) + entryLengths[i];
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(entries);
+		for (int i = 0; i < entries; i++) {
+			SnapshotFormat.putVarInt(buffer, entryLengths[i]);
+			buffer.put(data, entryStarts[i], entryLengths[i]);
+		}
+		buffer.put((byte) width);
+		for (int i = 0; i < rows; i++) {
+			if (width == 1) {
+				buffer.put((byte) codes[i]);
+			} else {
+				buffer.putShort((short) codes[i]);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private ByteBuffer encodeIds() {
+		boolean constant = constantHigh();
+		ByteBuffer buffer = ByteBuffer.allocate(2 + (constant ? 8 : 8 * rows) + 8 * rows);
+		buffer.put((byte) idLength);
+		buffer.put((byte) (constant ? 1 : 0));
+		if (constant) {
+			buffer.putLong(firstHigh());
+		} else {
+			for (int i = 0; i < rows; i++) {
+				buffer.putLong(length(i) == 0 ? 0 : SalesforceIds.high(data, start(i)));
+			}
+		}
+		for (int i = 0; i < rows; i++) {
+			buffer.putLong(length(i) == 0 ? SnapshotFormat.NULL_LOW : SalesforceIds.low(data, start(i)));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/** null以外のIdの前半が全て同じか. PK-chunkの結果は同じオブジェクトなので、ほとんどの場合は同じになる */
+	private boolean constantHigh() {
+		long high = firstHigh();
+		for (int i = 0; i < rows; i++) {
+			if (length(i) > 0 && SalesforceIds.high(data, start(i)) != high) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long firstHigh() {
+		for (int i = 0; i < rows; i++) {
+			if (length(i) > 0) {
+				return SalesforceIds.high(data, start(i));
+			}
+		}
+		return 0;
+	}
+
+	private int width() {
+		return entries < 0x100 ? 1 : 2;
+	}
+
+	private int code(int start, int length) {
+		int hash = 1;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + data[i];
+		}
+		int mask = table.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == 0) {
+				break;
+			}
+			if (SnapshotFormat.compare(data, entryStarts[entry - 1], entryLengths[entry - 1], data, start, length) == 0) {
+				return entry;
+			}
+		}
+		if (entries == SnapshotFormat.MAX_DICTIONARY) {
+			// 辞書にしても小さくならないので、以降は数えない
+			overflow = true;
+			table = null;
+			return 0;
+		}
+		if (entries == entryStarts.length) {
+			entryStarts = Arrays.copyOf(entryStarts, entries * 2);
+			entryLengths = Arrays.copyOf(entryLengths, entries * 2);
+		}
+		entryStarts[entries] = start;
+		entryLengths[entries] = length;
+		entries++;
+		if (entries * 2 > table.length) {
+			rehash();
+		} else {
+			insert(table, hash, entries);
+		}
+		return entries;
+	}
+
+	private void rehash() {
+		int[] rehashed = new int[table.length * 2];
+		for (int entry = 1; entry <= entries; entry++) {
+			int hash = 1;
+			for (int i = entryStarts[entry - 1]; i < entryStarts[entry - 1] + entryLengths[entry - 1]; i++) {
+				hash = 31 * hash + data[i];
+			}
+			insert(rehashed, hash, entry);
+		}
+		table = rehashed;
+	}
+
+	private static void insert(int[] table, int hash, int entry) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = entry;
+	}
+
+	private int start(int row) {
+		return row == 0 ? 0 : ends[row - 1];
+	}
+
+	private int length(int row) {
+		return ends[row] - start(row);
+	}
+
+}
@@ -0,0 +1,90 @@
+package snapshot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * スナップショットファイルの形式.
+ *
+ * <pre>
+ * MAGIC VERSION
+ * ブロック(列ごとのデータを列の順番に並べたもの) ...
+ * フッタ: 列名、ブロックごとの件数と、列ごとの位置・長さ・エンコーディング・最小値・最大値
+ * フッタの位置(long) MAGIC
+ * </pre>
+ *
+ * 列のデータはブロックごとに、一番小さくなるエンコーディングを選ぶ.
+ * CSVと同じく、空文字列とnullは区別しない.
+ */
+final class SnapshotFormat {
+
+	static final int MAGIC = 0x53464331; // "SFC1"
+
+	static final int VERSION = 1;
+
+	/** フッタの位置とMAGIC */
+	static final int TAIL_LENGTH = 8 + 4;
+
+	/** 値ごとに、長さ(varint)とUTF-8のバイト列 */
+	static final byte PLAIN = 0;
+
+	/**
+	 * 辞書と、値ごとの辞書の番号(1バイトまたは2バイト).
+	 * 番号の0はnull. 選択リストなど、値の種類が少ない列に使う
+	 */
+	static final byte DICTIONARY = 1;
+
+	/**
+	 * Idの長さ(15/18)と、{@link util.SalesforceIds}で詰めた前半・後半のlong.
+	 * 前半がブロック内で全て同じ場合はひとつだけ保持する. 後半が-1の値はnull
+	 */
+	static final byte ID = 2;
+
+	/** 辞書にする値の種類の上限. 番号を2バイトに収めるため */
+	static final int MAX_DICTIONARY = 0xFFFF;
+
+	static final long NULL_LOW = -1L;
+
+	private SnapshotFormat() {
+	}
+
+	static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void putVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static int getVarInt(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/** UTF-8のバイト列を符号なしで比較する. コードポイントの順番と同じになる */
+	static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+		int length = Math.min(aLength, bLength);
+		for (int i = 0; i < length; i++) {
+			int c = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return aLength - bLength;
+	}
+
+}
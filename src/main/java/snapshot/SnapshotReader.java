@@ -0,0 +1,378 @@
+package snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import util.SalesforceIds;
+
+/**
+ * {@link SnapshotWriter}で作成したスナップショットを、メモリマップして読み込む.
+ * 読み込む列を指定すると、それ以外の列のデータには触れない.
+ * Idの範囲を指定すると、ブロックごとのIdの最小値・最大値で範囲外のブロックを読み飛ばす.
+ * {@link SnapshotWriter#setIdIndex}で作成した索引があれば、Idから行番号を引いて1件だけ読める.
+ *
+ * <pre>
+ * try (SnapshotReader reader = SnapshotReader.open(path)) {
+ *     SnapshotReader.Scan scan = reader.scan("Id", "Name").setIdRange("001000000000001", "001000000100000");
+ *     while (scan.next()) {
+ *         String name = scan.getString(1);
+ *     }
+ *     long row = index.get("001000000012345");
+ *     SnapshotReader.Scan one = reader.scan("Name").setRowRange(row, row + 1);
+ * }
+ * </pre>
+ */
+public class SnapshotReader implements AutoCloseable {
+
+	/**
+	 * ブロックごとの件数と、列ごとの最小値・最大値.
+	 */
+	public class Block {
+
+		private final int rows;
+
+		private final long[] offsets;
+
+		private final int[] lengths;
+
+		private final byte[] encodings;
+
+		private final String[] mins;
+
+		private final String[] maxs;
+
+		Block(DataInputStream footer) throws IOException {
+			int columnCount = columns.size();
+			rows = footer.readInt();
+			offsets = new long[columnCount];
+			lengths = new int[columnCount];
+			encodings = new byte[columnCount];
+			mins = new String[columnCount];
+			maxs = new String[columnCount];
+			for (int i = 0; i < columnCount; i++) {
+				offsets[i] = footer.readLong();
+				lengths[i] = footer.readInt();
+				encodings[i] = footer.readByte();
+				mins[i] = readString(footer);
+				maxs[i] = readString(footer);
+			}
+		}
+
+		public int getRowCount() {
+			return rows;
+		}
+
+		/**
+		 * @return 値が全てnullの場合はnull
+		 */
+		public String getMin(String column) {
+			return mins[columnIndex(column)];
+		}
+
+		public String getMax(String column) {
+			return maxs[columnIndex(column)];
+		}
+
+		ByteBuffer map(int column) throws IOException {
+			return channel.map(FileChannel.MapMode.READ_ONLY, offsets[column], lengths[column]);
+		}
+
+	}
+
+	/**
+	 * 指定した列を、ブロックの順番に1件ずつ読む. スレッドセーフではない.
+	 */
+	public class Scan {
+
+		/** 読み込む列の、ファイル上の位置 */
+		private final int[] projection;
+
+		private final ColumnCursor[] cursors;
+
+		/** Idの範囲で絞り込む場合のId列. 読み込む列に含まれていない場合は別に読む */
+		private ColumnCursor idCursor;
+
+		private long fromHigh;
+
+		private long fromLow;
+
+		private long toHigh = Long.MAX_VALUE;
+
+		private long toLow = Long.MAX_VALUE;
+
+		private long rowFrom;
+
+		private long rowTo = Long.MAX_VALUE;
+
+		private int block = -1;
+
+		/** 次のブロックの先頭の行番号 */
+		private long blockRow;
+
+		private int remaining;
+
+		/** Idで絞り込む場合で、ブロック内の全ての行が範囲内ではない */
+		private boolean filter;
+
+		Scan(int[] projection) {
+			this.projection = projection;
+			this.cursors = new ColumnCursor[projection.length];
+			for (int i = 0; i < cursors.length; i++) {
+				cursors[i] = new ColumnCursor();
+			}
+		}
+
+		/**
+		 * Idがfrom以上to以下の行だけを読む. nullの場合は範囲の端を指定しない.
+		 * 大文字小文字を区別する15桁として比較するので、18桁のIdを指定してもよい.
+		 */
+		public Scan setIdRange(String from, String to) {
+			int id = columns.indexOf("Id");
+			if (id < 0) {
+				throw new IllegalStateException("snapshot has no Id column");
+			}
+			if (block >= 0) {
+				throw new IllegalStateException("scan already started");
+			}
+			int projected = indexOf(projection, id);
+			idCursor = projected >= 0 ? cursors[projected] : new ColumnCursor();
+			fromHigh = from == null ? Long.MIN_VALUE : SalesforceIds.high(from);
+			fromLow = from == null ? Long.MIN_VALUE : SalesforceIds.low(from);
+			toHigh = to == null ? Long.MAX_VALUE : SalesforceIds.high(to);
+			toLow = to == null ? Long.MAX_VALUE : SalesforceIds.low(to);
+			return this;
+		}
+
+		/**
+		 * 行番号(0から)がfrom以上to未満の行だけを読む.
+		 */
+		public Scan setRowRange(long from, long to) {
+			if (block >= 0) {
+				throw new IllegalStateException("scan already started");
+			}
+			rowFrom = from;
+			rowTo = to;
+			return this;
+		}
+
+		/**
+		 * 次の行に進む.
+		 * @return 行がない場合はfalse
+		 */
+		public boolean next() throws IOException {
+			while (true) {
+				while (remaining == 0) {
+					if (!nextBlock()) {
+						return false;
+					}
+				}
+				remaining--;
+				advance();
+				if (!filter) {
+					return true;
+				}
+				if (!idCursor.isNull() && idCursor.compareId(fromHigh, fromLow) >= 0 && idCursor.compareId(toHigh, toLow) <= 0) {
+					return true;
+				}
+			}
+		}
+
+		/** 読み込む列の順番で指定する */
+		public String getString(int index) {
+			return cursors[index].getString();
+		}
+
+		public boolean isNull(int index) {
+			return cursors[index].isNull();
+		}
+
+		private void advance() {
+			for (ColumnCursor cursor : cursors) {
+				cursor.next();
+			}
+			if (filter && !isProjected(idCursor)) {
+				idCursor.next();
+			}
+		}
+
+		private boolean nextBlock() throws IOException {
+			while (++block < blocks.size()) {
+				Block current = blocks.get(block);
+				long first = blockRow;
+				blockRow += current.rows;
+				if (blockRow <= rowFrom || first >= rowTo) {
+					continue;
+				}
+				int id = columns.indexOf("Id");
+				filter = false;
+				if (idCursor != null) {
+					if (current.mins[id] == null) {
+						continue;
+					}
+					long minHigh = SalesforceIds.high(current.mins[id]);
+					long minLow = SalesforceIds.low(current.mins[id]);
+					long maxHigh = SalesforceIds.high(current.maxs[id]);
+					long maxLow = SalesforceIds.low(current.maxs[id]);
+					if (SalesforceIds.compare(maxHigh, maxLow, fromHigh, fromLow) < 0 || SalesforceIds.compare(minHigh, minLow, toHigh, toLow) > 0) {
+						// 範囲外のブロックはメモリマップもしない
+						continue;
+					}
+					filter = SalesforceIds.compare(minHigh, minLow, fromHigh, fromLow) < 0 || SalesforceIds.compare(maxHigh, maxLow, toHigh, toLow) > 0;
+					if (filter && !isProjected(idCursor)) {
+						idCursor.load(current.map(id), current.encodings[id], current.rows);
+					}
+				}
+				for (int i = 0; i < projection.length; i++) {
+					cursors[i].load(current.map(projection[i]), current.encodings[projection[i]], current.rows);
+				}
+				// 範囲の先頭までの行は読み飛ばす
+				for (long row = first; row < rowFrom; row++) {
+					advance();
+				}
+				remaining = (int) (Math.min(blockRow, rowTo) - Math.max(first, rowFrom));
+				return true;
+			}
+			return false;
+		}
+
+		private boolean isProjected(ColumnCursor cursor) {
+			for (ColumnCursor projected : cursors) {
+				if (projected == cursor) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+	private final FileChannel channel;
+
+	private final List<String> columns;
+
+	private final List<Block> blocks;
+
+	private final long rowCount;
+
+	private SnapshotReader(FileChannel channel) throws IOException {
+		this.channel = channel;
+		long size = channel.size();
+		if (size < 8 + SnapshotFormat.TAIL_LENGTH) {
+			throw new IOException("not a snapshot file");
+		}
+		ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, size - SnapshotFormat.TAIL_LENGTH, SnapshotFormat.TAIL_LENGTH);
+		long footerOffset = tail.getLong();
+		if (tail.getInt() != SnapshotFormat.MAGIC) {
+			throw new IOException("not a snapshot file, or not closed");
+		}
+		ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+		if (head.getInt() != SnapshotFormat.MAGIC || head.getInt() != SnapshotFormat.VERSION) {
+			throw new IOException("unsupported snapshot version");
+		}
+		byte[] bytes = new byte[(int) (size - SnapshotFormat.TAIL_LENGTH - footerOffset)];
+		channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, bytes.length).get(bytes);
+		DataInputStream footer = new DataInputStream(new ByteArrayInputStream(bytes));
+		String[] names = new String[footer.readInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = footer.readUTF();
+		}
+		this.columns = Collections.unmodifiableList(Arrays.asList(names));
+		List<Block> list = new ArrayList<>();
+		long rows = 0;
+		for (int i = footer.readInt(); i > 0; i--) {
+			Block block = new Block(footer);
+			list.add(block);
+			rows += block.rows;
+		}
+		this.blocks = Collections.unmodifiableList(list);
+		this.rowCount = rows;
+	}
+
+	public static SnapshotReader open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return new SnapshotReader(channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public List<Block> getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * 指定した列を読む. 列を指定しない場合は全ての列を読む.
+	 * @throws IllegalArgumentException 列がない場合
+	 */
+	public Scan scan(String... columnNames) {
+		int[] projection;
+		if (columnNames.length == 0) {
+			projection = new int[columns.size()];
+			for (int i = 0; i < projection.length; i++) {
+				projection[i] = i;
+			}
+		} else {
+			projection = new int[columnNames.length];
+			for (int i = 0; i < projection.length; i++) {
+				projection[i] = columnIndex(columnNames[i]);
+			}
+		}
+		return new Scan(projection);
+	}
+
+	private int columnIndex(String column) {
+		int index = columns.indexOf(column);
+		if (index < 0) {
+			throw new IllegalArgumentException("no such column: " + column);
+		}
+		return index;
+	}
+
+	private static int indexOf(int[] values, int value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * メモリマップした領域はGCで解放される.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,323 @@
+package snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.async.BatchInfo;
+
+import sink.ResultSink;
+import util.CsvReader;
+import util.IdIndex;
+import util.SalesforceIds;
+
+/**
+ * Bulk APIのクエリ結果を、列ごとにエンコードしたスナップショットファイルに書き込む{@link ResultSink}.
+ * 読み込みは{@link SnapshotReader}で行う.
+ *
+ * 結果はblockRows件ずつのブロックに分け、ブロックごとに列の値をまとめて保存する.
+ * 値の種類が少ない列(選択リストなど)は辞書、Idは2つのlongに詰め、それ以外はそのままの値にする.
+ * ブロックごとに列の最小値・最大値を記録するので、読み込み時にIdの範囲でブロックを読み飛ばせる.
+ *
+ * 結果ごとのエンコードは呼び出し元のスレッドで並列に行い、ファイルへの追加だけを排他する.
+ * closeするまでファイルは完成しない.
+ *
+ * {@link #setIdIndex(IdIndex)}を指定すると、同じIdの行(PK-chunkの再実行やqueryAllの差分などで重複したもの)は
+ * 最初の1行だけを書き込み、closeするときにIdから行番号を引けるように登録する.
+ */
+public class SnapshotWriter implements ResultSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(SnapshotWriter.class);
+
+	public static final int DEFAULT_BLOCK_ROWS = 64 * 1024;
+
+	/** 長い値が多い場合に、ひとつのブロックが大きくなりすぎないようにする */
+	private static final int MAX_BLOCK_BYTES = 64 * 1024 * 1024;
+
+	static class BlockMeta {
+
+		final int rows;
+
+		final long[] offsets;
+
+		final int[] lengths;
+
+		final byte[] encodings;
+
+		final byte[][] mins;
+
+		final byte[][] maxs;
+
+		BlockMeta(int columns, int rows) {
+			this.rows = rows;
+			this.offsets = new long[columns];
+			this.lengths = new int[columns];
+			this.encodings = new byte[columns];
+			this.mins = new byte[columns][];
+			this.maxs = new byte[columns][];
+		}
+
+	}
+
+	private final Path file;
+
+	private final FileChannel channel;
+
+	private final List<BlockMeta> blocks = new ArrayList<>();
+
+	private int blockRows = DEFAULT_BLOCK_ROWS;
+
+	private String[] columns;
+
+	private long rowCount;
+
+	private IdIndex index;
+
+	private long duplicates;
+
+	private boolean closed;
+
+	public SnapshotWriter(Path file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(SnapshotFormat.MAGIC).putInt(SnapshotFormat.VERSION).flip();
+		writeFully(header);
+	}
+
+	/** ひとつのブロックの件数. 大きいほど圧縮されるが、書き込み時のメモリが増える */
+	public SnapshotWriter setBlockRows(int blockRows) {
+		if (blockRows < 1) {
+			throw new IllegalArgumentException("blockRows must be positive: " + blockRows);
+		}
+		this.blockRows = blockRows;
+		return this;
+	}
+
+	/**
+	 * Idで重複を取り除き、closeのときにIdから行番号への対応を登録する索引.
+	 * 索引にすでに登録されているIdの行も書き込まないので、空の索引を指定すること.
+	 */
+	public SnapshotWriter setIdIndex(IdIndex index) {
+		this.index = index;
+		return this;
+	}
+
+	/** 重複していたので書き込まなかった行数 */
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	@Override
+	public long write(BatchInfo batch, InputStream csv) throws IOException {
+		try (CsvReader reader = new CsvReader(csv)) {
+			// 0件の結果はヘッダの代わりにメッセージの行だけなので、列として扱わない
+			if (!reader.readHeader() || reader.isNoRecords()) {
+				return 0;
+			}
+			int columnCount = prepare(reader.getHeader());
+			int id = index == null ? -1 : reader.columnIndex("Id");
+			ColumnEncoder[] encoders = newEncoders(columnCount);
+			long rows = 0;
+			long skipped = 0;
+			long bytes = 0;
+			while (reader.next()) {
+				if (id >= 0 && isDuplicate(reader, id)) {
+					skipped++;
+					continue;
+				}
+				int fields = Math.min(reader.fieldCount(), columnCount);
+				for (int i = 0; i < fields; i++) {
+					encoders[i].add(reader.buffer(), reader.fieldStart(i), reader.fieldLength(i));
+					bytes += reader.fieldLength(i);
+				}
+				for (int i = fields; i < columnCount; i++) {
+					encoders[i].add(reader.buffer(), 0, 0);
+				}
+				rows++;
+				if (encoders[0].rows() == blockRows || bytes >= MAX_BLOCK_BYTES) {
+					append(encoders);
+					encoders = newEncoders(columnCount);
+					bytes = 0;
+				}
+			}
+			if (encoders[0].rows() > 0) {
+				append(encoders);
+			}
+			if (skipped > 0) {
+				synchronized (this) {
+					duplicates += skipped;
+				}
+				logger.debug("{} duplicated rows of batch {} skipped", skipped, batch.getId());
+			}
+			logger.debug("{} rows of batch {} written to {}", rows, batch.getId(), file);
+			return rows;
+		}
+	}
+
+	/**
+	 * Idを索引に仮登録して、登録済みであれば重複とする. 行番号はcloseで登録し直す.
+	 */
+	private boolean isDuplicate(CsvReader reader, int id) {
+		int length = reader.fieldLength(id);
+		if (length == 0 || !SalesforceIds.isId(reader.buffer(), reader.fieldStart(id), length)) {
+			return false;
+		}
+		long high = SalesforceIds.high(reader.buffer(), reader.fieldStart(id));
+		long low = SalesforceIds.low(reader.buffer(), reader.fieldStart(id));
+		return index.putIfAbsent(high, low, 0) != IdIndex.NOT_FOUND;
+	}
+
+	private static ColumnEncoder[] newEncoders(int columnCount) {
+		ColumnEncoder[] encoders = new ColumnEncoder[columnCount];
+		for (int i = 0; i < columnCount; i++) {
+			encoders[i] = new ColumnEncoder();
+		}
+		return encoders;
+	}
+
+	/**
+	 * 最初の結果のヘッダを列にする. 2回目以降は同じヘッダであることだけを確認する.
+	 */
+	private synchronized int prepare(String[] header) throws IOException {
+		if (closed) {
+			throw new IOException(file + " is already closed");
+		}
+		if (columns == null) {
+			columns = header;
+		} else if (!Arrays.equals(columns, header)) {
+			throw new IOException("header of results differs: " + String.join(",", header));
+		}
+		return columns.length;
+	}
+
+	/**
+	 * エンコードしたブロックをファイルの末尾に追加する.
+	 */
+	private void append(ColumnEncoder[] encoders) throws IOException {
+		BlockMeta block = new BlockMeta(encoders.length, encoders[0].rows());
+		ByteBuffer[] chunks = new ByteBuffer[encoders.length];
+		for (int i = 0; i < encoders.length; i++) {
+			block.encodings[i] = encoders[i].encoding();
+			block.mins[i] = encoders[i].min();
+			block.maxs[i] = encoders[i].max();
+			chunks[i] = encoders[i].encode(block.encodings[i]);
+			block.lengths[i] = chunks[i].remaining();
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IOException(file + " is already closed");
+			}
+			for (int i = 0; i < chunks.length; i++) {
+				block.offsets[i] = channel.position();
+				writeFully(chunks[i]);
+			}
+			blocks.add(block);
+			rowCount += block.rows;
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * フッタを書き込んでファイルを完成させる.
+	 * Id列がある場合は、ブロックをIdの最小値の順に並べるので、読み込み時はIdの順番になる.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			String[] names = columns == null ? new String[0] : columns;
+			int id = Arrays.asList(names).indexOf("Id");
+			if (id >= 0) {
+				blocks.sort(Comparator.comparing(block -> block.mins[id], SnapshotWriter::compareIds));
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream footer = new DataOutputStream(bytes);
+			footer.writeInt(names.length);
+			for (String name : names) {
+				footer.writeUTF(name);
+			}
+			footer.writeInt(blocks.size());
+			for (BlockMeta block : blocks) {
+				footer.writeInt(block.rows);
+				for (int i = 0; i < names.length; i++) {
+					footer.writeLong(block.offsets[i]);
+					footer.writeInt(block.lengths[i]);
+					footer.writeByte(block.encodings[i]);
+					writeBytes(footer, block.mins[i]);
+					writeBytes(footer, block.maxs[i]);
+				}
+			}
+			footer.writeLong(channel.position());
+			footer.writeInt(SnapshotFormat.MAGIC);
+			writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+			if (index != null && id >= 0) {
+				registerRows(id);
+			}
+			logger.info("{} rows in {} blocks written to {}", rowCount, blocks.size(), file);
+			if (duplicates > 0) {
+				logger.info("{} duplicated rows skipped", duplicates);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * ブロックを並べ替えた後の行番号を、書き込んだId列を読み直して索引に登録する.
+	 */
+	private void registerRows(int id) throws IOException {
+		long row = 0;
+		ColumnCursor cursor = new ColumnCursor();
+		for (BlockMeta block : blocks) {
+			cursor.load(channel.map(FileChannel.MapMode.READ_ONLY, block.offsets[id], block.lengths[id]), block.encodings[id], block.rows);
+			for (int i = 0; i < block.rows; i++, row++) {
+				cursor.next();
+				if (!cursor.isNull() && (block.encodings[id] == SnapshotFormat.ID || SalesforceIds.isId(cursor.getString()))) {
+					index.put(cursor.idHigh(), cursor.idLow(), row);
+				}
+			}
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+	}
+
+	/** nullは最後. Idとして扱えない値は文字列として比較する */
+	private static int compareIds(byte[] a, byte[] b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : 1) : -1;
+		}
+		if (SalesforceIds.isId(a, 0, a.length) && SalesforceIds.isId(b, 0, b.length)) {
+			return SalesforceIds.compare(SalesforceIds.high(a, 0), SalesforceIds.low(a, 0), SalesforceIds.high(b, 0), SalesforceIds.low(b, 0));
+		}
+		return SnapshotFormat.compare(a, 0, a.length, b, 0, b.length);
+	}
+
+}
@@ -0,0 +1,108 @@
+package soap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Partner APIのクエリ結果1件を、項目名の配列と値の配列だけで保持するクラス.
+ * 項目名の配列は同じクエリの全レコードで共有するので、1件あたりのメモリは値の配列分だけになる.
+ */
+public class PartnerRecord {
+
+	/**
+	 * クエリの項目の並び. 同じクエリのレコードで共有する.
+	 */
+	public static class Layout {
+
+		private final String object;
+
+		private final String[] fields;
+
+		/** 小文字の項目名から位置. Salesforceは項目名の大文字小文字を区別しないので、それに合わせる */
+		private final Map<String, Integer> indexes;
+
+		Layout(String object, String[] fields) {
+			this.object = object;
+			this.fields = new String[fields.length];
+			Map<String, Integer> map = new HashMap<>();
+			for (int i = 0; i < fields.length; i++) {
+				this.fields[i] = fields[i].trim().intern();
+				map.put(this.fields[i].toLowerCase(Locale.ROOT), i);
+			}
+			this.indexes = Collections.unmodifiableMap(map);
+		}
+
+		public String getObject() {
+			return object;
+		}
+
+		public String[] getFields() {
+			return fields.clone();
+		}
+
+		public int size() {
+			return fields.length;
+		}
+
+		/**
+		 * @param field 項目名. 参照先の項目はOwner.Nameのようにドットでつなぐ
+		 * @return 項目がない場合は-1
+		 */
+		public int indexOf(String field) {
+			Integer index = indexes.get(field.toLowerCase(Locale.ROOT));
+			return index == null ? -1 : index;
+		}
+
+	}
+
+	private final Layout layout;
+
+	private final Object[] values;
+
+	PartnerRecord(Layout layout, Object[] values) {
+		this.layout = layout;
+		this.values = values;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	public Object get(int index) {
+		return values[index];
+	}
+
+	public Object get(String field) {
+		int index = layout.indexOf(field);
+		if (index < 0) {
+			throw new IllegalArgumentException("unknown field: " + field);
+		}
+		return values[index];
+	}
+
+	/** 値を文字列で取得する. 値がない(null)場合はnull */
+	public String getString(int index) {
+		Object value = values[index];
+		return value == null ? null : value.toString();
+	}
+
+	public String getString(String field) {
+		Object value = get(field);
+		return value == null ? null : value.toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(layout.object).append('{');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(layout.fields[i]).append('=').append(values[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+}
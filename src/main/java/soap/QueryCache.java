@@ -0,0 +1,361 @@
+package soap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.soap.enterprise.EnterpriseConnection;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.AggregateResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.bind.TypeMapper;
+import com.sforce.ws.parser.XmlOutputStream;
+
+/**
+ * 同じSOQLの結果を使い回すキャッシュ. 件数の少ない参照用のオブジェクトを何度も検索する場合に使う.
+ *
+ * キーは空白と大文字小文字(文字列リテラル以外)をそろえたSOQL.
+ * 全体の大きさ(結果をXMLにしたときのバイト数で見積もる)が上限を超えたら、最も長く使われていない結果から捨てる.
+ *
+ * 有効期限が切れた結果は、すぐに取得し直さずに、まずfrom句のオブジェクトの件数とSystemModstampの最大値を確認する.
+ * 前回と変わっていなければそのまま有効期限を延ばすので、集計のクエリ1回だけで済む.
+ * 親や子のオブジェクト(リレーションの項目やサブクエリ)の変更は検出しないので、その場合は有効期限で調整すること.
+ *
+ * 返すレコードはキャッシュと共有しているので、変更しないこと.
+ * スレッドセーフだが、同じSOQLを同時に取得した場合はそれぞれが問い合わせる.
+ *
+ * <pre>
+ * QueryCache cache = new QueryCache(connection).setTtl(1, TimeUnit.MINUTES);
+ * List&lt;SObject&gt; records = cache.query("select Id, Name from s1__c");
+ * </pre>
+ */
+public class QueryCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(QueryCache.class);
+
+	public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	/** 見積もりに加える、レコードごとのオブジェクトの大きさ */
+	private static final int RECORD_OVERHEAD = 64;
+
+	private static final QName RECORD = new QName("urn:enterprise.soap.sforce.com", "records");
+
+	private static class Entry {
+
+		final List<SObject> records;
+
+		final long bytes;
+
+		/** 件数とSystemModstampの最大値. 確認できないオブジェクトの場合はnull */
+		final String version;
+
+		long expiresAt;
+
+		Entry(List<SObject> records, long bytes, String version, long expiresAt) {
+			this.records = records;
+			this.bytes = bytes;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	private final EnterpriseConnection connection;
+
+	/** アクセス順. 先頭が最も長く使われていない */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	private long ttlMillis = DEFAULT_TTL_MILLIS;
+
+	private boolean revalidate = true;
+
+	private long bytes;
+
+	private long hits;
+
+	private long misses;
+
+	private long revalidated;
+
+	private long evictions;
+
+	public QueryCache(EnterpriseConnection connection) {
+		this.connection = connection;
+	}
+
+	/** キャッシュ全体の大きさの上限. これより大きい結果はキャッシュしない */
+	public QueryCache setMaxBytes(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+		}
+		synchronized (this) {
+			this.maxBytes = maxBytes;
+			evict();
+		}
+		return this;
+	}
+
+	/** 取得してから、変更を確認せずに使う期間 */
+	public synchronized QueryCache setTtl(long duration, TimeUnit unit) {
+		this.ttlMillis = unit.toMillis(duration);
+		return this;
+	}
+
+	/**
+	 * 有効期限が切れたときに、件数とSystemModstampで変更を確認するか.
+	 * falseの場合は常に取得し直す.
+	 */
+	public synchronized QueryCache setRevalidate(boolean revalidate) {
+		this.revalidate = revalidate;
+		return this;
+	}
+
+	/**
+	 * SOQLを実行する. queryMoreで全件を取得する.
+	 * @return 変更できないリスト
+	 */
+	public List<SObject> query(String soql) throws ConnectionException {
+		String key = normalize(soql);
+		Entry entry;
+		boolean check;
+		synchronized (this) {
+			check = revalidate;
+			entry = entries.get(key);
+			if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+				hits++;
+				return entry.records;
+			}
+		}
+		String object = check ? fromObject(key) : null;
+		String version = object == null ? null : version(object);
+		if (entry != null && version != null && version.equals(entry.version)) {
+			synchronized (this) {
+				entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+				revalidated++;
+			}
+			logger.debug("not modified: {}", key);
+			return entry.records;
+		}
+		// 取得中に変更された場合も次の確認で分かるように、件数と最大値は取得する前のものを使う
+		List<SObject> records = fetch(soql);
+		long size = estimate(records);
+		synchronized (this) {
+			misses++;
+			Entry old = entries.remove(key);
+			if (old != null) {
+				bytes -= old.bytes;
+			}
+			if (size <= maxBytes) {
+				entries.put(key, new Entry(records, size, version, System.currentTimeMillis() + ttlMillis));
+				bytes += size;
+				evict();
+			}
+		}
+		return records;
+	}
+
+	/** SOQLの結果を捨てる. 更新した直後などに使う */
+	public synchronized void invalidate(String soql) {
+		Entry entry = entries.remove(normalize(soql));
+		if (entry != null) {
+			bytes -= entry.bytes;
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/** 保持している結果の数 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** 保持している結果の、見積もりのバイト数 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** 有効期限内で、問い合わせずに返した回数 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** 取得した回数(変更されていた場合を含む) */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** 有効期限が切れたが、変更されていなかったので取得しなかった回数 */
+	public synchronized long getRevalidated() {
+		return revalidated;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().getValue().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private List<SObject> fetch(String soql) throws ConnectionException {
+		QueryResult result = connection.query(soql);
+		List<SObject> records = new ArrayList<>(Math.max(0, result.getSize()));
+		while (true) {
+			if (result.getRecords() != null) {
+				records.addAll(Arrays.asList(result.getRecords()));
+			}
+			if (result.isDone()) {
+				return Collections.unmodifiableList(records);
+			}
+			result = connection.queryMore(result.getQueryLocator());
+		}
+	}
+
+	/**
+	 * 件数とSystemModstampの最大値. 追加と更新は最大値、削除は件数で分かる.
+	 * @return SystemModstampがないオブジェクトなどで確認できない場合はnull
+	 */
+	private String version(String object) {
+		try {
+			SObject[] records = connection.query("select count(Id), max(SystemModstamp) from " + object).getRecords();
+			if (records == null || records.length == 0 || !(records[0] instanceof AggregateResult)) {
+				return null;
+			}
+			AggregateResult aggregate = (AggregateResult) records[0];
+			return aggregate.getField("expr0") + "/" + aggregate.getField("expr1");
+		} catch (ConnectionException e) {
+			logger.debug("cannot check modification of {}: {}", object, e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * SOAPのレスポンスと同じXMLにしたときのバイト数で、大きさを見積もる.
+	 */
+	private static long estimate(List<SObject> records) {
+		long[] count = new long[1];
+		OutputStream counter = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				count[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				count[0] += len;
+			}
+
+		};
+		try {
+			XmlOutputStream out = new XmlOutputStream(counter, false);
+			out.setPrefix("xsi", "http://www.w3.org/2001/XMLSchema-instance");
+			out.setPrefix("sf", "urn:sobject.enterprise.soap.sforce.com");
+			out.startDocument();
+			TypeMapper typeMapper = new TypeMapper();
+			for (SObject record : records) {
+				record.write(RECORD, out, typeMapper);
+			}
+			out.endDocument();
+			out.close();
+		} catch (IOException e) {
+			// 数えるだけなので起こらない
+			throw new IllegalStateException(e);
+		}
+		return count[0] + (long) RECORD_OVERHEAD * records.size();
+	}
+
+	/**
+	 * 文字列リテラルの外側の空白をひとつにまとめて、小文字にする. SOQLのキーワードと項目名は大文字小文字を区別しない.
+	 */
+	static String normalize(String soql) {
+		StringBuilder sb = new StringBuilder(soql.length());
+		boolean quoted = false;
+		boolean space = false;
+		for (int i = 0; i < soql.length(); i++) {
+			char c = soql.charAt(i);
+			if (quoted) {
+				sb.append(c);
+				if (c == '\\' && i + 1 < soql.length()) {
+					sb.append(soql.charAt(++i));
+				} else if (c == '\'') {
+					quoted = false;
+				}
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				space = sb.length() > 0;
+				continue;
+			}
+			if (space) {
+				sb.append(' ');
+				space = false;
+			}
+			if (c == '\'') {
+				quoted = true;
+			}
+			sb.append(quoted ? c : Character.toLowerCase(c));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * サブクエリの外側のfrom句のオブジェクト名.
+	 * @param key {@link #normalize(String)}したSOQL
+	 * @return 見つからない場合はnull
+	 */
+	static String fromObject(String key) {
+		int depth = 0;
+		boolean quoted = false;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (quoted) {
+				if (c == '\\') {
+					i++;
+				} else if (c == '\'') {
+					quoted = false;
+				}
+			} else if (c == '\'') {
+				quoted = true;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (depth == 0 && key.startsWith(" from ", i)) {
+				int start = i + " from ".length();
+				int end = start;
+				while (end < key.length() && (Character.isLetterOrDigit(key.charAt(end)) || key.charAt(end) == '_')) {
+					end++;
+				}
+				return end > start ? key.substring(start, end) : null;
+			}
+		}
+		return null;
+	}
+
+}
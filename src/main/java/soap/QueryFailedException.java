@@ -0,0 +1,14 @@
+package soap;
+
+/**
+ * queryMoreの失敗など、Iteratorから検査例外を投げられない場合に使う.
+ */
+public class QueryFailedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	QueryFailedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,93 @@
+package soap;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.sforce.soap.enterprise.EnterpriseConnection;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+
+/**
+ * SOQLの結果を、queryMoreで全件たどりながら1件ずつ返すIterator.
+ * 呼び出し側が現在のページを処理している間に、次のページを別スレッドで取得しておく({@link QueryPages}).
+ * 保持するのは現在のページと先読みしたページの2ページ分だけなので、件数に関わらずメモリの使用量は一定になる.
+ * queryMoreが失敗した場合は{@link QueryFailedException}を投げる.
+ *
+ * <pre>
+ * try (QueryIterator it = QueryIterator.query(connection, "select Id, Name from Account", 2000)) {
+ *     it.stream().forEach(so -&gt; ...);
+ * }
+ * </pre>
+ */
+public class QueryIterator implements Iterator<SObject>, AutoCloseable {
+
+	/** QueryOptionsで指定できる1ページの件数の範囲 */
+	public static final int MIN_BATCH_SIZE = QueryPages.MIN_BATCH_SIZE;
+
+	public static final int MAX_BATCH_SIZE = QueryPages.MAX_BATCH_SIZE;
+
+	private final QueryPages<SObject> pages;
+
+	private final int size;
+
+	/**
+	 * クエリを実行する. batchSizeはconnectionのQueryOptionsに設定するので、同じ接続の他のクエリにも適用される.
+	 * @param batchSize 1ページの件数(200〜2000). 実際の件数は項目数などによってSalesforce側で小さくなることがある
+	 */
+	public static QueryIterator query(EnterpriseConnection connection, String soql, int batchSize) throws ConnectionException {
+		QueryPages.checkBatchSize(batchSize);
+		connection.setQueryOptions(batchSize);
+		return new QueryIterator(connection, connection.query(soql));
+	}
+
+	/**
+	 * 削除済み(ごみ箱)のレコードも含めて取得する.
+	 */
+	public static QueryIterator queryAll(EnterpriseConnection connection, String soql, int batchSize) throws ConnectionException {
+		QueryPages.checkBatchSize(batchSize);
+		connection.setQueryOptions(batchSize);
+		return new QueryIterator(connection, connection.queryAll(soql));
+	}
+
+	private QueryIterator(EnterpriseConnection connection, QueryResult first) {
+		this.size = first.getSize();
+		this.pages = new QueryPages<>("query", page(first), locator -> page(connection.queryMore(locator)));
+	}
+
+	private static QueryPages.Page<SObject> page(QueryResult result) {
+		return new QueryPages.Page<>(result.getRecords(), result.isDone() ? null : result.getQueryLocator());
+	}
+
+	/** クエリに該当する全体の件数 */
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return pages.hasNext();
+	}
+
+	@Override
+	public SObject next() {
+		return pages.next();
+	}
+
+	/**
+	 * 残りのレコードのStream. 閉じるとこのIteratorも閉じる.
+	 */
+	public Stream<SObject> stream() {
+		Spliterator<SObject> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(this::close);
+	}
+
+	@Override
+	public void close() {
+		pages.close();
+	}
+
+}
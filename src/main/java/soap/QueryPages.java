@@ -0,0 +1,159 @@
+package soap;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.ws.ConnectionException;
+
+/**
+ * queryMoreで全ページをたどりながら、レコードを1件ずつ返すIterator.
+ * 呼び出し側が現在のページを処理している間に、次のページを別スレッドで取得しておく.
+ * 保持するのは現在のページと先読みしたページの2ページ分だけなので、件数に関わらずメモリの使用量は一定になる.
+ *
+ * EnterpriseとPartnerではQueryResultの型が異なるので、それぞれの結果を{@link Page}にして渡す.
+ * @see QueryIterator
+ * @see PartnerRecordReader
+ */
+class QueryPages<S> implements Iterator<S>, AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(QueryPages.class);
+
+	/** QueryOptionsで指定できる1ページの件数の範囲 */
+	static final int MIN_BATCH_SIZE = 200;
+
+	static final int MAX_BATCH_SIZE = 2000;
+
+	/**
+	 * 1ページ分のレコードと、次のページのロケータ.
+	 */
+	static final class Page<S> {
+
+		final S[] records;
+
+		/** 続きがない場合はnull */
+		final String locator;
+
+		Page(S[] records, String locator) {
+			this.records = records;
+			this.locator = locator;
+		}
+
+	}
+
+	/**
+	 * ロケータで次のページを取得する.
+	 */
+	@FunctionalInterface
+	interface QueryMore<S> {
+		Page<S> queryMore(String locator) throws ConnectionException;
+	}
+
+	private final String name;
+
+	private final QueryMore<S> more;
+
+	private final ExecutorService executor;
+
+	private S[] page;
+
+	private int index;
+
+	private CompletableFuture<Page<S>> next;
+
+	private long fetched;
+
+	static void checkBatchSize(int batchSize) {
+		if (batchSize < MIN_BATCH_SIZE || batchSize > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("batchSize must be between " + MIN_BATCH_SIZE + " and " + MAX_BATCH_SIZE + ": " + batchSize);
+		}
+	}
+
+	/**
+	 * @param name ログとスレッド名に使う名前
+	 * @param first query(またはqueryAll)の結果
+	 */
+	QueryPages(String name, Page<S> first, QueryMore<S> more) {
+		this.name = name;
+		this.more = more;
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, name + "-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+		accept(first);
+	}
+
+	private int length() {
+		return page != null ? page.length : 0;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (index == length()) {
+			if (next == null) {
+				return false;
+			}
+			try {
+				accept(next.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new QueryFailedException("interrupted while waiting for queryMore", e);
+			} catch (ExecutionException e) {
+				throw new QueryFailedException("queryMore failed", e.getCause());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public S next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		S record = page[index];
+		// 処理済みのレコードはすぐに解放できるようにする
+		page[index++] = null;
+		return record;
+	}
+
+	/**
+	 * ページを受け取り、続きがあれば次のページの取得を始める.
+	 */
+	private void accept(Page<S> result) {
+		page = result.records;
+		index = 0;
+		fetched += length();
+		if (result.locator == null) {
+			next = null;
+			executor.shutdown();
+			logger.info("{} done. {} records", name, fetched);
+			return;
+		}
+		String locator = result.locator;
+		next = CompletableFuture.supplyAsync(() -> {
+			try {
+				return more.queryMore(locator);
+			} catch (ConnectionException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	@Override
+	public void close() {
+		if (next != null) {
+			next.cancel(true);
+			next = null;
+		}
+		executor.shutdownNow();
+	}
+
+}
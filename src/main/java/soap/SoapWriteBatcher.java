@@ -0,0 +1,277 @@
+package soap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.soap.enterprise.EnterpriseConnection;
+import com.sforce.soap.enterprise.Error;
+import com.sforce.soap.enterprise.SaveResult;
+import com.sforce.soap.enterprise.StatusCode;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.SoapFaultException;
+
+import util.ConnectionUtil;
+
+/**
+ * SOAP APIのcreate/update/upsertを、1回の呼び出しの上限(200件)ごとに分割して並列に実行するクラス.
+ * 同じセッションを共有する複数のEnterpriseConnectionを使い回し、結果は入力と同じ順番の配列で返す.
+ *
+ * 行ロック(UNABLE_TO_LOCK_ROW)など、時間をおけば成功する可能性のあるエラーのレコードは再実行する.
+ * AllOrNoneを有効にした場合は、失敗が全て再実行できるエラーのときだけ呼び出し単位で再実行する.
+ * 通信エラー(タイムアウトなど)は、サーバ側で確定済みの可能性があるので、何度実行しても結果が同じ
+ * update と外部IDでのupsertだけ再実行する. 再実行しない呼び出しの失敗は{@link WriteFailedException}で返す.
+ */
+public class SoapWriteBatcher implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SoapWriteBatcher.class);
+
+	/** 1回の呼び出しで送信できるレコード数の上限 */
+	public static final int MAX_RECORDS_PER_CALL = 200;
+
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	/**
+	 * 1回分の呼び出し. create/update/upsertを同じ流れで扱うためのもの.
+	 */
+	@FunctionalInterface
+	private interface Call<R> {
+		R[] call(EnterpriseConnection connection, SObject[] records) throws ConnectionException;
+	}
+
+	/**
+	 * 呼び出しが失敗した入力の範囲. {@link ExecutionException}の原因として返す.
+	 * 通信エラーの場合はサーバ側で書き込まれている可能性があるので、確認してから実行し直すこと.
+	 */
+	public static class WriteFailedException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+
+		private final int to;
+
+		WriteFailedException(int from, int to, Throwable cause) {
+			super("Failed to write records " + from + "-" + to, cause);
+			this.from = from;
+			this.to = to;
+		}
+
+		/** 失敗した最初の入力の位置 */
+		public int getFrom() {
+			return from;
+		}
+
+		/** 失敗した最後の入力の位置(この位置を含む) */
+		public int getTo() {
+			return to;
+		}
+
+	}
+
+	private final List<EnterpriseConnection> all;
+
+	/** 空いている接続 */
+	private final BlockingQueue<EnterpriseConnection> connections;
+
+	private final ExecutorService executor;
+
+	private boolean allOrNone;
+
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+
+	private Set<StatusCode> retryable = EnumSet.of(StatusCode.UNABLE_TO_LOCK_ROW, StatusCode.REQUEST_RUNNING_TOO_LONG, StatusCode.ENTITY_IS_LOCKED);
+
+	/**
+	 * poolSize個の接続を作成する. 接続はConnectionUtilのセッションを共有するので、ログインは1回で済む.
+	 */
+	public static SoapWriteBatcher create(int poolSize) throws ConnectionException {
+		List<EnterpriseConnection> connections = new ArrayList<>();
+		for (int i = 0; i < poolSize; i++) {
+			connections.add(ConnectionUtil.createEPC());
+		}
+		return new SoapWriteBatcher(connections);
+	}
+
+	/**
+	 * 接続の数だけ並列に呼び出す.
+	 */
+	public SoapWriteBatcher(List<EnterpriseConnection> connections) {
+		if (connections.isEmpty()) {
+			throw new IllegalArgumentException("connections must not be empty");
+		}
+		this.all = new ArrayList<>(connections);
+		this.connections = new ArrayBlockingQueue<>(connections.size(), false, connections);
+		this.executor = Executors.newFixedThreadPool(connections.size());
+	}
+
+	/**
+	 * 呼び出し単位で、1件でも失敗したら全てをロールバックするかどうか. デフォルトはfalse(成功したものは確定する).
+	 * 書き込みの実行中には変更しないこと.
+	 */
+	public SoapWriteBatcher setAllOrNone(boolean allOrNone) {
+		this.allOrNone = allOrNone;
+		for (EnterpriseConnection connection : all) {
+			connection.setAllOrNoneHeader(allOrNone);
+		}
+		return this;
+	}
+
+	/** 再実行の回数. 0の場合は再実行しない */
+	public SoapWriteBatcher setMaxRetries(int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("maxRetries must not be negative: " + maxRetries);
+		}
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	/** 再実行するエラー */
+	public SoapWriteBatcher setRetryableStatusCodes(Set<StatusCode> retryable) {
+		this.retryable = EnumSet.copyOf(retryable);
+		return this;
+	}
+
+	/**
+	 * 通信エラーの場合は再実行しない. 応答が失われただけで作成済みの場合に、同じレコードを二重に作成しないため.
+	 */
+	public SaveResult[] create(List<? extends SObject> records) throws InterruptedException, ExecutionException {
+		return execute(records, EnterpriseConnection::create, false, SaveResult[]::new, SaveResult::getErrors);
+	}
+
+	public SaveResult[] update(List<? extends SObject> records) throws InterruptedException, ExecutionException {
+		return execute(records, EnterpriseConnection::update, true, SaveResult[]::new, SaveResult::getErrors);
+	}
+
+	/**
+	 * 外部IDでのupsertは、通信エラーの場合も再実行する. Idでのupsertは、Idのないレコードが作成されるので再実行しない.
+	 */
+	public UpsertResult[] upsert(String externalIdField, List<? extends SObject> records) throws InterruptedException, ExecutionException {
+		return execute(records, (connection, chunk) -> connection.upsert(externalIdField, chunk), !"Id".equalsIgnoreCase(externalIdField),
+				UpsertResult[]::new, UpsertResult::getErrors);
+	}
+
+	/**
+	 * @param idempotent 何度実行しても結果が同じ呼び出しかどうか. trueの場合だけ通信エラーで再実行する
+	 */
+	private <R> R[] execute(List<? extends SObject> records, Call<R> call, boolean idempotent, IntFunction<R[]> newArray, Function<R, Error[]> errors)
+			throws InterruptedException, ExecutionException {
+		R[] results = newArray.apply(records.size());
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (int from = 0; from < records.size(); from += MAX_RECORDS_PER_CALL) {
+			final int offset = from;
+			SObject[] chunk = records.subList(from, Math.min(from + MAX_RECORDS_PER_CALL, records.size())).toArray(new SObject[0]);
+			futures.add(CompletableFuture.runAsync(() -> {
+				try {
+					R[] chunkResults = callWithRetry(chunk, call, idempotent, errors);
+					System.arraycopy(chunkResults, 0, results, offset, chunkResults.length);
+				} catch (ConnectionException | InterruptedException e) {
+					WriteFailedException failed = new WriteFailedException(offset, offset + chunk.length - 1, e);
+					logger.error(failed.getMessage(), e);
+					throw new CompletionException(failed);
+				}
+			}, executor));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+		logger.info("{} records written in {} calls", records.size(), futures.size());
+		return results;
+	}
+
+	private <R> R[] callWithRetry(SObject[] chunk, Call<R> call, boolean idempotent, Function<R, Error[]> errors) throws ConnectionException, InterruptedException {
+		R[] results = invoke(chunk, call, idempotent, 0);
+		for (int attempt = 1; attempt <= maxRetries; attempt++) {
+			int[] retry = retryIndexes(results, errors);
+			if (retry.length == 0) {
+				break;
+			}
+			logger.info("retrying {} of {} records (attempt {})", retry.length, chunk.length, attempt);
+			TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS * attempt);
+			SObject[] retryRecords = new SObject[retry.length];
+			for (int i = 0; i < retry.length; i++) {
+				retryRecords[i] = chunk[retry[i]];
+			}
+			R[] retryResults = invoke(retryRecords, call, idempotent, attempt);
+			for (int i = 0; i < retry.length; i++) {
+				results[retry[i]] = retryResults[i];
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * プールから接続を借りて呼び出す. 通信エラーの場合は、idempotentな呼び出しだけ再実行の回数まではやり直す.
+	 * 応答が失われただけでサーバ側では確定している場合があり、createなどをやり直すとレコードが重複するため.
+	 * SOAPのfault(項目名の誤りなど)はやり直しても同じなので、そのまま投げる.
+	 */
+	private <R> R[] invoke(SObject[] records, Call<R> call, boolean idempotent, int attempt) throws ConnectionException, InterruptedException {
+		while (true) {
+			EnterpriseConnection connection = connections.take();
+			try {
+				return call.call(connection, records);
+			} catch (ConnectionException e) {
+				if (!idempotent || e instanceof SoapFaultException || attempt >= maxRetries) {
+					throw e;
+				}
+				attempt++;
+				logger.warn("call failed. retrying (attempt {}): {}", attempt, e.toString());
+			} finally {
+				connections.put(connection);
+			}
+			TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS * attempt);
+		}
+	}
+
+	/**
+	 * 再実行するレコードの位置.
+	 * AllOrNoneの場合、失敗したレコード以外も「ロールバックされた」というエラーになるので、
+	 * 原因のエラーが全て再実行できるものであれば全件を、そうでなければ何も再実行しない.
+	 */
+	private <R> int[] retryIndexes(R[] results, Function<R, Error[]> errors) {
+		int[] indexes = new int[results.length];
+		int count = 0;
+		boolean fatal = false;
+		for (int i = 0; i < results.length; i++) {
+			Error[] e = errors.apply(results[i]);
+			if (e == null || e.length == 0) {
+				continue;
+			}
+			StatusCode code = e[0].getStatusCode();
+			if (retryable.contains(code) || (allOrNone && code == StatusCode.ALL_OR_NONE_OPERATION_ROLLED_BACK)) {
+				indexes[count++] = i;
+			} else {
+				fatal = true;
+			}
+		}
+		if (allOrNone && fatal) {
+			return new int[0];
+		}
+		return Arrays.copyOf(indexes, count);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+}
@@ -1,54 +1,115 @@
 package util;
 
+import javax.xml.namespace.QName;
+
 import com.sforce.async.AsyncApiException;
 import com.sforce.async.BulkConnection;
-import com.sforce.soap.enterprise.Connector;
 import com.sforce.soap.enterprise.EnterpriseConnection;
 import com.sforce.soap.enterprise.LoginResult;
 import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.ws.ConnectionException;
 import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.SessionRenewer;
 
+/**
+ * 各APIの接続を作る. 接続設定には全て{@link HttpTransport}の通信設定(圧縮、タイムアウト、keep-alive)を適用する.
+ */
 public class ConnectionUtil {
 	
 	public static final String API_VERSION = "38.0";
 	
-	private static final String LOGIN_URL = "https://login.salesforce.com/services/Soap/c/" + API_VERSION;
+	/** Bulk APIのqueryAllは39.0以降で使用できる */
+	public static final String ASYNC_API_VERSION = "39.0";
+	
+	/** ログイン先. Sandboxの場合はhttps://test.salesforce.com、ローカルのサーバ({@link local.LocalOrgServer})の場合はそのURLを指定する */
+	private static final String LOGIN_URL = System.getProperty("SF_LOGIN_URL", "https://login.salesforce.com") + "/services/Soap/c/" + API_VERSION;
+	
+	private static final QName ENTERPRISE_SESSION_HEADER = new QName("urn:enterprise.soap.sforce.com", "SessionHeader");
+	
+	private static final QName PARTNER_SESSION_HEADER = new QName("urn:partner.soap.sforce.com", "SessionHeader");
+	
+	private static final QName METADATA_SESSION_HEADER = new QName("http://soap.sforce.com/2006/04/metadata", "SessionHeader");
+	
+	/** 各接続で共有するセッション. ログインは最初の接続を作るときと、セッションの期限が切れるときだけ行う */
+	private static final SessionCache sessions = new SessionCache(ConnectionUtil::loginToSalesforce);
 
     public static EnterpriseConnection createEPC() throws ConnectionException {
-        ConnectorConfig config = getConfig();
-        return Connector.newConnection(config);
+        LoginResult loginResult = sessions.get();
+        ConnectorConfig config = HttpTransport.configure(new ConnectorConfig());
+        config.setServiceEndpoint(loginResult.getServerUrl());
+        config.setSessionId(loginResult.getSessionId());
+        config.setSessionRenewer(c -> {
+        	com.sforce.soap.enterprise.SessionHeader_element header = new com.sforce.soap.enterprise.SessionHeader_element();
+        	header.setSessionId(renew(c));
+        	return renewalHeader(ENTERPRISE_SESSION_HEADER, header);
+        });
+        return new EnterpriseConnection(config);
     }
     
-    public static BulkConnection createBulk() throws ConnectionException, AsyncApiException {
-    	ConnectorConfig config = new ConnectorConfig();
-    	LoginResult loginResult = loginToSalesforce();
-    	config.setRestEndpoint("https://ap4.salesforce.com/services/async/" + API_VERSION); //ap4は開発用エディションのインスタンス
+    /**
+     * Partner API用の接続. エンドポイントはEnterprise APIの/Soap/c/を/Soap/u/に置き換えたもの.
+     */
+    public static PartnerConnection createPartner() throws ConnectionException {
+        LoginResult loginResult = sessions.get();
+        ConnectorConfig config = HttpTransport.configure(new ConnectorConfig());
+        config.setServiceEndpoint(loginResult.getServerUrl().replace("/Soap/c/", "/Soap/u/"));
         config.setSessionId(loginResult.getSessionId());
-    	return new BulkConnection(config);
+        config.setSessionRenewer(c -> {
+        	com.sforce.soap.partner.SessionHeader_element header = new com.sforce.soap.partner.SessionHeader_element();
+        	header.setSessionId(renew(c));
+        	return renewalHeader(PARTNER_SESSION_HEADER, header);
+        });
+        return new PartnerConnection(config);
+    }
+    
+    /**
+     * Bulk API用の接続. エンドポイントはログイン結果のサーバURLから組み立てる.
+     */
+    public static BulkConnection createBulk() throws ConnectionException, AsyncApiException {
+    	LoginResult loginResult = sessions.get();
+    	ConnectorConfig config = HttpTransport.configure(new ConnectorConfig());
+    	String serverUrl = loginResult.getServerUrl();
+    	config.setRestEndpoint(serverUrl.substring(0, serverUrl.indexOf("/Soap/")) + "/async/" + ASYNC_API_VERSION);
+    	// Bulk APIはリクエストのたびに設定のセッションIDを参照するので、ログインし直したときに差し替えてもらう
+    	sessions.register(config);
+    	return new RenewingBulkConnection(config, sessions);
     }
     
     public static MetadataConnection createMetadata() throws ConnectionException {
-    	ConnectorConfig config = new ConnectorConfig();
-    	LoginResult loginResult = loginToSalesforce();
+    	LoginResult loginResult = sessions.get();
+    	ConnectorConfig config = HttpTransport.configure(new ConnectorConfig());
     	config.setServiceEndpoint(loginResult.getMetadataServerUrl());
         config.setSessionId(loginResult.getSessionId());
+        config.setSessionRenewer(c -> {
+        	com.sforce.soap.metadata.SessionHeader_element header = new com.sforce.soap.metadata.SessionHeader_element();
+        	header.setSessionId(renew(c));
+        	return renewalHeader(METADATA_SESSION_HEADER, header);
+        });
         return new MetadataConnection(config);
     }
-
-    private static ConnectorConfig getConfig() {
-        String userName = System.getProperty("SF_USER");
-        String password = System.getProperty("SF_PASSWORD");
-        ConnectorConfig config = new ConnectorConfig();
-        config.setUsername(userName);
-        config.setPassword(password);
-        return config;
+    
+    /**
+     * SOAP APIでセッションが無効(INVALID_SESSION_ID)になったときに呼ばれる.
+     * 接続はSessionHeaderに作成時のセッションIDを持ち続けるので、設定のセッションIDと揃えておく.
+     */
+    private static String renew(ConnectorConfig config) throws ConnectionException {
+    	String sessionId = sessions.renew(config.getSessionId());
+    	config.setSessionId(sessionId);
+    	return sessionId;
+    }
+    
+    private static SessionRenewer.SessionRenewalHeader renewalHeader(QName name, Object headerElement) {
+    	SessionRenewer.SessionRenewalHeader header = new SessionRenewer.SessionRenewalHeader();
+    	header.name = name;
+    	header.headerElement = headerElement;
+    	return header;
     }
     
     private static LoginResult loginToSalesforce() throws ConnectionException {
     	String userName = System.getProperty("SF_USER");
         String password = System.getProperty("SF_PASSWORD");
-        final ConnectorConfig config = new ConnectorConfig();
+        final ConnectorConfig config = HttpTransport.configure(new ConnectorConfig());
         config.setAuthEndpoint(LOGIN_URL);
         config.setServiceEndpoint(LOGIN_URL);
         config.setManualLogin(true);
@@ -0,0 +1,352 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bulk APIのクエリ結果(RFC 4180形式のCSV)をバイト列のまま読み込むクラス.
+ * ダブルクォート内のカンマや改行、エスケープされたダブルクォート("")に対応している.
+ *
+ * レコードの値は内部のバッファに保持し、{@link #next()}を呼ぶたびに上書きする.
+ * Stringが必要な場合のみ{@link #getString(int)}などで取得すること.
+ *
+ * <pre>
+ * try (CsvReader reader = new CsvReader(is)) {
+ *     reader.readHeader();
+ *     int id = reader.columnIndex("Id");
+ *     while (reader.next()) {
+ *         String value = reader.getString(id);
+ *     }
+ * }
+ * </pre>
+ */
+public class CsvReader implements Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/** Bulk APIのクエリ結果が0件の場合に、ヘッダの代わりに返される行 */
+	public static final String NO_RECORDS = "Records not found for this query";
+
+	private final InputStream in;
+
+	private final byte[] input;
+
+	private int inputPos;
+
+	private int inputLimit;
+
+	private boolean eof;
+
+	/** 現在のレコードの値. クォートは取り除いた状態で保持する */
+	private byte[] record = new byte[1024];
+
+	private int recordLength;
+
+	private int[] starts = new int[16];
+
+	private int[] ends = new int[16];
+
+	private int fieldCount;
+
+	private long recordNumber;
+
+	private Map<String, Integer> header = Collections.emptyMap();
+
+	private String[] headerNames = new String[0];
+
+	public CsvReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	public CsvReader(InputStream in, int bufferSize) {
+		this.in = in;
+		this.input = new byte[bufferSize];
+	}
+
+	/**
+	 * 先頭のレコードをヘッダとして読み込む.
+	 * @return ヘッダがない(空の)場合はfalse
+	 */
+	public boolean readHeader() throws IOException {
+		if (!next()) {
+			return false;
+		}
+		Map<String, Integer> columns = new HashMap<>();
+		headerNames = new String[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			headerNames[i] = getString(i);
+			columns.put(headerNames[i], i);
+		}
+		header = Collections.unmodifiableMap(columns);
+		return true;
+	}
+
+	/**
+	 * 読み込んだヘッダが、結果が0件の場合にBulk APIがヘッダの代わりに返す行かどうか.
+	 * PK-chunkでは、Idの範囲にレコードがないバッチでよく返される.
+	 */
+	public boolean isNoRecords() {
+		return headerNames.length == 1 && NO_RECORDS.equals(headerNames[0]);
+	}
+
+	/**
+	 * 次のレコードに進む.
+	 * @return レコードがない場合はfalse
+	 */
+	public boolean next() throws IOException {
+		recordLength = 0;
+		fieldCount = 0;
+		if (!fill()) {
+			return false;
+		}
+		int start = 0;
+		boolean quoted = false;
+		boolean afterQuote = false;
+		while (fill()) {
+			byte b = input[inputPos++];
+			if (quoted) {
+				if (b == '"') {
+					quoted = false;
+					afterQuote = true;
+				} else {
+					append(b);
+				}
+			} else if (b == '"') {
+				if (afterQuote) {
+					// "" はダブルクォートそのもの
+					append(b);
+				}
+				quoted = true;
+				afterQuote = false;
+			} else if (b == ',') {
+				endField(start);
+				start = recordLength;
+				afterQuote = false;
+			} else if (b == '\n') {
+				endField(start);
+				recordNumber++;
+				return true;
+			} else if (b == '\r') {
+				// \r\n の\rは読み飛ばす
+				afterQuote = false;
+			} else {
+				append(b);
+				afterQuote = false;
+			}
+		}
+		// 改行で終わっていない最後のレコード
+		endField(start);
+		recordNumber++;
+		return true;
+	}
+
+	/** 現在のレコードの列数 */
+	public int fieldCount() {
+		return fieldCount;
+	}
+
+	/** 何番目のレコードか. ヘッダを含めて1から数える */
+	public long getRecordNumber() {
+		return recordNumber;
+	}
+
+	/**
+	 * ヘッダの列名から列の位置を取得する.
+	 * @return 列がない場合は-1
+	 */
+	public int columnIndex(String name) {
+		Integer index = header.get(name);
+		return index == null ? -1 : index;
+	}
+
+	public String[] getHeader() {
+		return headerNames.clone();
+	}
+
+	public String getString(int index) {
+		checkIndex(index);
+		return new String(record, starts[index], ends[index] - starts[index], StandardCharsets.UTF_8);
+	}
+
+	public String getString(String column) {
+		return getString(requireColumn(column));
+	}
+
+	public boolean isEmpty(int index) {
+		checkIndex(index);
+		return starts[index] == ends[index];
+	}
+
+	/**
+	 * 値をStringにせずに数値として取得する.
+	 * @throws NumberFormatException 数値でない場合
+	 */
+	public long getLong(int index) {
+		checkIndex(index);
+		int i = starts[index];
+		int end = ends[index];
+		if (i == end) {
+			throw new NumberFormatException("empty field at " + index);
+		}
+		boolean negative = record[i] == '-';
+		if (negative || record[i] == '+') {
+			i++;
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = record[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(getString(index));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/** 値が"true"(大文字小文字は区別しない)の場合true */
+	public boolean getBoolean(int index) {
+		return equalsIgnoreCaseAscii(index, "true");
+	}
+
+	/**
+	 * 値をStringにせずに比較する. 比較する文字列はASCIIのみとする.
+	 */
+	public boolean equalsIgnoreCaseAscii(int index, String value) {
+		checkIndex(index);
+		int length = ends[index] - starts[index];
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (Character.toLowerCase((char) record[starts[index] + i]) != Character.toLowerCase(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** 内部のバッファ. 次のレコードを読み込むと上書きされる */
+	public byte[] buffer() {
+		return record;
+	}
+
+	public int fieldStart(int index) {
+		checkIndex(index);
+		return starts[index];
+	}
+
+	public int fieldLength(int index) {
+		checkIndex(index);
+		return ends[index] - starts[index];
+	}
+
+	/**
+	 * 現在のレコードの先頭からcount列分を、Bulk APIと同じ形式(全ての値をダブルクォートで囲む)で書き込む.
+	 */
+	public void writeRecord(OutputStream out, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			writeQuoted(out, i);
+		}
+		out.write('\n');
+	}
+
+	public void writeRecord(OutputStream out) throws IOException {
+		writeRecord(out, fieldCount);
+	}
+
+	private void writeQuoted(OutputStream out, int index) throws IOException {
+		out.write('"');
+		int from = starts[index];
+		for (int i = from; i < ends[index]; i++) {
+			if (record[i] == '"') {
+				out.write(record, from, i - from + 1);
+				out.write('"');
+				from = i + 1;
+			}
+		}
+		out.write(record, from, ends[index] - from);
+		out.write('"');
+	}
+
+	/**
+	 * 現在のレコードをCSVの1行として返す. ログ出力用.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < fieldCount; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('"').append(getString(i).replace("\"", "\"\"")).append('"');
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean fill() throws IOException {
+		if (inputPos < inputLimit) {
+			return true;
+		}
+		if (eof) {
+			return false;
+		}
+		int n;
+		do {
+			n = in.read(input);
+		} while (n == 0);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		inputPos = 0;
+		inputLimit = n;
+		return true;
+	}
+
+	private void append(byte b) {
+		if (recordLength == record.length) {
+			record = Arrays.copyOf(record, record.length * 2);
+		}
+		record[recordLength++] = b;
+	}
+
+	private void endField(int start) {
+		if (fieldCount == starts.length) {
+			starts = Arrays.copyOf(starts, fieldCount * 2);
+			ends = Arrays.copyOf(ends, fieldCount * 2);
+		}
+		starts[fieldCount] = start;
+		ends[fieldCount] = recordLength;
+		fieldCount++;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= fieldCount) {
+			throw new IndexOutOfBoundsException("field " + index + " of " + fieldCount + " at record " + recordNumber);
+		}
+	}
+
+	private int requireColumn(String column) {
+		int index = columnIndex(column);
+		if (index < 0) {
+			throw new IllegalArgumentException("unknown column: " + column);
+		}
+		return index;
+	}
+
+}
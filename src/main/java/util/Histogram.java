@@ -0,0 +1,158 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 0以上の値の分布を記録するヒストグラム.
+ *
+ * 2のべき乗ごとの範囲を8つに分けたバケットで数えるので、誤差は最大で12.5%程度.
+ * 値を保持しないので件数が増えてもメモリは一定で、複数スレッドからロックなしで記録できる.
+ */
+public class Histogram {
+
+	/** 2のべき乗ごとの範囲を分割する数(2^SUB_BITS) */
+	private static final int SUB_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * 値を記録する. 負の値は0として扱う.
+	 */
+	public void record(long value) {
+		long v = Math.max(0, value);
+		counts.incrementAndGet(index(v));
+		count.incrementAndGet();
+		sum.addAndGet(v);
+		long current;
+		while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+			// 他のスレッドが更新した場合はやり直す
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * 割合pの位置にある値. 値はバケットの上限で返すので、実際の値より最大12.5%程度大きい.
+	 * @param p 0〜1. 0.99なら99パーセンタイル
+	 */
+	public long percentile(double p) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * p));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public Snapshot snapshot() {
+		long n = count.get();
+		return new Snapshot(n, n == 0 ? 0 : sum.get() / n, percentile(0.5), percentile(0.9), percentile(0.99), max.get());
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/** バケットに入る最大の値 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * ある時点の集計値. JMXではCompositeDataとして公開される.
+	 */
+	public static class Snapshot {
+
+		private final long count;
+
+		private final long mean;
+
+		private final long p50;
+
+		private final long p90;
+
+		private final long p99;
+
+		private final long max;
+
+		Snapshot(long count, long mean, long p50, long p90, long p99, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d p50=%d p90=%d p99=%d max=%d", count, p50, p90, p99, max);
+		}
+
+	}
+
+}
@@ -0,0 +1,230 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.transport.JdkHttpTransport;
+import com.sforce.ws.transport.LimitingInputStream;
+import com.sforce.ws.transport.LimitingOutputStream;
+import com.sforce.ws.transport.Transport;
+
+/**
+ * Enterprise, Partner, Bulk, Metadataの各接続で共有するHTTPの通信設定.
+ * {@link #configure(ConnectorConfig)}で接続設定に適用する.
+ *
+ * wscの標準(JdkHttpTransport)との違いは以下.
+ * <ul>
+ * <li>リクエストの本文をメモリにためずにchunkedで送る. Bulk APIの大きなバッチもそのまま流せる</li>
+ * <li>gzipの圧縮レベルとバッファの大きさを指定できる. 標準は512バイトのバッファで、CSVのような大きな本文では遅い</li>
+ * <li>応答を読み終えずに閉じた場合も残りを読み捨てて、接続をkeep-aliveのプールに戻す</li>
+ * <li>keep-aliveで保持する接続数を、並列に実行するスレッド数に合わせて増やす. 標準では5本を超えた分は毎回TLSの接続からやり直す</li>
+ * </ul>
+ * 設定はシステムプロパティで変更する.
+ * <pre>
+ * -DSF_HTTP_COMPRESSION=true -DSF_HTTP_GZIP_LEVEL=1 -DSF_HTTP_BUFFER_SIZE=65536
+ * -DSF_HTTP_CONNECT_TIMEOUT_MILLIS=30000 -DSF_HTTP_READ_TIMEOUT_MILLIS=600000 -DSF_HTTP_MAX_CONNECTIONS=64
+ * </pre>
+ * メッセージのトレースやMessageHandlerを設定した接続は、wscの標準の通信を使う.
+ *
+ * 応答のSforce-Limit-Infoヘッダ(APIリクエストの使用数)は、{@link #setLimitInfoListener}で接続設定ごとに受け取れる.
+ */
+public class HttpTransport implements Transport {
+
+	/** 送受信の本文をgzipで圧縮するか */
+	private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("SF_HTTP_COMPRESSION", "true"));
+
+	/** 送信する本文の圧縮レベル. 通信の方が遅いことがほとんどなので、圧縮率よりも速さを優先する */
+	private static final int GZIP_LEVEL = Integer.getInteger("SF_HTTP_GZIP_LEVEL", Deflater.BEST_SPEED);
+
+	/** 送受信のバッファと、chunkedで送るときのチャンクの大きさ */
+	private static final int BUFFER_SIZE = Integer.getInteger("SF_HTTP_BUFFER_SIZE", 64 * 1024);
+
+	private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("SF_HTTP_CONNECT_TIMEOUT_MILLIS", 30 * 1000);
+
+	/** 大きなクエリは最初の応答が返るまで時間がかかるので、長めにする */
+	private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("SF_HTTP_READ_TIMEOUT_MILLIS", 10 * 60 * 1000);
+
+	/** 閉じるときに読み捨てる最大のバイト数. これより多く残っている場合は接続ごと閉じる */
+	private static final int MAX_DRAIN_BYTES = 256 * 1024;
+
+	static {
+		// JDKのkeep-aliveのプールは最初の接続のときに設定を読むので、それより前に設定する
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", System.getProperty("SF_HTTP_MAX_CONNECTIONS", "64"));
+		}
+	}
+
+	/** 接続設定ごとの、Sforce-Limit-Infoヘッダの受け取り先. 応答ごとに参照するので、ロックしないものにする */
+	private static final Map<ConnectorConfig, Consumer<String>> LIMIT_INFO_LISTENERS = new ConcurrentHashMap<>();
+
+	private ConnectorConfig config;
+
+	private HttpURLConnection connection;
+
+	private boolean successful;
+
+	public HttpTransport() {
+	}
+
+	public HttpTransport(ConnectorConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * 接続設定に、圧縮、タイムアウト、このクラスでの通信を設定する. 接続を作る前に呼び出す.
+	 */
+	public static ConnectorConfig configure(ConnectorConfig config) {
+		config.setCompression(COMPRESSION);
+		config.setConnectionTimeout(CONNECT_TIMEOUT_MILLIS);
+		config.setReadTimeout(READ_TIMEOUT_MILLIS);
+		config.setTransportFactory(() -> config.isTraceMessage() || config.hasMessageHandlers() ? new JdkHttpTransport(config) : new HttpTransport(config));
+		return config;
+	}
+
+	/**
+	 * configの接続で応答を受け取るたびに、Sforce-Limit-Infoヘッダの値(api-usage=使用数/上限)をlistenerに渡す.
+	 * ヘッダのない応答では呼ばない. 応答を受け取ったスレッドで呼ぶので、すぐに返すこと.
+	 * 不要になったら解除する.
+	 * @param listener nullの場合は解除する
+	 */
+	public static void setLimitInfoListener(ConnectorConfig config, Consumer<String> listener) {
+		if (listener == null) {
+			LIMIT_INFO_LISTENERS.remove(config);
+		} else {
+			LIMIT_INFO_LISTENERS.put(config, listener);
+		}
+	}
+
+	@Override
+	public void setConfig(ConnectorConfig config) {
+		this.config = config;
+	}
+
+	@Override
+	public OutputStream connect(String url, String soapAction) throws IOException {
+		HashMap<String, String> headers = new HashMap<>();
+		headers.put("SOAPAction", "\"" + (soapAction == null ? "" : soapAction) + "\"");
+		headers.put("Content-Type", "text/xml; charset=UTF-8");
+		headers.put("Accept", "text/xml");
+		return connect(url, headers, true);
+	}
+
+	@Override
+	public OutputStream connect(String url, HashMap<String, String> headers) throws IOException {
+		return connect(url, headers, true);
+	}
+
+	@Override
+	public OutputStream connect(String url, HashMap<String, String> headers, boolean enableCompression) throws IOException {
+		boolean compress = enableCompression && config.isCompression();
+		connection = JdkHttpTransport.createConnection(config, new URL(url), headers, enableCompression);
+		connection.setRequestMethod("POST");
+		connection.setDoInput(true);
+		connection.setDoOutput(true);
+		connection.setUseCaches(false);
+		connection.setChunkedStreamingMode(BUFFER_SIZE);
+		OutputStream out = connection.getOutputStream();
+		if (config.getMaxRequestSize() > 0) {
+			out = new LimitingOutputStream(config.getMaxRequestSize(), out);
+		}
+		if (compress) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE) {
+				{
+					def.setLevel(GZIP_LEVEL);
+				}
+			};
+		}
+		// wscは少しずつ書き込むので、圧縮の前にまとめる
+		return new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		InputStream in;
+		try {
+			in = connection.getInputStream();
+			successful = true;
+		} catch (IOException e) {
+			in = connection.getErrorStream();
+			successful = false;
+			if (in == null) {
+				throw e;
+			}
+		}
+		String limitInfo = connection.getHeaderField("Sforce-Limit-Info");
+		Consumer<String> listener = limitInfo == null ? null : LIMIT_INFO_LISTENERS.get(config);
+		if (listener != null) {
+			listener.accept(limitInfo);
+		}
+		return wrapInput(connection, in, config);
+	}
+
+	@Override
+	public boolean isSuccessful() {
+		return successful;
+	}
+
+	/**
+	 * Bulk APIの結果の取得のように、本文のないGETリクエストを送る.
+	 * 失敗した場合も例外にせず、{@link #isSuccessful()}がfalseになり、エラーの本文を返す.
+	 */
+	public InputStream get(URL url, HashMap<String, String> headers) throws IOException {
+		connection = JdkHttpTransport.createConnection(config, url, headers, true);
+		connection.setRequestMethod("GET");
+		connection.setUseCaches(false);
+		return getContent();
+	}
+
+	private static InputStream wrapInput(HttpURLConnection connection, InputStream in, ConnectorConfig config) throws IOException {
+		InputStream wrapped = new DrainingInputStream(in);
+		if (config.getMaxResponseSize() > 0) {
+			wrapped = new LimitingInputStream(config.getMaxResponseSize(), wrapped);
+		}
+		if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+			wrapped = new GZIPInputStream(wrapped, BUFFER_SIZE);
+		}
+		return wrapped;
+	}
+
+	/**
+	 * 閉じるときに残りを読み捨てる. JDKは最後まで読んだ接続だけをkeep-aliveのプールに戻す.
+	 * gzipの末尾やSOAPのエンベロープの後ろが残っていることが多い.
+	 */
+	private static class DrainingInputStream extends FilterInputStream {
+
+		DrainingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				byte[] buffer = new byte[8192];
+				long drained = 0;
+				int n;
+				while (drained < MAX_DRAIN_BYTES && (n = in.read(buffer)) != -1) {
+					drained += n;
+				}
+			} catch (IOException ignore) {
+				// 読み捨てられない場合は、接続を閉じるだけ
+			} finally {
+				super.close();
+			}
+		}
+
+	}
+
+}
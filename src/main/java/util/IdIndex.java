@@ -0,0 +1,305 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SalesforceのIdから数値(スナップショットの行番号など)を引く、ヒープ外のハッシュ表.
+ * 重複したIdを取り除くためにも使える.
+ *
+ * Idは{@link SalesforceIds}で詰めた値をそのまま使い、Stringやボクシングしたキーは作らない.
+ * ひとつのエントリは16バイトで、Id(90ビット)と値(38ビット)を2つのlongに詰める.
+ * 5000万件の場合は約1GBになる.
+ *
+ * 表はセグメントに分け、セグメントごとにロックするので、複数のスレッドから同時に登録できる.
+ * セグメントはそれぞれ別のByteBufferなので、全体で2GBを超えてもよい.
+ * ファイルに作成した場合はメモリマップするので、closeした後に{@link #open(Path)}でそのまま使える.
+ *
+ * 件数は作成時に指定し、後から増やせない.
+ */
+public class IdIndex implements AutoCloseable {
+
+	/** 値がない場合 */
+	public static final long NOT_FOUND = -1L;
+
+	/** 登録できる値の最大. 値は0以上とする */
+	public static final long MAX_VALUE = (1L << 38) - 2;
+
+	private static final int MAGIC = 0x53464958; // "SFIX"
+
+	private static final int VERSION = 1;
+
+	private static final int SEGMENTS = 64;
+
+	/**
+	 * 1つ目のlong: Idの後半(54ビット)と、前半の下位10ビット.
+	 * 2つ目のlong: Idの前半の上位26ビットと、値+1(38ビット). 0は空き
+	 */
+	private static final int ENTRY_BYTES = 16;
+
+	private static final long VALUE_MASK = (1L << 38) - 1;
+
+	/** 作成時の件数に対する、表の大きさ */
+	private static final double LOAD_FACTOR = 0.75;
+
+	/** セグメントがこれ以上埋まったら、探索が遅くなるので登録しない */
+	private static final double MAX_LOAD_FACTOR = 0.95;
+
+	private static class Segment {
+
+		final ByteBuffer buffer;
+
+		int size;
+
+		Segment(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+	}
+
+	private final Segment[] segments;
+
+	/** セグメントごとのエントリ数 */
+	private final int slots;
+
+	private final FileChannel channel;
+
+	/** ファイルの先頭の、セグメントごとの件数. メモリ上の場合はnull */
+	private final MappedByteBuffer header;
+
+	private IdIndex(int slots, FileChannel channel, MappedByteBuffer header) {
+		this.segments = new Segment[SEGMENTS];
+		this.slots = slots;
+		this.channel = channel;
+		this.header = header;
+	}
+
+	/**
+	 * ヒープ外のメモリに作成する.
+	 * @param expectedIds 登録する件数の見込み
+	 */
+	public static IdIndex allocate(long expectedIds) {
+		IdIndex index = new IdIndex(slots(expectedIds), null, null);
+		for (int i = 0; i < SEGMENTS; i++) {
+			index.segments[i] = new Segment(ByteBuffer.allocateDirect(index.slots * ENTRY_BYTES));
+		}
+		return index;
+	}
+
+	/**
+	 * ファイルに作成する. ファイルがある場合は空にする.
+	 * @param expectedIds 登録する件数の見込み
+	 */
+	public static IdIndex create(Path file, long expectedIds) throws IOException {
+		int slots = slots(expectedIds);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerLength());
+			header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, SEGMENTS).putInt(12, slots);
+			return map(new IdIndex(slots, channel, header));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * {@link #create(Path, long)}で作成したファイルを開く. 登録もできる.
+	 */
+	public static IdIndex open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (channel.size() < headerLength()) {
+				throw new IOException("not an id index: " + file);
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerLength());
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != SEGMENTS) {
+				throw new IOException("not an id index, or unsupported version: " + file);
+			}
+			IdIndex index = map(new IdIndex(header.getInt(12), channel, header));
+			for (int i = 0; i < SEGMENTS; i++) {
+				index.segments[i].size = header.getInt(16 + 4 * i);
+			}
+			return index;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static IdIndex map(IdIndex index) throws IOException {
+		long segmentBytes = (long) index.slots * ENTRY_BYTES;
+		for (int i = 0; i < SEGMENTS; i++) {
+			index.segments[i] = new Segment(index.channel.map(FileChannel.MapMode.READ_WRITE, headerLength() + segmentBytes * i, segmentBytes));
+		}
+		return index;
+	}
+
+	private static int headerLength() {
+		return 16 + 4 * SEGMENTS;
+	}
+
+	private static int slots(long expectedIds) {
+		if (expectedIds < 0) {
+			throw new IllegalArgumentException("expectedIds must not be negative: " + expectedIds);
+		}
+		// セグメントごとの件数のばらつき(件数が少ないほど大きい)の分だけ余裕をもたせる
+		double perSegment = (double) expectedIds / SEGMENTS;
+		long slots = 16 + (long) Math.ceil((perSegment + 4 * Math.sqrt(perSegment)) / LOAD_FACTOR);
+		if (slots * ENTRY_BYTES > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many ids: " + expectedIds);
+		}
+		return (int) slots;
+	}
+
+	public long get(String id) {
+		return get(SalesforceIds.high(id), SalesforceIds.low(id));
+	}
+
+	/**
+	 * @return Idが登録されていない場合は{@link #NOT_FOUND}
+	 */
+	public long get(long high, long low) {
+		long hash = hash(high, low);
+		Segment segment = segments[segment(hash)];
+		long word0 = word0(high, low);
+		long key1 = key1(high);
+		synchronized (segment) {
+			for (int slot = slot(hash);; slot = slot + 1 == slots ? 0 : slot + 1) {
+				long word1 = segment.buffer.getLong(slot * ENTRY_BYTES + 8);
+				if (word1 == 0) {
+					return NOT_FOUND;
+				}
+				if ((word1 & ~VALUE_MASK) == key1 && segment.buffer.getLong(slot * ENTRY_BYTES) == word0) {
+					return (word1 & VALUE_MASK) - 1;
+				}
+			}
+		}
+	}
+
+	public long putIfAbsent(String id, long value) {
+		return putIfAbsent(SalesforceIds.high(id), SalesforceIds.low(id), value);
+	}
+
+	/**
+	 * Idが登録されていない場合だけ登録する. 重複の確認に使う.
+	 * @return 登録済みの値. 新しく登録した場合は{@link #NOT_FOUND}
+	 */
+	public long putIfAbsent(long high, long low, long value) {
+		return put(high, low, value, false);
+	}
+
+	public long put(String id, long value) {
+		return put(SalesforceIds.high(id), SalesforceIds.low(id), value);
+	}
+
+	/**
+	 * 登録する. 登録済みの場合は値を置き換える.
+	 * @return 置き換える前の値. 新しく登録した場合は{@link #NOT_FOUND}
+	 */
+	public long put(long high, long low, long value) {
+		return put(high, low, value, true);
+	}
+
+	private long put(long high, long low, long value, boolean replace) {
+		if (value < 0 || value > MAX_VALUE) {
+			throw new IllegalArgumentException("value out of range: " + value);
+		}
+		long hash = hash(high, low);
+		Segment segment = segments[segment(hash)];
+		long word0 = word0(high, low);
+		long key1 = key1(high);
+		synchronized (segment) {
+			for (int slot = slot(hash);; slot = slot + 1 == slots ? 0 : slot + 1) {
+				int offset = slot * ENTRY_BYTES;
+				long word1 = segment.buffer.getLong(offset + 8);
+				if (word1 == 0) {
+					if (segment.size + 1 > slots * MAX_LOAD_FACTOR) {
+						throw new IllegalStateException("id index is full. create it with a larger expectedIds");
+					}
+					segment.buffer.putLong(offset, word0);
+					segment.buffer.putLong(offset + 8, key1 | (value + 1));
+					segment.size++;
+					return NOT_FOUND;
+				}
+				if ((word1 & ~VALUE_MASK) == key1 && segment.buffer.getLong(offset) == word0) {
+					if (replace) {
+						segment.buffer.putLong(offset + 8, key1 | (value + 1));
+					}
+					return (word1 & VALUE_MASK) - 1;
+				}
+			}
+		}
+	}
+
+	/** 登録されているIdの数 */
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * ファイルに作成した場合は、件数と内容をファイルに書き出す. メモリ上の場合は何もしない.
+	 */
+	public void force() {
+		if (header == null) {
+			return;
+		}
+		for (int i = 0; i < SEGMENTS; i++) {
+			synchronized (segments[i]) {
+				header.putInt(16 + 4 * i, segments[i].size);
+				((MappedByteBuffer) segments[i].buffer).force();
+			}
+		}
+		header.force();
+	}
+
+	/**
+	 * ファイルに作成した場合は書き出して閉じる.
+	 * メモリ(マップした領域を含む)はGCで解放されるので、closeした後は使わないこと.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			force();
+			channel.close();
+		}
+	}
+
+	private static long word0(long high, long low) {
+		return low | (high & 0x3FF) << 54;
+	}
+
+	private static long key1(long high) {
+		return (high >>> 10) << 38;
+	}
+
+	private static long hash(long high, long low) {
+		// MurmurHash3のfmix64. 連番のIdでも偏らないようにする
+		long h = high * 0x9E3779B97F4A7C15L ^ low;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int segment(long hash) {
+		return (int) (hash >>> 58);
+	}
+
+	private int slot(long hash) {
+		return (int) ((hash & 0x3FFFFFFFFFFFFFFL) % slots);
+	}
+
+}
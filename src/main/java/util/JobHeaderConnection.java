@@ -0,0 +1,33 @@
+package util;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.JobInfo;
+
+/**
+ * ジョブの作成のときだけリクエストヘッダを付けられるBulkConnection.
+ *
+ * BulkConnection#addHeaderで追加したヘッダは削除できず、その接続の全てのリクエストに付く.
+ * PK-chunk(Sforce-Enable-PKChunking)のようにジョブの作成時だけに指定するヘッダは、同じ設定の使い捨ての接続で送る.
+ * 接続をラップするクラスはこのインタフェースを実装して、セッションの更新や制限の適用をしたうえで作成する.
+ */
+public interface JobHeaderConnection {
+
+	/**
+	 * ヘッダを付けてジョブを作成する. ヘッダはこの接続には残らない.
+	 */
+	JobInfo createJob(JobInfo job, String headerName, String headerValue) throws AsyncApiException;
+
+	/**
+	 * connectionがこのインタフェースを実装していればそちらで、そうでなければ同じ設定の使い捨ての接続でジョブを作成する.
+	 */
+	static JobInfo createJob(BulkConnection connection, JobInfo job, String headerName, String headerValue) throws AsyncApiException {
+		if (connection instanceof JobHeaderConnection) {
+			return ((JobHeaderConnection) connection).createJob(job, headerName, headerValue);
+		}
+		BulkConnection jobConnection = new BulkConnection(connection.getConfig());
+		jobConnection.addHeader(headerName, headerValue);
+		return jobConnection.createJob(job);
+	}
+
+}
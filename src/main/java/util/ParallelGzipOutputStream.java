@@ -0,0 +1,195 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 複数スレッドでgzip圧縮を行うOutputStream(pigzと同様の方式).
+ * 固定サイズのブロックごとに別々のgzipメンバーとして圧縮し、書き込み順に出力する.
+ * 出力は複数メンバーからなる通常のgzipなので、zcatやGZIPInputStreamでそのまま読める.
+ *
+ * スレッドセーフではないので、書き込みは1スレッドから行うこと.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final OutputStream out;
+
+	private final int level;
+
+	private final int blockSize;
+
+	private final ExecutorService executor;
+
+	private final boolean ownExecutor;
+
+	/** 圧縮中のブロック. メモリを制限するため、これ以上は完了を待ってから次を投入する */
+	private final int maxInFlight;
+
+	private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+	private byte[] block;
+
+	private int count;
+
+	private boolean memberWritten;
+
+	private boolean closed;
+
+	public ParallelGzipOutputStream(OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelGzipOutputStream(OutputStream out, int level, int blockSize, int threads) {
+		this(out, level, blockSize, Executors.newFixedThreadPool(threads), true, threads * 2);
+	}
+
+	/**
+	 * 圧縮用のスレッドを他と共有する場合. executorのシャットダウンは呼び出し側で行う.
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int level, int blockSize, ExecutorService executor, int maxInFlight) {
+		this(out, level, blockSize, executor, false, maxInFlight);
+	}
+
+	private ParallelGzipOutputStream(OutputStream out, int level, int blockSize, ExecutorService executor, boolean ownExecutor, int maxInFlight) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("invalid compression level: " + level);
+		}
+		if (blockSize < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("invalid block size or in-flight limit: " + blockSize + ", " + maxInFlight);
+		}
+		this.out = out;
+		this.level = level;
+		this.blockSize = blockSize;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.maxInFlight = maxInFlight;
+		this.block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		block[count++] = (byte) b;
+		if (count == blockSize) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, blockSize - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == blockSize) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * 書き込み途中のブロックも圧縮して、それまでの内容をすべて出力する.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (count > 0) {
+			submitBlock();
+		}
+		while (!inFlight.isEmpty()) {
+			writeMember(inFlight.poll());
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+			if (!memberWritten) {
+				// 空のファイルも正しいgzipとして読めるように、空のメンバーを出力する
+				out.write(compress(new byte[0], 0, level));
+			}
+		} finally {
+			closed = true;
+			for (Future<byte[]> future : inFlight) {
+				future.cancel(true);
+			}
+			if (ownExecutor) {
+				executor.shutdownNow();
+			}
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = count;
+		inFlight.add(executor.submit(() -> compress(data, length, level)));
+		block = new byte[blockSize];
+		count = 0;
+		while (inFlight.size() >= maxInFlight) {
+			writeMember(inFlight.poll());
+		}
+	}
+
+	private void writeMember(Future<byte[]> member) throws IOException {
+		try {
+			out.write(member.get());
+			memberWritten = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress block", e.getCause());
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("stream is already closed");
+		}
+	}
+
+	/**
+	 * ブロックひとつをgzipメンバーとして圧縮する.
+	 */
+	static byte[] compress(byte[] data, int length, int level) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.max(64, length / 2));
+		try (LevelGzipOutputStream gzip = new LevelGzipOutputStream(bout, level)) {
+			gzip.write(data, 0, length);
+		}
+		return bout.toByteArray();
+	}
+
+	/**
+	 * 圧縮レベルを指定できるGZIPOutputStream.
+	 */
+	private static class LevelGzipOutputStream extends GZIPOutputStream {
+
+		LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+			super(out, 64 * 1024);
+			def.setLevel(level);
+		}
+
+	}
+
+}
@@ -0,0 +1,212 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sforce.async.AsyncApiException;
+import com.sforce.async.AsyncExceptionCode;
+import com.sforce.async.BatchInfo;
+import com.sforce.async.BatchInfoList;
+import com.sforce.async.BatchResult;
+import com.sforce.async.BulkConnection;
+import com.sforce.async.ContentType;
+import com.sforce.async.JobInfo;
+import com.sforce.async.QueryResultList;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * セッションをSessionCacheで管理するBulkConnection.
+ * リクエストの前に有効期限が近いセッションを更新し、セッションが無効(InvalidSessionId)で失敗した場合は
+ * ログインし直して1回だけ再実行する.
+ *
+ * 結果のダウンロードは{@link HttpTransport}で行い、gzipの展開のバッファを大きくして、読み終えた接続を使い回す.
+ */
+class RenewingBulkConnection extends BulkConnection implements JobHeaderConnection {
+
+	@FunctionalInterface
+	private interface AsyncCall<T> {
+		T call() throws AsyncApiException;
+	}
+
+	private static final Pattern EXCEPTION_CODE = Pattern.compile("exceptionCode(?:>|\"\\s*:\\s*\")([^<\"]*)");
+
+	private static final Pattern EXCEPTION_MESSAGE = Pattern.compile("exceptionMessage(?:>|\"\\s*:\\s*\")([^<\"]*)");
+
+	private final SessionCache sessions;
+
+	RenewingBulkConnection(ConnectorConfig config, SessionCache sessions) throws AsyncApiException {
+		super(config);
+		this.sessions = sessions;
+	}
+
+	private <T> T retry(AsyncCall<T> call) throws AsyncApiException {
+		try {
+			sessions.get();
+		} catch (ConnectionException e) {
+			throw new AsyncApiException("Failed to refresh session", AsyncExceptionCode.InvalidSessionId, e);
+		}
+		String sessionId = getConfig().getSessionId();
+		try {
+			return call.call();
+		} catch (AsyncApiException e) {
+			if (e.getExceptionCode() != AsyncExceptionCode.InvalidSessionId) {
+				throw e;
+			}
+			try {
+				getConfig().setSessionId(sessions.renew(sessionId));
+			} catch (ConnectionException ce) {
+				e.addSuppressed(ce);
+				throw e;
+			}
+			return call.call();
+		}
+	}
+
+	/**
+	 * 結果をGETで取得する. メッセージのトレースなどを設定している場合はBulkConnectionの標準の取得にする.
+	 */
+	private InputStream download(URL url, AsyncCall<InputStream> standard) throws AsyncApiException {
+		ConnectorConfig config = getConfig();
+		if (config.isTraceMessage() || config.hasMessageHandlers()) {
+			return standard.call();
+		}
+		HashMap<String, String> headers = new HashMap<>();
+		headers.put(SESSION_ID, config.getSessionId());
+		HttpTransport transport = new HttpTransport(config);
+		try {
+			InputStream in = transport.get(url, headers);
+			if (transport.isSuccessful()) {
+				return in;
+			}
+			throw toException(in);
+		} catch (IOException e) {
+			throw new AsyncApiException("Failed to get result: " + url, AsyncExceptionCode.ClientInputError, e);
+		}
+	}
+
+	/**
+	 * エラーの本文(XMLまたはJSON)のexceptionCodeとexceptionMessageを例外にする.
+	 */
+	private static AsyncApiException toException(InputStream error) throws IOException {
+		String body;
+		try (InputStream in = error) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+		AsyncExceptionCode code = AsyncExceptionCode.Unknown;
+		Matcher matcher = EXCEPTION_CODE.matcher(body);
+		if (matcher.find()) {
+			try {
+				code = AsyncExceptionCode.valueOf(matcher.group(1).trim());
+			} catch (IllegalArgumentException ignore) {
+				// 知らないコードはUnknownにする
+			}
+		}
+		matcher = EXCEPTION_MESSAGE.matcher(body);
+		return new AsyncApiException(matcher.find() ? matcher.group(1) : body, code);
+	}
+
+	@Override
+	public JobInfo createJob(JobInfo job) throws AsyncApiException {
+		return retry(() -> super.createJob(job));
+	}
+
+	@Override
+	public JobInfo createJob(JobInfo job, ContentType contentType) throws AsyncApiException {
+		return retry(() -> super.createJob(job, contentType));
+	}
+
+	/**
+	 * ヘッダを付けたジョブの作成も、セッションを更新して再実行する.
+	 * 使い捨ての接続は同じ設定を使うので、更新したセッションで送られる.
+	 */
+	@Override
+	public JobInfo createJob(JobInfo job, String headerName, String headerValue) throws AsyncApiException {
+		return retry(() -> {
+			BulkConnection jobConnection = new BulkConnection(getConfig());
+			jobConnection.addHeader(headerName, headerValue);
+			return jobConnection.createJob(job);
+		});
+	}
+
+	@Override
+	public BatchInfo createBatchFromStream(JobInfo jobInfo, InputStream input) throws AsyncApiException {
+		// 再実行できるのは、先頭に戻って読み直せるストリームの場合のみ
+		if (input.markSupported()) {
+			input.mark(Integer.MAX_VALUE);
+		}
+		return retry(() -> {
+			if (input.markSupported()) {
+				try {
+					input.reset();
+				} catch (IOException e) {
+					throw new AsyncApiException("Failed to reset batch input", AsyncExceptionCode.ClientInputError, e);
+				}
+			}
+			return super.createBatchFromStream(jobInfo, input);
+		});
+	}
+
+	@Override
+	public BatchInfoList getBatchInfoList(String jobId) throws AsyncApiException {
+		return retry(() -> super.getBatchInfoList(jobId));
+	}
+
+	@Override
+	public BatchInfo getBatchInfo(String jobId, String batchId) throws AsyncApiException {
+		return retry(() -> super.getBatchInfo(jobId, batchId));
+	}
+
+	@Override
+	public BatchResult getBatchResult(String jobId, String batchId) throws AsyncApiException {
+		return retry(() -> super.getBatchResult(jobId, batchId));
+	}
+
+	@Override
+	public InputStream getBatchResultStream(String jobId, String batchId) throws AsyncApiException {
+		return retry(() -> download(buildBatchResultURL(jobId, batchId), () -> super.getBatchResultStream(jobId, batchId)));
+	}
+
+	@Override
+	public QueryResultList getQueryResultList(String jobId, String batchId) throws AsyncApiException {
+		return retry(() -> super.getQueryResultList(jobId, batchId));
+	}
+
+	@Override
+	public InputStream getQueryResultStream(String jobId, String batchId, String resultId) throws AsyncApiException {
+		return retry(() -> download(buildQueryResultURL(jobId, batchId, resultId), () -> super.getQueryResultStream(jobId, batchId, resultId)));
+	}
+
+	@Override
+	public JobInfo getJobStatus(String jobId) throws AsyncApiException {
+		return retry(() -> super.getJobStatus(jobId));
+	}
+
+	@Override
+	public JobInfo closeJob(String jobId) throws AsyncApiException {
+		return retry(() -> super.closeJob(jobId));
+	}
+
+	@Override
+	public JobInfo abortJob(String jobId) throws AsyncApiException {
+		return retry(() -> super.abortJob(jobId));
+	}
+
+	@Override
+	public JobInfo updateJob(JobInfo job) throws AsyncApiException {
+		return retry(() -> super.updateJob(job));
+	}
+
+}
@@ -0,0 +1,168 @@
+package util;
+
+/**
+ * SalesforceのId(15桁または18桁)を、2つのlongに詰めて扱うためのユーティリティ.
+ *
+ * Idの先頭15桁は大文字小文字を区別する62進数なので、前半6桁(キープレフィックス、インスタンスなど)と
+ * 後半9桁に分けてそれぞれlongにする. 18桁の末尾3桁は先頭15桁から計算できるので保持しない.
+ * 62進数の桁の並び(0-9, A-Z, a-z)はASCIIの順番と同じなので、詰めた値の大小は15桁の文字列の大小と一致する.
+ */
+public final class SalesforceIds {
+
+	/** 前半の桁数 */
+	private static final int HIGH_DIGITS = 6;
+
+	/** 後半の桁数 */
+	private static final int LOW_DIGITS = 9;
+
+	private static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	private static final String SUFFIX = "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345";
+
+	private SalesforceIds() {
+	}
+
+	/**
+	 * 15桁または18桁のIdとして扱えるか. 18桁の場合は末尾3桁が正しいことも確認する.
+	 */
+	public static boolean isId(CharSequence id) {
+		int length = id.length();
+		if (length != 15 && length != 18) {
+			return false;
+		}
+		for (int i = 0; i < 15; i++) {
+			if (digit(id.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		return length == 15 || (id.charAt(15) == suffix(id, 0) && id.charAt(16) == suffix(id, 5) && id.charAt(17) == suffix(id, 10));
+	}
+
+	/**
+	 * {@link #isId(CharSequence)}のバイト列(ASCII)版. CSVの値をStringにせずに確認するため.
+	 */
+	public static boolean isId(byte[] bytes, int offset, int length) {
+		if (length != 15 && length != 18) {
+			return false;
+		}
+		for (int i = 0; i < 15; i++) {
+			if (digit((char) bytes[offset + i]) < 0) {
+				return false;
+			}
+		}
+		if (length == 15) {
+			return true;
+		}
+		for (int group = 0; group < 3; group++) {
+			int bits = 0;
+			for (int i = 0; i < 5; i++) {
+				byte b = bytes[offset + group * 5 + i];
+				if (b >= 'A' && b <= 'Z') {
+					bits |= 1 << i;
+				}
+			}
+			if (bytes[offset + 15 + group] != SUFFIX.charAt(bits)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Idの前半6桁 */
+	public static long high(CharSequence id) {
+		return pack(id, 0, HIGH_DIGITS);
+	}
+
+	/** Idの後半9桁 */
+	public static long low(CharSequence id) {
+		return pack(id, HIGH_DIGITS, LOW_DIGITS);
+	}
+
+	public static long high(byte[] bytes, int offset) {
+		return pack(bytes, offset, HIGH_DIGITS);
+	}
+
+	public static long low(byte[] bytes, int offset) {
+		return pack(bytes, offset + HIGH_DIGITS, LOW_DIGITS);
+	}
+
+	/**
+	 * 詰めた値をIdの文字列に戻す.
+	 * @param length 15または18
+	 */
+	public static String toString(long high, long low, int length) {
+		char[] id = new char[length];
+		unpack(high, id, 0, HIGH_DIGITS);
+		unpack(low, id, HIGH_DIGITS, LOW_DIGITS);
+		if (length == 18) {
+			CharSequence prefix = new String(id, 0, 15);
+			id[15] = suffix(prefix, 0);
+			id[16] = suffix(prefix, 5);
+			id[17] = suffix(prefix, 10);
+		}
+		return new String(id);
+	}
+
+	/**
+	 * 詰めた値で比較する. 15桁の文字列の比較と同じ結果になる.
+	 */
+	public static int compare(long high1, long low1, long high2, long low2) {
+		int c = Long.compare(high1, high2);
+		return c != 0 ? c : Long.compare(low1, low2);
+	}
+
+	private static long pack(CharSequence id, int from, int digits) {
+		long value = 0;
+		for (int i = from; i < from + digits; i++) {
+			int d = digit(id.charAt(i));
+			if (d < 0) {
+				throw new IllegalArgumentException("invalid id: " + id);
+			}
+			value = value * 62 + d;
+		}
+		return value;
+	}
+
+	private static long pack(byte[] bytes, int offset, int digits) {
+		long value = 0;
+		for (int i = offset; i < offset + digits; i++) {
+			int d = digit((char) bytes[i]);
+			if (d < 0) {
+				throw new IllegalArgumentException("invalid id at " + offset);
+			}
+			value = value * 62 + d;
+		}
+		return value;
+	}
+
+	private static void unpack(long value, char[] id, int from, int digits) {
+		for (int i = from + digits - 1; i >= from; i--) {
+			id[i] = DIGITS.charAt((int) (value % 62));
+			value /= 62;
+		}
+	}
+
+	private static int digit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'A' && c <= 'Z') {
+			return c - 'A' + 10;
+		} else if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 36;
+		}
+		return -1;
+	}
+
+	/** 5桁ごとに、大文字の位置をビットにして1文字で表す */
+	private static char suffix(CharSequence id, int from) {
+		int bits = 0;
+		for (int i = 0; i < 5; i++) {
+			char c = id.charAt(from + i);
+			if (c >= 'A' && c <= 'Z') {
+				bits |= 1 << i;
+			}
+		}
+		return SUFFIX.charAt(bits);
+	}
+
+}
@@ -0,0 +1,97 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sforce.soap.enterprise.LoginResult;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * ログイン結果(セッション)を使い回すためのクラス.
+ * Enterprise, Bulk, Metadataの各接続でひとつのセッションを共有し、ログインのリクエストを減らす.
+ *
+ * 有効期限が近づいたセッションは次に使うときにログインし直し、
+ * このクラスから払い出した全ての接続設定のセッションIDを新しいものに差し替える.
+ */
+public class SessionCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(SessionCache.class);
+
+	/** 有効期限のどれくらい前にログインし直すか */
+	private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * ログイン処理.
+	 */
+	@FunctionalInterface
+	public interface Login {
+		LoginResult login() throws ConnectionException;
+	}
+
+	private final Login login;
+
+	/** セッションIDを差し替える接続設定. 接続が使われなくなったら自動で外れるように、弱参照で保持する */
+	private final Set<ConnectorConfig> configs = Collections.newSetFromMap(new WeakHashMap<>());
+
+	private LoginResult loginResult;
+
+	private long expiresAt;
+
+	public SessionCache(Login login) {
+		this.login = login;
+	}
+
+	/**
+	 * 有効なログイン結果を取得する. 未ログインか有効期限が近い場合はログインする.
+	 */
+	public synchronized LoginResult get() throws ConnectionException {
+		if (loginResult == null || System.currentTimeMillis() >= expiresAt - REFRESH_MARGIN_MILLIS) {
+			login();
+		}
+		return loginResult;
+	}
+
+	/**
+	 * 接続設定にセッションIDを設定し、以降のログインで差し替えの対象にする.
+	 */
+	public synchronized void register(ConnectorConfig config) throws ConnectionException {
+		config.setSessionId(get().getSessionId());
+		configs.add(config);
+	}
+
+	/**
+	 * セッションが無効になった場合にログインし直す.
+	 * 他のスレッドで既にログインし直している場合は、そのセッションを返す.
+	 * @param staleSessionId 無効になったセッションID
+	 * @return 新しいセッションID
+	 */
+	public synchronized String renew(String staleSessionId) throws ConnectionException {
+		if (loginResult == null || loginResult.getSessionId().equals(staleSessionId)) {
+			logger.info("session is invalid. logging in again.");
+			login();
+		}
+		return loginResult.getSessionId();
+	}
+
+	private void login() throws ConnectionException {
+		long now = System.currentTimeMillis();
+		loginResult = login.login();
+		int secondsValid = loginResult.getUserInfo() != null ? loginResult.getUserInfo().getSessionSecondsValid() : 0;
+		// 有効期限が取得できない場合は、最短の15分とみなす
+		expiresAt = now + TimeUnit.SECONDS.toMillis(secondsValid > 0 ? secondsValid : 15 * 60);
+		List<ConnectorConfig> targets = new ArrayList<>(configs);
+		for (ConnectorConfig config : targets) {
+			config.setSessionId(loginResult.getSessionId());
+		}
+		logger.info("logged in. session is valid for {} seconds. ({} connections)", secondsValid, targets.size());
+	}
+
+}
@@ -0,0 +1,66 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * トークンバケットによる流量制限.
+ * 1秒あたりpermitsPerSecond個のトークンが、capacity個まで貯まる. 貯まっている分は連続して取得できる.
+ */
+public class TokenBucket {
+
+	private final double permitsPerNano;
+
+	private final double capacity;
+
+	private double tokens;
+
+	private long lastRefill;
+
+	public TokenBucket(double permitsPerSecond, int capacity) {
+		if (permitsPerSecond <= 0 || capacity < 1) {
+			throw new IllegalArgumentException("permitsPerSecond and capacity must be positive: " + permitsPerSecond + ", " + capacity);
+		}
+		this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * トークンを1つ取得する. 足りない場合は貯まるまで待つ.
+	 */
+	public void acquire() throws InterruptedException {
+		while (true) {
+			long waitNanos;
+			synchronized (this) {
+				refill();
+				if (tokens >= 1) {
+					tokens -= 1;
+					return;
+				}
+				waitNanos = (long) Math.ceil((1 - tokens) / permitsPerNano);
+			}
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * トークンがあれば取得する.
+	 * @return 取得できなかった場合はfalse
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+		lastRefill = now;
+	}
+
+}